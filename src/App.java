@@ -1,10 +1,16 @@
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 
+import javax.xml.bind.DatatypeConverter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -27,29 +33,125 @@ public class App {
     @Parameter(names = {"-v", "--verbose"}, description = "output detailed diagnostics")
     private boolean isVerbose = false;
 
+    @Parameter(names = {"-l", "--log-level"}, description = "lowest diagnostic event level printed: DEBUG, INFO, WARN, ERROR or OFF")
+    private String logLevel = "";
+
+    @Parameter(names = {"--dump-on-error"}, description = "record all diagnostic events and print the recent history on error")
+    private boolean isDumpOnError = false;
+
+    @Parameter(names = {"--log-capacity"}, description = "number of diagnostic events kept in memory")
+    private int logCapacity = 8192;
+
+    @Parameter(names = {"--jfr"}, description = "write a flight recording with the transport's events to this file on exit")
+    private String flightRecording = "";
+
+    @Parameter(names = {"--fast-open"}, description = "send the first segment with the SYN once the server has issued a cookie")
+    private boolean isFastOpen = false;
+
+    @Parameter(names = {"--compress"}, description = "send file contents in deflate blocks if the server agrees")
+    private boolean isCompressed = false;
+
+    @Parameter(names = {"--fec"}, description = "client: send a parity segment after every N data segments (up to 15); server: accept parity segments if nonzero")
+    private int parityGroupSize = 0;
+
+    @Parameter(names = {"--pace"}, description = "client pacing rate in bytes per second, 0 to pace one window per round trip",
+            converter = DoubleConverter.class)
+    private double pacingRate = 0.0;
+
+    @Parameter(names = {"--get"}, description = "client: download the files named by -f from the server into this directory")
+    private String downloadDirectory = "";
+
+    @Parameter(names = {"--stream"}, description = "client: write the files named by -f into one stream connection; server: take stream connections and print each one's MD5")
+    private boolean isStream = false;
+
+    @Parameter(names = {"--dedup"}, description = "client: send only the blocks of each file that the server's stored copy lacks, if the server agrees")
+    private boolean isDedup = false;
+
+    @Parameter(names = {"--store"}, description = "server: keep received files in this directory, and let clients deduplicate against them")
+    private String storeDirectory = "";
+
+    @Parameter(names = {"--serve"}, description = "server: serve downloads of the files in this directory")
+    private String serveDirectory = "";
+
+    @Parameter(names = {"--cache-mb"}, description = "server: megabytes of hot files kept memory-mapped for downloads")
+    private long cacheMegabytes = 256;
+
+    @Parameter(names = {"--reassembly-kb"}, description = "server: most kilobytes a connection may have waiting out of order")
+    private long reassemblyKilobytes = 4096;
+
+    @Parameter(names = {"--idle-timeout"}, description = "server: milliseconds of silence before a connection is evicted, 0 to wait forever")
+    private int idleTimeout = 30000;
+
+    @Parameter(names = {"--receive-workers"}, description = "server: threads validating segments in parallel with the thread that orders and digests them, 0 for one thread")
+    private int receiveWorkers = 0;
+
+    @Parameter(names = {"--clients"}, description = "client: run this many concurrent sessions as a load test and report aggregate figures")
+    private int clients = 1;
+
+    @Parameter(names = {"--ramp-up"}, description = "load test: milliseconds over which the session starts are spread")
+    private long rampUpMillis = 0;
+
     @Parameter(description = "server port and client port")
     private List<String> params = new ArrayList<>();
 
     /**
      * Parses args and creates the client or server objects, as specified by the args
      * @param args command line args
-     * @throws NoSuchAlgorithmException this shouldn't happen
+     * @throws GeneralSecurityException this shouldn't happen
      */
-    public static void main(String[] args) throws NoSuchAlgorithmException {
+    public static void main(String[] args) throws GeneralSecurityException {
         App app = new App();
         new JCommander(app, args);
         final int maxSegmentSize = 1020;
+        if (!app.flightRecording.isEmpty()) {
+            try {
+                FlightEvents.record(Paths.get(app.flightRecording));
+            } catch (IOException e) {
+                System.err.println("Couldn't start the flight recording");
+                e.printStackTrace();
+            }
+        }
         if (app.isServer) {
             try {
-                new Server(Integer.parseInt(app.params.get(0)), maxSegmentSize, app.isVerbose).doTheThing();
+                Server server = new Server(Integer.parseInt(app.params.get(0)), maxSegmentSize, app.isVerbose,
+                        app.createEventLog());
+                server.setFastOpen(app.isFastOpen);
+                server.setCompression(app.isCompressed);
+                server.setParity(app.parityGroupSize > 0);
+                server.setReassemblyQuota(app.reassemblyKilobytes * 1024);
+                server.setIdleTimeout(app.idleTimeout);
+                server.setReceiveWorkers(app.receiveWorkers);
+                if (app.isStream) {
+                    server.setStreams(true);
+                    startStreamDigester(server);
+                }
+                if (!app.storeDirectory.isEmpty()) {
+                    server.setStore(Paths.get(app.storeDirectory));
+                }
+                if (!app.serveDirectory.isEmpty()) {
+                    server.setDownloads(Paths.get(app.serveDirectory), app.cacheMegabytes * 1024 * 1024);
+                }
+                server.doTheThing();
             } catch (IOException e) {
                 e.printStackTrace();
             }
+        } else if (app.isClient && app.clients > 1) {
+            LoadGenerator load = new LoadGenerator(app.clients, app.rampUpMillis, () -> app.createClient(maxSegmentSize));
+            try {
+                load.run();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
         } else if (app.isClient) {
             try {
-                Client client = new Client(app.filePath, maxSegmentSize, app.timeout, app.isVerbose, app.params.get(0),
-                        Integer.parseInt(app.params.get(1)));
-                client.doTheThing();
+                Client client = app.createClient(maxSegmentSize);
+                if (app.isStream) {
+                    app.sendStream(client);
+                } else if (app.downloadDirectory.isEmpty()) {
+                    client.doTheThing();
+                } else {
+                    client.download(Paths.get(app.downloadDirectory));
+                }
             } catch (UnknownHostException e) {
                 System.err.println("Couldn't connect to host");
                 e.printStackTrace();
@@ -62,4 +164,78 @@ public class App {
             }
         }
     }
+
+    /**
+     * Writes the files named on the command line, one after another, into a stream connection
+     * @param client the client
+     * @throws IOException UDP trouble, or a file can't be read
+     */
+    private void sendStream(Client client) throws IOException {
+        try (OutputStream out = client.openStream()) {
+            for (String name : this.filePath.split(",")) {
+                if (!name.trim().isEmpty()) Files.copy(Paths.get(name.trim()), out);
+            }
+        }
+    }
+
+    /**
+     * Starts a thread that reads every stream the server accepts and prints its MD5 and length
+     * @param server the server, with streams turned on
+     */
+    private static void startStreamDigester(Server server) {
+        Thread digester = new Thread(() -> {
+            byte[] buffer = new byte[64 * 1024];
+            while (true) {
+                try (InputStream in = server.acceptStream()) {
+                    MessageDigest md5Digest = MessageDigest.getInstance("MD5");
+                    long length = 0;
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        md5Digest.update(buffer, 0, count);
+                        length += count;
+                    }
+                    System.out.println("MD5: " + DatatypeConverter.printHexBinary(md5Digest.digest()) + " (stream, "
+                            + length + " bytes)");
+                } catch (IOException | GeneralSecurityException e) {
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "StreamDigester");
+        digester.setDaemon(true);
+        digester.start();
+    }
+
+    /**
+     * Creates a client with the options given on the command line
+     * @param maxSegmentSize max segment size to send across link
+     * @return the client
+     * @throws UnknownHostException can't find the server address
+     * @throws SocketException something weird happened making the socket
+     */
+    private Client createClient(int maxSegmentSize) throws UnknownHostException, SocketException {
+        Client client = new Client(this.filePath, maxSegmentSize, this.timeout, this.isVerbose, this.params.get(0),
+                Integer.parseInt(this.params.get(1)));
+        client.setFastOpen(this.isFastOpen);
+        client.setCompression(this.isCompressed);
+        client.setParityGroupSize(this.parityGroupSize);
+        client.setPacingRate(this.pacingRate);
+        client.setDedup(this.isDedup);
+        return client;
+    }
+
+    /**
+     * Creates the diagnostic event log. Verbose mode prints everything unless a level is given explicitly.
+     * @return the event log
+     */
+    private EventLog createEventLog() {
+        EventLog.Level level;
+        if (!this.logLevel.isEmpty()) {
+            level = EventLog.Level.valueOf(this.logLevel.toUpperCase());
+        } else {
+            level = this.isVerbose ? EventLog.Level.DEBUG : EventLog.Level.WARN;
+        }
+        return new EventLog(this.logCapacity, level, this.isDumpOnError, System.out);
+    }
 }
@@ -0,0 +1,138 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Worker thread that reads a file in blocks and deflates each one ahead of the send thread, so compression overlaps
+ * with sending. Every block is framed so the server can split the stream back up:
+ * <pre>
+ *   1 byte   STORED or DEFLATED
+ *   4 bytes  length of the block on the wire, big endian
+ *   4 bytes  length of the block once inflated, big endian
+ *   rest     the block
+ * </pre>
+ * A block that doesn't get smaller is sent STORED, so incompressible data costs only the frame header.
+ */
+public class BlockCompressor extends Thread {
+    public static final int BLOCK_SIZE = 64 * 1024;
+    public static final int HEADER_LENGTH = 9;
+    public static final byte STORED = 0;
+    public static final byte DEFLATED = 1;
+    // blocks compressed ahead of the send thread
+    private static final int QUEUE_DEPTH = 4;
+    private static final byte[] END_OF_FILE = new byte[0];
+
+    private final Path path;
+    private final long length;
+    private final BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+    private volatile IOException failure;
+    private Runnable readyListener;
+
+    /**
+     * Constructs the worker, call start() to begin compressing
+     * @param path file to compress
+     * @param length number of bytes to read, from the file's header
+     */
+    public BlockCompressor(Path path, long length) {
+        super("BlockCompressor");
+        setDaemon(true);
+        this.path = path;
+        this.length = length;
+    }
+
+    @Override
+    public void run() {
+        // fastest level, a slow compressor would hold up the link instead of speeding it up
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] deflated = new byte[BLOCK_SIZE];
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(this.path), BLOCK_SIZE)) {
+            long remaining = this.length;
+            while (remaining > 0) {
+                int blockLength = (int) Math.min(BLOCK_SIZE, remaining);
+                int count = 0;
+                while (count < blockLength) {
+                    int read = in.read(block, count, blockLength - count);
+                    if (read == -1) throw new IOException("File shrank while sending: " + this.path.getFileName());
+                    count += read;
+                }
+                deflater.reset();
+                deflater.setInput(block, 0, blockLength);
+                deflater.finish();
+                int deflatedLength = 0;
+                while (!deflater.finished() && deflatedLength < deflated.length) {
+                    deflatedLength += deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength);
+                }
+                byte[] frame = deflater.finished() && deflatedLength < blockLength
+                        ? frame(DEFLATED, deflated, deflatedLength, blockLength)
+                        : frame(STORED, block, blockLength, blockLength);
+                put(frame);
+                remaining -= blockLength;
+            }
+            put(END_OF_FILE);
+        } catch (IOException e) {
+            this.failure = e;
+            try {
+                put(END_OF_FILE);
+            } catch (InterruptedException interrupted) {
+                // the send thread gave up, nobody is waiting
+            }
+        } catch (InterruptedException e) {
+            // the send thread gave up on the file
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Waits for the next framed block
+     * @return the block, or null at the end of the file
+     * @throws IOException if reading the file failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public byte[] next() throws IOException, InterruptedException {
+        byte[] frame = this.blocks.take();
+        if (frame == END_OF_FILE) {
+            if (this.failure != null) throw this.failure;
+            return null;
+        }
+        return frame;
+    }
+
+    /**
+     * @return true if {@link #next()} would return without waiting
+     */
+    public boolean isReady() {
+        return !this.blocks.isEmpty();
+    }
+
+    /**
+     * Has the worker tell a sender that polls {@link #isReady()} instead of waiting in {@link #next()} whenever a
+     * block is queued. Set it before starting the worker.
+     * @param readyListener called on the worker thread, must not block
+     */
+    public void setReadyListener(Runnable readyListener) {
+        this.readyListener = readyListener;
+    }
+
+    private void put(byte[] frame) throws InterruptedException {
+        this.blocks.put(frame);
+        if (this.readyListener != null) this.readyListener.run();
+    }
+
+    private static byte[] frame(byte type, byte[] data, int length, int inflatedLength) {
+        return ByteBuffer.allocate(HEADER_LENGTH + length)
+                .put(type)
+                .putInt(length)
+                .putInt(inflatedLength)
+                .put(Arrays.copyOf(data, length))
+                .array();
+    }
+}
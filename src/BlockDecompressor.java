@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Server side of {@link BlockCompressor}. Takes the file data segments in order, reassembles the framed blocks they
+ * carry, which may span segments, and inflates each block once all of it has arrived.
+ */
+public class BlockDecompressor {
+    /**
+     * Receives the file contents as blocks are inflated
+     */
+    public interface Sink {
+        void accept(byte[] data) throws IOException;
+    }
+
+    private final Inflater inflater = new Inflater();
+    private final ByteBuffer header = ByteBuffer.allocate(BlockCompressor.HEADER_LENGTH);
+    private byte[] block;
+    private int blockFilled;
+    private byte type;
+    private int inflatedLength;
+
+    /**
+     * Forgets any partial block, ready for the next file
+     */
+    public void reset() {
+        this.header.clear();
+        this.block = null;
+        this.blockFilled = 0;
+    }
+
+    /**
+     * Adds the next data segment
+     * @param data segment payload
+     * @param sink receives every block completed by this segment, inflated
+     * @throws IOException if a block is corrupt
+     */
+    public void feed(byte[] data, Sink sink) throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            if (this.block == null) {
+                int count = Math.min(this.header.remaining(), data.length - offset);
+                this.header.put(data, offset, count);
+                offset += count;
+                if (this.header.hasRemaining()) return;
+                this.header.flip();
+                this.type = this.header.get();
+                int length = this.header.getInt();
+                this.inflatedLength = this.header.getInt();
+                if (length < 0 || length > BlockCompressor.BLOCK_SIZE || this.inflatedLength < 0
+                        || this.inflatedLength > BlockCompressor.BLOCK_SIZE) {
+                    throw new IOException("Bad compressed block length " + length);
+                }
+                this.header.clear();
+                this.block = new byte[length];
+                this.blockFilled = 0;
+            }
+            int count = Math.min(this.block.length - this.blockFilled, data.length - offset);
+            System.arraycopy(data, offset, this.block, this.blockFilled, count);
+            this.blockFilled += count;
+            offset += count;
+            if (this.blockFilled == this.block.length) {
+                byte[] completed = this.block;
+                this.block = null;
+                sink.accept(this.type == BlockCompressor.DEFLATED ? inflate(completed) : completed);
+            }
+        }
+    }
+
+    private byte[] inflate(byte[] deflated) throws IOException {
+        byte[] inflated = new byte[this.inflatedLength];
+        this.inflater.reset();
+        this.inflater.setInput(deflated);
+        try {
+            int count = 0;
+            while (count < inflated.length && !this.inflater.finished()) {
+                int inflatedNow = this.inflater.inflate(inflated, count, inflated.length - count);
+                if (inflatedNow == 0 && this.inflater.needsInput()) break;
+                count += inflatedNow;
+            }
+            if (count != inflated.length) throw new IOException("Compressed block is truncated");
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return inflated;
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * rsync-style signature of a file the server holds: the file cut into fixed-size blocks, each with a weak rolling
+ * checksum and a strong MD5. The client slides the weak checksum over its own copy a byte at a time, so a block that
+ * moved because bytes were inserted or removed before it is still found, and confirms each candidate with the MD5.
+ * <pre>
+ *   4 bytes   block size, big endian
+ *   8 bytes   file length, big endian
+ *   per block 4 bytes weak checksum, 16 bytes MD5
+ * </pre>
+ */
+public class BlockSignatures {
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+    private static final int FIXED_LENGTH = 12;
+    private static final int BLOCK_LENGTH = 20;
+
+    private final int blockSize;
+    private final long length;
+    private final int[] weakSums;
+    private final byte[][] strongSums;
+    private long lastModified;
+
+    private BlockSignatures(int blockSize, long length, int[] weakSums, byte[][] strongSums) {
+        this.blockSize = blockSize;
+        this.length = length;
+        this.weakSums = weakSums;
+        this.strongSums = strongSums;
+    }
+
+    /**
+     * Reads a file once and computes its signature. The block size grows with the square root of the file size, like
+     * rsync, so the signature stays small next to the file.
+     * @param path the file, at most 2 GB
+     * @return the signature
+     * @throws IOException if the file can't be read or is too big
+     */
+    public static BlockSignatures of(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long length = attributes.size();
+        if (length > Integer.MAX_VALUE) throw new IOException("Too big for block signatures: " + path.getFileName());
+        int blockSize = (int) Math.min(Math.max(Math.sqrt(length), MIN_BLOCK_SIZE), MAX_BLOCK_SIZE);
+        int blocks = (int) ((length + blockSize - 1) / blockSize);
+        int[] weakSums = new int[blocks];
+        byte[][] strongSums = new byte[blocks][];
+        MappedByteBuffer contents;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        MessageDigest md5Digest = md5();
+        for (int i = 0; i < blocks; i++) {
+            int offset = i * blockSize;
+            int blockLength = (int) Math.min(blockSize, length - offset);
+            weakSums[i] = weakSum(contents, offset, blockLength);
+            strongSums[i] = strongSum(md5Digest, contents, offset, blockLength);
+        }
+        BlockSignatures signatures = new BlockSignatures(blockSize, length, weakSums, strongSums);
+        signatures.lastModified = attributes.lastModifiedTime().toMillis();
+        return signatures;
+    }
+
+    /**
+     * Weak checksum of a block: two 16-bit sums, of the bytes and of the running totals, as in rsync
+     * @param data bytes to read
+     * @param offset where the block starts
+     * @param length block length
+     * @return the checksum
+     */
+    public static int weakSum(ByteBuffer data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data.get(offset + i) & 0xFF;
+            b += a;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * Slides a weak checksum one byte along
+     * @param sum checksum of the block starting at the byte leaving
+     * @param out byte leaving the block
+     * @param in byte entering the block
+     * @param length block length
+     * @return checksum of the block one byte further on
+     */
+    public static int roll(int sum, byte out, byte in, int length) {
+        int a = (sum - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        int b = ((sum >>> 16) - length * (out & 0xFF) + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    /**
+     * Strong checksum of a block
+     * @param md5Digest digest to use, reset first
+     * @param data bytes to read
+     * @param offset where the block starts
+     * @param length block length
+     * @return the MD5
+     */
+    public static byte[] strongSum(MessageDigest md5Digest, ByteBuffer data, int offset, int length) {
+        ByteBuffer block = data.duplicate();
+        block.limit(offset + length).position(offset);
+        md5Digest.reset();
+        md5Digest.update(block);
+        return md5Digest.digest();
+    }
+
+    /**
+     * @return a new MD5 digest
+     * @throws IOException if MD5 isn't available
+     */
+    public static MessageDigest md5() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @param path the file the signature was computed from
+     * @return true if the file still has the size and modification time it had then
+     * @throws IOException if the file can't be read
+     */
+    public boolean isCurrent(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return attributes.size() == this.length && attributes.lastModifiedTime().toMillis() == this.lastModified;
+    }
+
+    /**
+     * Serializes the signature to be sent to the client
+     * @return the serialized signature
+     */
+    public byte[] serialize() {
+        ByteBuffer buffer = ByteBuffer.allocate(FIXED_LENGTH + this.weakSums.length * BLOCK_LENGTH)
+                .order(ByteOrder.BIG_ENDIAN)
+                .putInt(this.blockSize)
+                .putLong(this.length);
+        for (int i = 0; i < this.weakSums.length; i++) {
+            buffer.putInt(this.weakSums[i]).put(this.strongSums[i]);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Deserializes a signature received from the server
+     * @param bytes the serialized signature
+     * @return the signature
+     * @throws IOException if the bytes aren't a signature
+     */
+    public static BlockSignatures deserialize(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
+        if (bytes.length < FIXED_LENGTH || (bytes.length - FIXED_LENGTH) % BLOCK_LENGTH != 0) {
+            throw new IOException("Bad block signature length " + bytes.length);
+        }
+        int blockSize = buffer.getInt();
+        long length = buffer.getLong();
+        int blocks = (bytes.length - FIXED_LENGTH) / BLOCK_LENGTH;
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || length < 0
+                || (length + blockSize - 1) / blockSize != blocks) {
+            throw new IOException("Bad block signature for " + length + " bytes");
+        }
+        int[] weakSums = new int[blocks];
+        byte[][] strongSums = new byte[blocks][16];
+        for (int i = 0; i < blocks; i++) {
+            weakSums[i] = buffer.getInt();
+            buffer.get(strongSums[i]);
+        }
+        return new BlockSignatures(blockSize, length, weakSums, strongSums);
+    }
+
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    public int getBlockCount() {
+        return this.weakSums.length;
+    }
+
+    /**
+     * @param index block number
+     * @return length of the block, the last one may be short
+     */
+    public int getBlockLength(int index) {
+        return (int) Math.min(this.blockSize, this.length - (long) index * this.blockSize);
+    }
+
+    public int getWeakSum(int index) {
+        return this.weakSums[index];
+    }
+
+    public byte[] getStrongSum(int index) {
+        return this.strongSums[index];
+    }
+}
@@ -1,9 +1,18 @@
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Main client class
@@ -15,12 +24,28 @@ public class Client {
     private boolean isVerbose;
     private InetAddress serverAddress;
     private int port;
-    private DatagramSocket socket;
-    private int sequenceNumber;
+    private DatagramTransport socket;
+    private TransportMetrics metrics;
+    // handshake and close of the last connection
+    private ClientConnection connection;
+    private boolean isFastOpen;
+    private boolean isCompressionRequested;
+    private int parityGroupSizeRequested;
+    private double pacingRate;
+    // options the server agreed to in the handshake
+    private ConnectionOptions options;
+    private long handshakeNanos;
+    private long fileBytes;
+    private boolean isDownloadRequested;
+    private boolean isStreamRequested;
+    private boolean isDedupRequested;
+    // the connection being opened fetches signatures for a deduplicated upload
+    private boolean isSignatureQuery;
+    private long copiedBytes;
 
     /**
      * Constructs the client, creates the UDP socket to talk to the server
-     * @param filePath path to file to send
+     * @param filePath file to send, a directory whose files are all sent, or a comma separated list of either
      * @param maxSegmentSize max segment size to send across link
      * @param timeout max time to wait for ack before resending packet
      * @param isVerbose turn on verbose mode
@@ -31,158 +56,430 @@ public class Client {
      */
     public Client(String filePath, int maxSegmentSize, int timeout, boolean isVerbose, String serverAddress, int port)
             throws UnknownHostException, SocketException {
+        this(filePath, maxSegmentSize, timeout, isVerbose, InetAddress.getByName(serverAddress), port,
+                new UdpTransport(createSocket()));
+    }
+
+    /**
+     * Creates the UDP socket, with a receive buffer big enough to hold the whole window a download advertises
+     * @return the socket
+     * @throws SocketException something weird happened making the socket
+     */
+    private static DatagramSocket createSocket() throws SocketException {
+        DatagramSocket socket = new DatagramSocket();
+        socket.setReceiveBufferSize((int) DownloadReceiver.RECEIVE_WINDOW);
+        return socket;
+    }
+
+    /**
+     * Constructs the client over the given transport
+     * @param filePath file to send, a directory whose files are all sent, or a comma separated list of either
+     * @param maxSegmentSize max segment size to send across link
+     * @param timeout max time to wait for ack before resending packet
+     * @param isVerbose turn on verbose mode
+     * @param serverAddress address of server to talk to
+     * @param port port to talk to
+     * @param socket transport to talk to the server over
+     * @throws SocketException something weird happened setting the timeout
+     */
+    public Client(String filePath, int maxSegmentSize, int timeout, boolean isVerbose, InetAddress serverAddress,
+                  int port, DatagramTransport socket) throws SocketException {
         this.filePath = filePath;
         this.maxSegmentSize = maxSegmentSize;
         this.timeout = timeout;
         this.isVerbose = isVerbose;
-        this.serverAddress = InetAddress.getByName(serverAddress);
+        this.serverAddress = serverAddress;
         this.port = port;
-        this.socket = new DatagramSocket();
+        this.socket = socket;
         this.socket.setSoTimeout(this.timeout);
-        this.sequenceNumber = 0;
-
     }
 
     /**
-     * Initiates the handshake and spins up sending and receiving threads
+     * Initiates the handshake, spins up sending and receiving threads to send every file over the one connection,
+     * then closes the connection
      * @throws IOException UDP crap
      */
     public void doTheThing() throws IOException {
-        handshake();
-        ClientReceiveThread receiveThread = new ClientReceiveThread();
-        ClientSendThread sendThread = new ClientSendThread(this.filePath, this.maxSegmentSize, this.socket, this.serverAddress, this.port);
-        receiveThread.start();
-        sendThread.start();
+        List<Path> files = collectFiles(this.filePath);
+        this.fileBytes = 0;
+        for (Path file : files) {
+            this.fileBytes += Files.size(file);
+        }
+        Map<String, BlockSignatures> signatures = this.isDedupRequested ? fetchSignatures(files) : null;
+        this.metrics = TransportMetrics.register("client");
+        this.metrics.setRoundTripTimes(0, this.timeout);
+        byte[] synData = new byte[0];
+        if (this.isFastOpen && !files.isEmpty()
+                && ClientConnection.hasFastOpenCookie(new InetSocketAddress(this.serverAddress, this.port))) {
+            // the first segment of the stream is the first file's header
+            synData = FileHeader.of(files.get(0)).serialize();
+        }
+        long handshakeStart = this.socket.nanoTime();
+        handshake(synData);
+        this.handshakeNanos = this.socket.nanoTime() - handshakeStart;
+        StreamSender sender = createSender();
+        UploadSource source = new UploadSource(files, this.maxSegmentSize - 20, this.connection.isSynDataAcked(),
+                this.options.getIsCompressed());
+        if (this.options.getIsDedup()) {
+            source.setSignatures(signatures != null ? signatures : Collections.emptyMap());
+        }
+        ClientReceiveThread receiveThread = new ClientReceiveThread(this.socket, this.maxSegmentSize, sender,
+                this.metrics, new InetSocketAddress(this.serverAddress, this.port));
+        ClientSendThread sendThread = new ClientSendThread(source, sender);
+        this.socket.start(receiveThread);
+        this.socket.start(sendThread);
         try {
-            receiveThread.join();
-            sendThread.join();
+            this.socket.join(receiveThread);
+            this.socket.join(sendThread);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        teardown();
+        this.copiedBytes = source.getCopiedBytes();
+        if (this.isVerbose && this.options.getIsDedup()) {
+            System.out.println("Deduplicated " + this.copiedBytes + " of " + this.fileBytes + " bytes");
+        }
+        finishUpload(sender);
     }
 
     /**
-     * Performs the three way handshake
+     * Creates the sending half of the connection just established, starting after the handshake
+     * @return the sender
+     */
+    private StreamSender createSender() {
+        SendWindow sendWindow = new SendWindow(this.connection.getSequenceNumber(), this.options.getWindowScale(),
+                this.socket);
+        StreamSender sender = new StreamSender(this.socket, new InetSocketAddress(this.serverAddress, this.port),
+                this.maxSegmentSize, sendWindow, this.metrics, this.options.getParityGroupSize());
+        sender.setPacingRate(this.pacingRate);
+        sender.setAckNumber(SequenceNumbers.wrap(this.connection.getServerSequenceNumber()));
+        return sender;
+    }
+
+    /**
+     * Asks the server for the signatures of its stored copies of the files, over connections of their own, so the
+     * upload can send only what changed. File names go in as many requests as it takes to fit each in one segment.
+     * @param files the files about to be sent
+     * @return the signature of every file the server holds, by name, or null if the server doesn't deduplicate
      * @throws IOException UDP crap
      */
-    private void handshake() throws IOException {
-        if (this.isVerbose) System.out.println("Starting three-way handshake on client");
-        TcpPacket packetFromServer = null;
-        TcpPacket synPacket = this.createSynPacket(this.sequenceNumber, 0);
-        if (this.isVerbose) System.out.println("Sending SYN...");
-        sendPacket(synPacket);
-        // sequence number increments even though no data was sent, special case
-        this.sequenceNumber = 1;
+    Map<String, BlockSignatures> fetchSignatures(List<Path> files) throws IOException {
+        Map<String, BlockSignatures> signatures = new HashMap<>();
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        for (Path file : files) {
+            byte[] name = file.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+            if (name.length + 1 > this.maxSegmentSize - 20) continue;
+            if (request.size() + name.length + 1 > this.maxSegmentSize - 20) {
+                if (!fetchSignatures(request.toByteArray(), signatures)) return null;
+                request.reset();
+            }
+            if (request.size() > 0) request.write('\n');
+            request.write(name, 0, name.length);
+        }
+        if (request.size() > 0 && !fetchSignatures(request.toByteArray(), signatures)) return null;
+        return signatures;
+    }
+
+    /**
+     * Runs one signature request: a download of the signatures instead of the files
+     * @param request file names, one per line, small enough for one segment
+     * @param signatures where the signatures received are put
+     * @return false if the server doesn't deduplicate
+     * @throws IOException UDP crap, or a signature didn't arrive intact
+     */
+    private boolean fetchSignatures(byte[] request, Map<String, BlockSignatures> signatures) throws IOException {
+        this.isSignatureQuery = true;
+        this.metrics = TransportMetrics.register("client");
+        this.metrics.setRoundTripTimes(0, this.timeout);
         try {
-            if (this.isVerbose) System.out.println("Waiting for SYN-ACK...");
-            packetFromServer = receivePacketOrTimeout();
-        } catch (SocketTimeoutException e) {
-            if (this.isVerbose) {
-                System.out.println("Timed out waiting for SYN-ACK from server");
-                System.out.println("Restarting handshake");
+            handshake(new byte[0]);
+            if (!this.options.getIsDownload() || !this.options.getIsDedup()) {
+                this.connection.reset();
+                return false;
             }
-            TcpPacket rstPacket = createRstPacket();
-            sendPacket(rstPacket);
-            handshake();
-            return;
-        }
-        if (packetFromServer.getHeader().getIsRst() == 1) {
-            if (this.isVerbose) System.out.println("Received RST from server, restarting handshake...");
-            handshake();
-            return;
-        }
-        if (!packetFromServer.validateChecksum()) {
-            if (this.isVerbose) {
-                System.out.println("Received corrupt packet while waiting for SYN-ACK, throwing away...");
-                System.out.println("Restarting handshake");
+            Map<String, ByteArrayOutputStream> received = new HashMap<>();
+            DownloadReceiver receiver = new DownloadReceiver(this.socket, this.serverAddress, this.port,
+                    this.maxSegmentSize, header -> {
+                        ByteArrayOutputStream signature = new ByteArrayOutputStream();
+                        received.put(header.getName(), signature);
+                        return signature;
+                    }, this.options.getWindowScale(), this.metrics, this.isVerbose);
+            receiver.setPrintingDigests(false);
+            for (FileHeader header : receiver.receive(request, this.connection.getSequenceNumber(),
+                    this.connection.getServerSequenceNumber())) {
+                signatures.put(header.getName(),
+                        BlockSignatures.deserialize(received.get(header.getName()).toByteArray()));
             }
-            TcpPacket rstPacket = createRstPacket();
-            sendPacket(rstPacket);
-            handshake();
-            return;
-        }
-        if (!(packetFromServer.getHeader().getIsSyn() == 1 && packetFromServer.getHeader().getIsAck() == 1)) {
-            if (this.isVerbose) {
-                System.out.println("Received packet with wrong CTRL, throwing away...");
-                System.out.println("Restarting handshake");
+            return true;
+        } finally {
+            this.isSignatureQuery = false;
+            this.metrics.unregister();
+        }
+    }
+
+    /**
+     * Opens a stream connection: after the handshake, whatever is written to the returned stream reaches the server's
+     * application in order, and closing it closes the connection. Compression applies to files only and isn't asked
+     * for; parity segments and pacing apply as set.
+     * @return the stream
+     * @throws IOException UDP crap, or the server doesn't take streams
+     */
+    public TransportOutputStream openStream() throws IOException {
+        this.isStreamRequested = true;
+        this.metrics = TransportMetrics.register("client");
+        this.metrics.setRoundTripTimes(0, this.timeout);
+        try {
+            long handshakeStart = this.socket.nanoTime();
+            handshake(new byte[0]);
+            this.handshakeNanos = this.socket.nanoTime() - handshakeStart;
+            if (!this.options.getIsStream()) {
+                this.connection.reset();
+                throw new IOException("Server doesn't take streams");
             }
-            TcpPacket rstPacket = createRstPacket();
-            sendPacket(rstPacket);
-            handshake();
-            return;
+        } catch (IOException e) {
+            this.metrics.unregister();
+            throw e;
         }
-        // received ACK for own SYN, connection is established
-        if (this.isVerbose) {
-            System.out.println("Received SYN-ACK from server");
-            System.out.println("Connection established on client!");
-            System.out.println("Sending ACK...");
+        StreamSender sender = createSender();
+        ClientReceiveThread receiveThread = new ClientReceiveThread(this.socket, this.maxSegmentSize, sender,
+                this.metrics, new InetSocketAddress(this.serverAddress, this.port));
+        this.socket.start(receiveThread);
+        return new TransportOutputStream(this, this.socket, sender, receiveThread, this.maxSegmentSize - 20);
+    }
+
+    /**
+     * Ends an upload once the window is closed or failed: closes the connection, or resets it if the server stopped
+     * acknowledging
+     * @param sender the upload's sender, with its receive thread finished
+     * @throws IOException UDP stuff, or the upload failed
+     */
+    void finishUpload(StreamSender sender) throws IOException {
+        if (sender.getSendWindow().isFailed()) {
+            this.connection.reset();
+            this.metrics.unregister();
+            throw new IOException("Server stopped acknowledging data, connection reset");
         }
-        TcpPacket ackPacket = createAckPacket(this.sequenceNumber, packetFromServer.getHeader().getSequenceNumber() + 1);
-        sendPacket(ackPacket);
+        teardown(sender.getSequenceNumber());
+    }
 
+    /**
+     * @return how long the last handshake took, from the first SYN to the SYN-ACK, in nanoseconds
+     */
+    public long getHandshakeNanos() {
+        return this.handshakeNanos;
     }
 
     /**
-     * Receives a packet within a given timeout
-     * @return the packet
-     * @throws IOException if there is a timeout
+     * @return total size of the files the last {@link #doTheThing()} sent, before any compression
      */
-    private TcpPacket receivePacketOrTimeout() throws IOException {
-        byte[] buf = new byte[20];
-        DatagramPacket packet = new DatagramPacket(buf, buf.length);
-        socket.receive(packet);
-        return TcpPacket.deserialize(packet.getData());
+    public long getFileBytes() {
+        return this.fileBytes;
     }
 
     /**
-     * tears down the connection
+     * @return counters for the last connection
      */
-    private void teardown() {
+    public TransportMetrics getMetrics() {
+        return this.metrics;
+    }
 
+    /**
+     * @return file bytes the last {@link #doTheThing()} sent as references to the server's stored copies
+     */
+    public long getCopiedBytes() {
+        return this.copiedBytes;
     }
 
     /**
-     * Send a single packet
-     * @param tcpPacket packet to send
-     * @throws IOException UDP stuff
+     * Turns on fast open: keep the cookie the server hands out, and send the first segment with the SYN on later
+     * connections to the same server
+     * @param isFastOpen true to use fast open
      */
-    private void sendPacket(TcpPacket tcpPacket) throws IOException {
-        // SETS THE CHECKSUM FIELD IN THE HEADER
-        tcpPacket.calculateChecksum();
-        byte[] tcpPacketBytes = tcpPacket.serialize();
-        DatagramPacket udpPacket = new DatagramPacket(tcpPacketBytes, tcpPacketBytes.length,
-                this.serverAddress, this.port);
-        socket.send(udpPacket);
+    public void setFastOpen(boolean isFastOpen) {
+        this.isFastOpen = isFastOpen;
     }
 
     /**
-     * Creates an empty SYN packet
-     * @param sequenceNumber sequence number to send
-     * @param ackNumber ack number to send
-     * @return the packet
+     * Asks the server to take file contents in deflate blocks. Used only if the server agrees in the handshake.
+     * @param isCompressed true to ask for compression
      */
-    private TcpPacket createSynPacket(int sequenceNumber, int ackNumber) {
-        TcpHeader synHeader = new TcpHeader(sequenceNumber, ackNumber, 0, 0, 1, 0, 0, 0);
-        return new TcpPacket(synHeader, new byte[]{});
+    public void setCompression(boolean isCompressed) {
+        this.isCompressionRequested = isCompressed;
     }
 
     /**
-     * Creates an empty ACK packet
-     * @param sequenceNumber sequence number to send
-     * @param ackNumber ack number to send
-     * @return the packet
+     * Deduplicates uploads against the copies a server that stores files already holds: fetches their signatures
+     * first, then sends only the blocks the server lacks. Used only if the server agrees in the handshake; compression
+     * isn't used with it.
+     * @param isDedup true to deduplicate
+     */
+    public void setDedup(boolean isDedup) {
+        this.isDedupRequested = isDedup;
+    }
+
+    /**
+     * Paces data at a fixed rate. By default the rate spreads the server's window evenly over the smoothed round
+     * trip time.
+     * @param bytesPerSecond pacing rate, 0 for the default
+     */
+    public void setPacingRate(double bytesPerSecond) {
+        this.pacingRate = bytesPerSecond;
+    }
+
+    /**
+     * Asks the server to take a parity segment after every group of data segments, so it can rebuild a lost segment
+     * without a retransmit. Used only if the server agrees in the handshake.
+     * @param groupSize data segments per parity segment, up to {@link ConnectionOptions#MAX_PARITY_GROUP_SIZE}, or 0
+     *                  for none
+     */
+    public void setParityGroupSize(int groupSize) {
+        this.parityGroupSizeRequested = Math.min(Math.max(groupSize, 0), ConnectionOptions.MAX_PARITY_GROUP_SIZE);
+    }
+
+    /**
+     * Downloads files from the server instead of sending them: names the files in the request, closes the client's
+     * side of the connection, and receives the files into a directory
+     * @param directory where the downloaded files are written
+     * @throws IOException UDP crap, the server doesn't serve downloads, or a file didn't arrive intact
+     */
+    public void download(Path directory) throws IOException {
+        List<String> names = new ArrayList<>();
+        for (String name : this.filePath.split(",")) {
+            if (!name.trim().isEmpty()) names.add(name.trim());
+        }
+        byte[] request = String.join("\n", names).getBytes(StandardCharsets.UTF_8);
+        if (request.length > this.maxSegmentSize - 20) {
+            throw new IOException("Too many file names for one download request");
+        }
+        this.isDownloadRequested = true;
+        this.metrics = TransportMetrics.register("client");
+        this.metrics.setRoundTripTimes(0, this.timeout);
+        try {
+            long handshakeStart = this.socket.nanoTime();
+            handshake(new byte[0]);
+            this.handshakeNanos = this.socket.nanoTime() - handshakeStart;
+            if (!this.options.getIsDownload()) {
+                this.connection.reset();
+                throw new IOException("Server doesn't serve downloads");
+            }
+            DownloadReceiver receiver = new DownloadReceiver(this.socket, this.serverAddress, this.port,
+                    this.maxSegmentSize, directory, this.options.getWindowScale(), this.metrics, this.isVerbose);
+            List<FileHeader> received = receiver.receive(request, this.connection.getSequenceNumber(),
+                    this.connection.getServerSequenceNumber());
+            this.fileBytes = 0;
+            for (FileHeader file : received) {
+                this.fileBytes += file.getLength();
+            }
+            if (received.size() < names.size()) {
+                System.err.println("Server sent " + received.size() + " of the " + names.size() + " files requested");
+            }
+            if (this.isVerbose) System.out.print(this.metrics);
+        } finally {
+            this.metrics.unregister();
+        }
+    }
+
+    /**
+     * Expands the file argument into the list of files to send
+     * @param filePath file, directory, or comma separated list of either
+     * @return the files, directory contents in name order
+     * @throws IOException if a directory can't be listed
      */
-    private TcpPacket createAckPacket(int sequenceNumber, int ackNumber) {
-        TcpHeader ackHeader = new TcpHeader(sequenceNumber, ackNumber, 1, 0, 0, 0, 0, 0);
-        return new TcpPacket(ackHeader, new byte[]{});
+    private static List<Path> collectFiles(String filePath) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String name : filePath.split(",")) {
+            Path path = Paths.get(name.trim());
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> children = Files.list(path)) {
+                    List<Path> directoryFiles = children.filter(Files::isRegularFile).collect(Collectors.toList());
+                    Collections.sort(directoryFiles);
+                    files.addAll(directoryFiles);
+                }
+            } else {
+                files.add(path);
+            }
+        }
+        return files;
     }
 
     /**
-     * Creates an empty RST packet
+     * Performs the three way handshake, running a {@link ClientConnection} with blocking receives. With fast open and
+     * a cookie from an earlier connection to this server, the first segment of the stream rides on the SYN.
+     * @param synData stream bytes to send on the SYN, empty for a plain handshake
+     * @throws IOException UDP crap, or no SYN-ACK after every attempt
+     */
+    private void handshake(byte[] synData) throws IOException {
+        boolean isDownloadRequested = this.isDownloadRequested || this.isSignatureQuery;
+        // a plain download has nothing to deduplicate
+        boolean isDedupRequested = this.isDedupRequested && !this.isStreamRequested
+                && (this.isSignatureQuery || !this.isDownloadRequested);
+        boolean isCompressionRequested = this.isCompressionRequested && !this.isStreamRequested && !isDedupRequested;
+        ConnectionOptions requested = new ConnectionOptions(0)
+                .withCompression(isCompressionRequested)
+                .withParityGroupSize(this.parityGroupSizeRequested)
+                .withDownload(isDownloadRequested)
+                .withStream(this.isStreamRequested)
+                .withDedup(isDedupRequested);
+        this.connection = new ClientConnection(this.socket, new InetSocketAddress(this.serverAddress, this.port),
+                this.timeout, this.metrics, this.isVerbose);
+        this.connection.setFastOpen(this.isFastOpen);
+        try {
+            this.connection.open(requested, synData);
+            while (true) {
+                // segments thrown away mustn't push back the SYN's timeout
+                long waitNanos = this.connection.getDeadline() - this.socket.nanoTime();
+                if (waitNanos <= 0) {
+                    this.connection.onTimeout();
+                    continue;
+                }
+                this.socket.setSoTimeout((int) Math.max(waitNanos / 1000000L, 1));
+                TcpPacket packetFromServer;
+                try {
+                    if (this.isVerbose) System.out.println("Waiting for SYN-ACK...");
+                    packetFromServer = receivePacketOrTimeout();
+                } catch (SocketTimeoutException e) {
+                    // the deadline check above resends the SYN
+                    continue;
+                }
+                if (this.connection.onHandshakeSegment(packetFromServer)) break;
+            }
+        } finally {
+            this.socket.setSoTimeout(this.timeout);
+        }
+        this.options = this.connection.getOptions();
+    }
+
+    /**
+     * Receives a packet within a given timeout
      * @return the packet
+     * @throws IOException if there is a timeout
      */
-    private TcpPacket createRstPacket() {
-        return new TcpPacket(new TcpHeader(0, 0, 0, 1, 0, 0, 0, 0), new byte[0]);
+    private TcpPacket receivePacketOrTimeout() throws IOException {
+        byte[] buf = new byte[this.maxSegmentSize];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        socket.receive(packet);
+        this.metrics.segmentReceived(packet.getLength());
+        return TcpPacket.deserialize(Arrays.copyOf(packet.getData(), packet.getLength()));
+    }
+
+    /**
+     * Tears down the connection: sends FIN, waits for the server's FIN-ACK and acknowledges it
+     * @param finSequenceNumber stream offset following the last data byte
+     * @throws IOException UDP stuff
+     */
+    private void teardown(long finSequenceNumber) throws IOException {
+        this.connection.close(finSequenceNumber);
+        boolean isClosed = false;
+        while (!isClosed) {
+            try {
+                isClosed = this.connection.onCloseSegment(receivePacketOrTimeout());
+            } catch (SocketTimeoutException e) {
+                if (!this.connection.onTimeout()) break;
+            }
+        }
+        if (this.isVerbose) {
+            System.out.println(isClosed ? "Connection closed on client" : "Gave up waiting for FIN-ACK");
+            System.out.print(this.metrics);
+        }
+        this.metrics.unregister();
     }
 }
@@ -0,0 +1,327 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client side of a connection's handshake and close, apart from how it's driven: the SYN, asking for options and,
+ * with fast open, carrying the first segment of the stream; what the SYN-ACK agreed to; the FIN and the reset. Drivers
+ * hand it the segments they receive and tell it when its deadline passes, and it sends through the transport.
+ * {@link Client} drives it with blocking receives and {@link TransferClient} from its I/O thread; both run the data
+ * in between through a {@link StreamSender}.
+ * <p>
+ * The SYN is retransmitted with exponential backoff, starting at the retransmit timeout and capped at
+ * MAX_SYN_TIMEOUT; the handshake fails after MAX_SYN_ATTEMPTS. Anything but a SYN-ACK for this connection's SYN, such
+ * as a stray segment from an earlier connection on the same port, is ignored and leaves the timer alone. The initial
+ * sequence number runs off the transport's clock, as in RFC 793, so a SYN-ACK meant for an earlier connection doesn't
+ * acknowledge this one's. The close gives up after MAX_FIN_ATTEMPTS timeouts, the server times out its half on its
+ * own.
+ */
+public class ClientConnection {
+    private static final int MAX_SYN_ATTEMPTS = 6;
+    private static final long MAX_SYN_TIMEOUT = 8000;
+    private static final int MAX_FIN_ATTEMPTS = 5;
+    private static final int COOKIE_LENGTH = ConnectionCookies.FAST_OPEN_COOKIE_LENGTH;
+    // fast open cookies handed out by each server, kept for later connections from this JVM
+    private static final Map<InetSocketAddress, byte[]> fastOpenCookies = new ConcurrentHashMap<>();
+
+    private final DatagramSender socket;
+    private final InetSocketAddress server;
+    private final int timeout;
+    private final TransportMetrics metrics;
+    private final boolean isVerbose;
+    private TcpConnectionState state = TcpConnectionState.CLOSED;
+    private boolean isFastOpen;
+    private ConnectionOptions requested;
+    // options the server agreed to in the handshake
+    private ConnectionOptions options;
+    private TcpPacket synPacket;
+    private int initialSequenceNumber;
+    private int synDataLength;
+    private FlightEvents.Handshake event;
+    // SYN or FIN attempts so far, and when the current one times out
+    private int attempts;
+    private long deadline;
+    private long sequenceNumber;
+    private long serverSequenceNumber;
+    private boolean isSynDataAcked;
+    private TcpPacket finPacket;
+    private int finAckNumber;
+
+    /**
+     * Constructs the connection, closed until {@link #open(ConnectionOptions, byte[])}
+     * @param socket transport to send on
+     * @param server address and port of the server
+     * @param timeout retransmit timeout in milliseconds
+     * @param metrics connection metrics
+     * @param isVerbose print each step
+     */
+    public ClientConnection(DatagramSender socket, InetSocketAddress server, int timeout, TransportMetrics metrics,
+                            boolean isVerbose) {
+        this.socket = socket;
+        this.server = server;
+        this.timeout = timeout;
+        this.metrics = metrics;
+        this.isVerbose = isVerbose;
+    }
+
+    /**
+     * Turns on fast open: keep the cookie the server hands out, and send data with the SYN once there is one
+     * @param isFastOpen true to use fast open
+     */
+    public void setFastOpen(boolean isFastOpen) {
+        this.isFastOpen = isFastOpen;
+    }
+
+    /**
+     * @param server address and port of a server
+     * @return true if the server handed out a fast open cookie on an earlier connection from this JVM
+     */
+    public static boolean hasFastOpenCookie(InetSocketAddress server) {
+        return fastOpenCookies.containsKey(server);
+    }
+
+    /**
+     * Starts the handshake by sending the first SYN
+     * @param requested options to ask the server for
+     * @param synData first bytes of the stream, sent on the SYN if fast open has a cookie for the server, or empty
+     * @throws IOException UDP stuff
+     */
+    public void open(ConnectionOptions requested, byte[] synData) throws IOException {
+        if (this.isVerbose) System.out.println("Starting three-way handshake on client");
+        byte[] cookie = this.isFastOpen ? fastOpenCookies.get(this.server) : null;
+        byte[] synPayload = new byte[0];
+        if (cookie != null && synData.length > 0) {
+            if (this.isVerbose) System.out.println("Sending " + synData.length + " bytes with the SYN");
+            synPayload = Utils.concatAll(cookie, synData);
+            this.synDataLength = synData.length;
+        }
+        this.requested = requested;
+        // ticks about every 4 microseconds
+        this.initialSequenceNumber = (int) (this.socket.nanoTime() >>> 12);
+        this.synPacket = new TcpPacket(new TcpHeader(this.initialSequenceNumber, 0, 0, 0, 1, 0,
+                requested.toWindowField(), 0), synPayload);
+        this.event = new FlightEvents.Handshake();
+        this.event.begin();
+        this.event.server = this.server.toString();
+        this.event.synDataBytes = this.synDataLength;
+        this.state = TcpConnectionState.SYN_SENT;
+        this.attempts = 0;
+        sendSyn();
+    }
+
+    /**
+     * Tells the connection its deadline passed: resends the SYN or the FIN
+     * @return false if the close gave up waiting for the FIN-ACK
+     * @throws IOException UDP stuff, or no SYN-ACK after every attempt
+     */
+    public boolean onTimeout() throws IOException {
+        if (this.state == TcpConnectionState.SYN_SENT) {
+            if (this.isVerbose) System.out.println("Timed out waiting for SYN-ACK from server");
+            sendSyn();
+            return true;
+        }
+        if (this.attempts == MAX_FIN_ATTEMPTS) {
+            this.state = TcpConnectionState.CLOSED;
+            return false;
+        }
+        if (this.isVerbose) System.out.println("Timed out waiting for FIN-ACK, resending FIN...");
+        sendFin();
+        return true;
+    }
+
+    /**
+     * Takes a segment from the server during the handshake. A SYN-ACK acknowledging this connection's SYN establishes
+     * the connection; anything else is thrown away, and the SYN goes again only when the timer runs out.
+     * @param packet the segment
+     * @return true if the connection is now established
+     * @throws IOException UDP stuff
+     */
+    public boolean onHandshakeSegment(TcpPacket packet) throws IOException {
+        TcpHeader header = packet.getHeader();
+        if (!packet.validateChecksum()) {
+            this.metrics.checksumFailure();
+            if (this.isVerbose) {
+                System.out.println("Received corrupt packet while waiting for SYN-ACK, throwing away...");
+            }
+            return false;
+        }
+        if (header.getIsRst() == 1 || !(header.getIsSyn() == 1 && header.getIsAck() == 1)) {
+            if (this.isVerbose) System.out.println("Received packet with wrong CTRL, throwing away...");
+            return false;
+        }
+        // the server acknowledges the SYN, and the data on it if it took that
+        int ackNumber = header.getAckNumber();
+        boolean isSynDataAcked = this.synDataLength > 0
+                && ackNumber == this.initialSequenceNumber + 1 + this.synDataLength;
+        if (ackNumber != this.initialSequenceNumber + 1 && !isSynDataAcked) {
+            if (this.isVerbose) System.out.println("Received SYN-ACK for another SYN, throwing away...");
+            return false;
+        }
+        // received ACK for own SYN, connection is established
+        if (this.isVerbose) {
+            System.out.println("Received SYN-ACK from server");
+            System.out.println("Connection established on client!");
+            System.out.println("Sending ACK...");
+        }
+        if (this.isFastOpen && packet.getData().length == COOKIE_LENGTH) {
+            fastOpenCookies.put(this.server, packet.getData());
+        }
+        // the SYN-ACK's window field carries the options the server agreed to
+        ConnectionOptions agreed = ConnectionOptions.fromWindowField(header.getWindow());
+        this.options = new ConnectionOptions(agreed.getWindowScale())
+                .withCompression(this.requested.getIsCompressed() && agreed.getIsCompressed())
+                .withParityGroupSize(Math.min(agreed.getParityGroupSize(), this.requested.getParityGroupSize()))
+                .withDownload(this.requested.getIsDownload() && agreed.getIsDownload())
+                .withStream(this.requested.getIsStream() && agreed.getIsStream())
+                .withDedup(this.requested.getIsDedup() && agreed.getIsDedup());
+        if (this.isVerbose && this.options.getIsCompressed()) System.out.println("Server agreed to compression");
+        if (this.isVerbose && this.options.getParityGroupSize() > 0) {
+            System.out.println("Server agreed to a parity segment every " + this.options.getParityGroupSize()
+                    + " segments");
+        }
+        // sequence number increments even though no data was sent, special case
+        this.sequenceNumber = (this.initialSequenceNumber & 0xFFFFFFFFL) + 1;
+        this.serverSequenceNumber = (header.getSequenceNumber() & 0xFFFFFFFFL) + 1;
+        this.isSynDataAcked = isSynDataAcked;
+        if (this.isSynDataAcked) {
+            if (this.isVerbose) System.out.println("Server accepted the data sent with the SYN");
+            this.sequenceNumber += this.synDataLength;
+        }
+        sendPacket(new TcpPacket(new TcpHeader(SequenceNumbers.wrap(this.sequenceNumber),
+                header.getSequenceNumber() + 1, 1, 0, 0, 0, 0, 0), new byte[0]));
+        this.state = TcpConnectionState.ESTABLISHED;
+        this.event.isEstablished = true;
+        this.event.commit();
+        return true;
+    }
+
+    /**
+     * Starts the close by sending the FIN
+     * @param finSequenceNumber stream offset following the last data byte
+     * @throws IOException UDP stuff
+     */
+    public void close(long finSequenceNumber) throws IOException {
+        if (this.isVerbose) System.out.println("Sending FIN...");
+        this.finAckNumber = SequenceNumbers.wrap(finSequenceNumber + 1);
+        this.finPacket = new TcpPacket(new TcpHeader(SequenceNumbers.wrap(finSequenceNumber), 0, 0, 0, 0, 1, 0, 0),
+                new byte[0]);
+        this.state = TcpConnectionState.FIN_WAIT_1;
+        this.attempts = 0;
+        sendFin();
+    }
+
+    /**
+     * Takes a segment from the server during the close, acknowledging the FIN-ACK
+     * @param packet the segment
+     * @return true if it was the FIN-ACK and the connection is now closed
+     * @throws IOException UDP stuff
+     */
+    public boolean onCloseSegment(TcpPacket packet) throws IOException {
+        TcpHeader header = packet.getHeader();
+        // ACKs for data are still arriving, skip everything but the FIN-ACK
+        if (!packet.validateChecksum() || header.getIsFin() != 1 || header.getIsAck() != 1
+                || header.getAckNumber() != this.finAckNumber) {
+            return false;
+        }
+        if (this.isVerbose) System.out.println("Received FIN-ACK from server, sending ACK...");
+        sendPacket(new TcpPacket(new TcpHeader(this.finAckNumber, header.getSequenceNumber() + 1, 1, 0, 0, 0, 0, 0),
+                new byte[0]));
+        this.state = TcpConnectionState.CLOSED;
+        return true;
+    }
+
+    /**
+     * Resets the connection, for one that failed or that the client gave up on
+     * @throws IOException UDP stuff
+     */
+    public void reset() throws IOException {
+        if (this.state == TcpConnectionState.SYN_SENT) this.event.commit();
+        this.state = TcpConnectionState.CLOSED;
+        sendPacket(new TcpPacket(new TcpHeader(0, 0, 0, 1, 0, 0, 0, 0), new byte[0]));
+    }
+
+    public TcpConnectionState getState() {
+        return this.state;
+    }
+
+    /**
+     * @return when the SYN or FIN sent last times out, in nanoseconds on the transport's clock
+     */
+    public long getDeadline() {
+        return this.deadline;
+    }
+
+    /**
+     * @return how long the SYN sent last waits for the SYN-ACK, in milliseconds
+     */
+    private int getSynTimeoutMillis() {
+        return (int) Math.min((long) this.timeout << Math.max(this.attempts - 1, 0), MAX_SYN_TIMEOUT);
+    }
+
+    /**
+     * @return options the server agreed to, once established
+     */
+    public ConnectionOptions getOptions() {
+        return this.options;
+    }
+
+    /**
+     * @return stream offset of the first byte to send after the handshake
+     */
+    public long getSequenceNumber() {
+        return this.sequenceNumber;
+    }
+
+    /**
+     * @return stream offset of the first byte the server sends, on a download
+     */
+    public long getServerSequenceNumber() {
+        return this.serverSequenceNumber;
+    }
+
+    /**
+     * @return true if the server took the data sent with the SYN
+     */
+    public boolean isSynDataAcked() {
+        return this.isSynDataAcked;
+    }
+
+    /**
+     * Sends the SYN for the next attempt
+     * @throws IOException UDP stuff, or every attempt is used up
+     */
+    private void sendSyn() throws IOException {
+        if (this.attempts == MAX_SYN_ATTEMPTS) {
+            this.state = TcpConnectionState.CLOSED;
+            this.event.commit();
+            throw new IOException("No SYN-ACK from server after " + MAX_SYN_ATTEMPTS + " attempts");
+        }
+        this.attempts++;
+        this.event.attempts = this.attempts;
+        if (this.isVerbose) System.out.println("Sending SYN...");
+        sendPacket(this.synPacket);
+        if (this.attempts > 1) this.metrics.retransmit();
+        this.deadline = this.socket.nanoTime() + getSynTimeoutMillis() * 1000000L;
+    }
+
+    private void sendFin() throws IOException {
+        this.attempts++;
+        sendPacket(this.finPacket);
+        this.deadline = this.socket.nanoTime() + this.timeout * 1000000L;
+    }
+
+    /**
+     * Send a single packet
+     * @param tcpPacket packet to send
+     * @throws IOException UDP stuff
+     */
+    private void sendPacket(TcpPacket tcpPacket) throws IOException {
+        // SETS THE CHECKSUM FIELD IN THE HEADER
+        tcpPacket.calculateChecksum();
+        byte[] tcpPacketBytes = tcpPacket.serialize();
+        this.socket.send(new DatagramPacket(tcpPacketBytes, tcpPacketBytes.length, this.server));
+        this.metrics.segmentSent(tcpPacketBytes.length);
+    }
+}
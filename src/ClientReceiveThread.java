@@ -1,10 +1,74 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+/**
+ * Receives the peer's ACKs while the send thread streams data, and feeds them and its retransmit timeouts to the
+ * {@link StreamSender} the send thread sends through. Runs until every byte is acknowledged or the connection fails.
+ */
 public class ClientReceiveThread extends Thread {
-    public ClientReceiveThread() {
+    private DatagramTransport socket;
+    private int maxSegmentSize;
+    private StreamSender sender;
+    private SendWindow sendWindow;
+    private TransportMetrics metrics;
+    private SocketAddress peer;
+
+    /**
+     * Constructs the receive thread
+     * @param socket transport to receive on, with the retransmit timeout as its receive timeout
+     * @param maxSegmentSize max segment size to receive
+     * @param sender sending half of the connection, shared with the send thread
+     * @param metrics connection metrics
+     * @param peer address ACKs come from, packets from anywhere else are ignored
+     */
+    public ClientReceiveThread(DatagramTransport socket, int maxSegmentSize, StreamSender sender,
+                               TransportMetrics metrics, SocketAddress peer) {
         super("ReceiveThread");
+        this.socket = socket;
+        this.maxSegmentSize = maxSegmentSize;
+        this.sender = sender;
+        this.sendWindow = sender.getSendWindow();
+        this.metrics = metrics;
+        this.peer = peer;
     }
 
     @Override
     public void run() {
+        try {
+            while (!this.sendWindow.isComplete() && !this.sendWindow.isFailed()) {
+                TcpPacket packetFromPeer;
+                try {
+                    packetFromPeer = receivePacket();
+                } catch (SocketTimeoutException e) {
+                    // nothing to retransmit if the send thread is just slow
+                    this.sender.onTimeout();
+                    continue;
+                }
+                if (packetFromPeer != null) this.sender.onSegment(packetFromPeer);
+            }
+        } catch (IOException e) {
+            this.sendWindow.fail(e);
+        } catch (RuntimeException e) {
+            // the send thread is waiting on the window, don't leave it there
+            this.sendWindow.fail(new IOException(e));
+            throw e;
+        }
+    }
 
+    /**
+     * Receives one packet
+     * @return the packet, or null if it came from someone other than the peer
+     * @throws IOException on timeout or UDP trouble
+     */
+    private TcpPacket receivePacket() throws IOException {
+        byte[] buf = new byte[this.maxSegmentSize];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        this.socket.receive(packet);
+        if (!this.peer.equals(packet.getSocketAddress())) return null;
+        this.metrics.segmentReceived(packet.getLength());
+        return TcpPacket.deserialize(Arrays.copyOf(packet.getData(), packet.getLength()));
     }
 }
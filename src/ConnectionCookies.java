@@ -0,0 +1,122 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Server-side keyed cookies. A fast open cookie is a truncated HMAC of the client's address under a secret chosen when
+ * the server starts, so the server can recognize a client it has already completed a handshake with without keeping
+ * any per-client state.
+ * <p>
+ * A SYN cookie is the server's initial sequence number, chosen so that the final ACK of the handshake proves the client
+ * got the SYN-ACK and carries everything the server needs to set up the connection, so a SYN costs the server no memory:
+ * <pre>
+ *   bits 28-31  time slot, SLOT_NANOS long, counted modulo 16
+ *   bits 20-27  features agreed, {@link ConnectionOptions#toFeatureBits()}
+ *   bits 0-19   HMAC of the client's address, port and initial sequence number, the full time slot and the features
+ * </pre>
+ */
+public class ConnectionCookies {
+    public static final int FAST_OPEN_COOKIE_LENGTH = 8;
+    private static final long SLOT_NANOS = 64000000000L;
+    // a cookie is accepted in the slot it was issued in and the next, between one and two slots
+    private static final int MAX_SLOT_AGE = 1;
+    private static final int SLOT_SHIFT = 28;
+    private static final int FEATURE_SHIFT = 20;
+    private static final int MAC_MASK = (1 << FEATURE_SHIFT) - 1;
+
+    private final Mac mac;
+
+    /**
+     * Constructs the cookie generator with a fresh random secret
+     * @throws GeneralSecurityException if HmacSHA256 isn't available, this shouldn't happen
+     */
+    public ConnectionCookies() throws GeneralSecurityException {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.mac = Mac.getInstance("HmacSHA256");
+        this.mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+    }
+
+    /**
+     * Creates the fast open cookie for a client
+     * @param clientAddress the client's address
+     * @return the cookie
+     */
+    public byte[] fastOpenCookie(InetAddress clientAddress) {
+        byte[] hash;
+        synchronized (this.mac) {
+            hash = this.mac.doFinal(clientAddress.getAddress());
+        }
+        return Arrays.copyOf(hash, FAST_OPEN_COOKIE_LENGTH);
+    }
+
+    /**
+     * Checks a fast open cookie presented by a client
+     * @param cookie the cookie
+     * @param clientAddress the client's address
+     * @return true if this server issued the cookie to that address
+     */
+    public boolean isValidFastOpenCookie(byte[] cookie, InetAddress clientAddress) {
+        return MessageDigest.isEqual(cookie, fastOpenCookie(clientAddress));
+    }
+
+    /**
+     * Creates the SYN cookie to send as the initial sequence number of a SYN-ACK
+     * @param clientAddress the client's address
+     * @param clientPort the client's port
+     * @param clientSequenceNumber sequence number of the client's SYN
+     * @param agreed options the server agreed to
+     * @param now current time in nanoseconds, from the transport's clock
+     * @return the cookie
+     */
+    public int synCookie(InetAddress clientAddress, int clientPort, int clientSequenceNumber,
+                         ConnectionOptions agreed, long now) {
+        long slot = Math.floorDiv(now, SLOT_NANOS);
+        int features = agreed.toFeatureBits();
+        return (int) (slot << SLOT_SHIFT) | features << FEATURE_SHIFT
+                | synCookieMac(clientAddress, clientPort, clientSequenceNumber, slot, features);
+    }
+
+    /**
+     * Checks the SYN cookie acknowledged by a client and recovers the options it carries
+     * @param cookie the cookie, one less than the client's ACK number
+     * @param clientAddress the client's address
+     * @param clientPort the client's port
+     * @param clientSequenceNumber one less than the sequence number of the client's segment
+     * @param windowScale the server's window scale, which the cookie has no room for
+     * @param now current time in nanoseconds, from the transport's clock
+     * @return the options agreed in the SYN-ACK, or null if this server didn't issue the cookie to that client
+     *         recently
+     */
+    public ConnectionOptions checkSynCookie(int cookie, InetAddress clientAddress, int clientPort,
+                                            int clientSequenceNumber, int windowScale, long now) {
+        long currentSlot = Math.floorDiv(now, SLOT_NANOS);
+        long age = (currentSlot - (cookie >>> SLOT_SHIFT)) & 0xF;
+        if (age > MAX_SLOT_AGE) return null;
+        int features = (cookie >>> FEATURE_SHIFT) & ConnectionOptions.FEATURE_MASK;
+        int mac = synCookieMac(clientAddress, clientPort, clientSequenceNumber, currentSlot - age, features);
+        if ((cookie & MAC_MASK) != mac) return null;
+        return ConnectionOptions.fromFeatureBits(features, windowScale);
+    }
+
+    private int synCookieMac(InetAddress clientAddress, int clientPort, int clientSequenceNumber, long slot,
+                             int features) {
+        byte[] address = clientAddress.getAddress();
+        ByteBuffer input = ByteBuffer.allocate(address.length + 17)
+                .put(address)
+                .putInt(clientPort)
+                .putInt(clientSequenceNumber)
+                .putLong(slot)
+                .put((byte) features);
+        byte[] hash;
+        synchronized (this.mac) {
+            hash = this.mac.doFinal(input.array());
+        }
+        return ByteBuffer.wrap(hash).getInt() & MAC_MASK;
+    }
+}
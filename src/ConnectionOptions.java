@@ -0,0 +1,167 @@
+/**
+ * Options negotiated in the handshake, carried in the window field of the SYN and SYN-ACK since neither has a window
+ * to advertise yet. The client asks for features on its SYN; the server answers with the features it agreed to and
+ * its window scale.
+ * <pre>
+ *   bits 0-3  window scale shift (SYN-ACK only)
+ *   bit 4     compress file data in deflate blocks
+ *   bits 5-8  data segments per parity segment, 0 for no forward error correction
+ *   bit 9     download: the client's stream is a request and the server sends the files back
+ *   bit 10    stream: raw application bytes with no file headers, read by the server's application
+ *   bit 11    dedup: file contents are {@link DeltaEncoder} pieces against the server's stored copy; with download,
+ *             the client names files and the server sends their {@link BlockSignatures} back
+ * </pre>
+ */
+public class ConnectionOptions {
+    private static final int WINDOW_SCALE_MASK = 0xF;
+    private static final int FEATURE_SHIFT = 4;
+    // every bit above the window scale, all that a SYN cookie keeps
+    public static final int FEATURE_MASK = 0xFF;
+    private static final int COMPRESSION = 1 << 4;
+    private static final int PARITY_GROUP_SHIFT = 5;
+    public static final int MAX_PARITY_GROUP_SIZE = 15;
+    private static final int DOWNLOAD = 1 << 9;
+    private static final int STREAM = 1 << 10;
+    private static final int DEDUP = 1 << 11;
+
+    private int windowScale;
+    private boolean isCompressed;
+    private int parityGroupSize;
+    private boolean isDownload;
+    private boolean isStream;
+    private boolean isDedup;
+
+    /**
+     * Constructs options with only the window scale set and every feature off. Options are immutable, the with methods
+     * return changed copies.
+     * @param windowScale shift applied to every advertised window
+     */
+    public ConnectionOptions(int windowScale) {
+        this.windowScale = windowScale;
+    }
+
+    private ConnectionOptions copy() {
+        ConnectionOptions copy = new ConnectionOptions(this.windowScale);
+        copy.isCompressed = this.isCompressed;
+        copy.parityGroupSize = this.parityGroupSize;
+        copy.isDownload = this.isDownload;
+        copy.isStream = this.isStream;
+        copy.isDedup = this.isDedup;
+        return copy;
+    }
+
+    /**
+     * @param isCompressed file data is sent in compressed blocks
+     * @return a copy with compression set
+     */
+    public ConnectionOptions withCompression(boolean isCompressed) {
+        ConnectionOptions copy = copy();
+        copy.isCompressed = isCompressed;
+        return copy;
+    }
+
+    /**
+     * @param parityGroupSize data segments covered by each parity segment, 0 for none
+     * @return a copy with the parity group size set
+     */
+    public ConnectionOptions withParityGroupSize(int parityGroupSize) {
+        ConnectionOptions copy = copy();
+        copy.parityGroupSize = parityGroupSize;
+        return copy;
+    }
+
+    /**
+     * @param isDownload the server sends the files the client names
+     * @return a copy with download set
+     */
+    public ConnectionOptions withDownload(boolean isDownload) {
+        ConnectionOptions copy = copy();
+        copy.isDownload = isDownload;
+        return copy;
+    }
+
+    /**
+     * @param isStream the client's stream is raw bytes rather than files
+     * @return a copy with stream set
+     */
+    public ConnectionOptions withStream(boolean isStream) {
+        ConnectionOptions copy = copy();
+        copy.isStream = isStream;
+        return copy;
+    }
+
+    /**
+     * @param isDedup file data is sent as pieces of a delta, or with download, signatures are sent back
+     * @return a copy with dedup set
+     */
+    public ConnectionOptions withDedup(boolean isDedup) {
+        ConnectionOptions copy = copy();
+        copy.isDedup = isDedup;
+        return copy;
+    }
+
+    /**
+     * Decodes the options from a SYN or SYN-ACK
+     * @param window the header's window field
+     * @return the options
+     */
+    public static ConnectionOptions fromWindowField(int window) {
+        return new ConnectionOptions(Math.min(window & WINDOW_SCALE_MASK, SequenceNumbers.MAX_WINDOW_SCALE))
+                .withCompression((window & COMPRESSION) != 0)
+                .withParityGroupSize((window >>> PARITY_GROUP_SHIFT) & MAX_PARITY_GROUP_SIZE)
+                .withDownload((window & DOWNLOAD) != 0)
+                .withStream((window & STREAM) != 0)
+                .withDedup((window & DEDUP) != 0);
+    }
+
+    /**
+     * @return the options encoded for the window field of a SYN or SYN-ACK
+     */
+    public int toWindowField() {
+        return (this.windowScale & WINDOW_SCALE_MASK) | (this.isCompressed ? COMPRESSION : 0)
+                | ((this.parityGroupSize & MAX_PARITY_GROUP_SIZE) << PARITY_GROUP_SHIFT)
+                | (this.isDownload ? DOWNLOAD : 0) | (this.isStream ? STREAM : 0)
+                | (this.isDedup ? DEDUP : 0);
+    }
+
+    /**
+     * Decodes the options kept in a SYN cookie
+     * @param features bits from {@link #toFeatureBits()}
+     * @param windowScale shift applied to every advertised window
+     * @return the options
+     */
+    public static ConnectionOptions fromFeatureBits(int features, int windowScale) {
+        return fromWindowField((features & FEATURE_MASK) << FEATURE_SHIFT | windowScale);
+    }
+
+    /**
+     * @return the options except the window scale, in the 8 bits a SYN cookie has room for
+     */
+    public int toFeatureBits() {
+        return (toWindowField() >>> FEATURE_SHIFT) & FEATURE_MASK;
+    }
+
+    public int getWindowScale() {
+        return this.windowScale;
+    }
+
+    public boolean getIsCompressed() {
+        return this.isCompressed;
+    }
+
+    public int getParityGroupSize() {
+        return this.parityGroupSize;
+    }
+
+    public boolean getIsDownload() {
+        return this.isDownload;
+    }
+
+    public boolean getIsStream() {
+        return this.isStream;
+    }
+
+    public boolean getIsDedup() {
+        return this.isDedup;
+    }
+}
@@ -0,0 +1,33 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The sending half of a {@link DatagramTransport}, with the clock segments are timed by. Enough for the connection
+ * code shared by {@link Client} and {@link TransferClient}, whose I/O thread reads its channels itself.
+ */
+public interface DatagramSender {
+    /**
+     * Sends a datagram to the address set on the packet
+     * @param packet packet to send
+     * @throws IOException if the datagram can't be sent
+     */
+    void send(DatagramPacket packet) throws IOException;
+
+    /**
+     * @return the current time in nanoseconds on the clock the transport's timeouts run on
+     */
+    default long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Waits on the clock the transport's timeouts run on. May return early.
+     * @param nanos how long to wait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    default void sleepNanos(long nanos) throws InterruptedException {
+        LockSupport.parkNanos(nanos);
+        if (Thread.interrupted()) throw new InterruptedException();
+    }
+}
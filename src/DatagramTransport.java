@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The subset of {@link java.net.DatagramSocket} the client and server use. Lets the protocol run over a real UDP
+ * socket ({@link UdpTransport}) or an in-process {@link SimulatedNetwork}.
+ */
+public interface DatagramTransport extends DatagramSender {
+    /**
+     * Blocks until a datagram arrives or the timeout expires. Fills in the packet's data, length and source address.
+     * @param packet packet to receive into
+     * @throws java.net.SocketTimeoutException if the timeout expires
+     * @throws IOException if the datagram can't be received
+     */
+    void receive(DatagramPacket packet) throws IOException;
+
+    /**
+     * Sets the receive timeout
+     * @param timeout timeout in milliseconds, 0 for none
+     * @throws SocketException if the timeout can't be set
+     */
+    void setSoTimeout(int timeout) throws SocketException;
+
+    /**
+     * Releases the transport
+     */
+    void close();
+
+    /**
+     * Waits on a monitor the caller holds, like {@link Object#wait()}, on the clock the transport's timeouts run on.
+     * Threads sharing the transport wait on each other through this and {@link #signalAll(Object)} so a scheduled
+     * transport can tell when they are all blocked. May return early.
+     * @param monitor the monitor, held by the caller
+     * @param timeoutNanos how long to wait at most, 0 to wait for a signal
+     * @throws InterruptedException if interrupted while waiting
+     */
+    default void await(Object monitor, long timeoutNanos) throws InterruptedException {
+        if (timeoutNanos > 0) {
+            TimeUnit.NANOSECONDS.timedWait(monitor, timeoutNanos);
+        } else {
+            monitor.wait();
+        }
+    }
+
+    /**
+     * Wakes every thread in {@link #await(Object, long)} on a monitor the caller holds
+     * @param monitor the monitor
+     */
+    default void signalAll(Object monitor) {
+        monitor.notifyAll();
+    }
+
+    /**
+     * Starts a thread that will use the transport
+     * @param thread the thread, not yet started
+     */
+    default void start(Thread thread) {
+        thread.start();
+    }
+
+    /**
+     * Waits for a thread started with {@link #start(Thread)} to finish
+     * @param thread the thread
+     * @throws InterruptedException if interrupted while waiting
+     */
+    default void join(Thread thread) throws InterruptedException {
+        thread.join();
+    }
+}
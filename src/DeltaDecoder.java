@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Server side of {@link DeltaEncoder}. Takes a file's data segments in order, reassembles the framed pieces they
+ * carry, which may span segments, and rebuilds the file: literals as they are, references by reading the block from
+ * the server's copy of the file.
+ */
+public class DeltaDecoder {
+    private final ByteBuffer header = ByteBuffer.allocate(DeltaEncoder.HEADER_LENGTH);
+    private FileChannel base;
+    private BlockSignatures signatures;
+    private byte[] literal;
+    private int literalFilled;
+
+    /**
+     * Forgets any partial piece, ready for the next file
+     * @param base the server's copy that references point into, or null if it has none
+     * @param signatures the signature the client was sent for that copy, or null
+     */
+    public void reset(FileChannel base, BlockSignatures signatures) {
+        this.header.clear();
+        this.literal = null;
+        this.literalFilled = 0;
+        this.base = base;
+        this.signatures = signatures;
+    }
+
+    /**
+     * Adds the next data segment
+     * @param data segment payload
+     * @param sink receives the rebuilt file contents
+     * @throws IOException if a piece is corrupt or refers to a block the server doesn't have
+     */
+    public void feed(byte[] data, BlockDecompressor.Sink sink) throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            if (this.literal == null) {
+                int count = Math.min(this.header.remaining(), data.length - offset);
+                this.header.put(data, offset, count);
+                offset += count;
+                if (this.header.hasRemaining()) return;
+                this.header.flip();
+                byte type = this.header.get();
+                int value = this.header.getInt();
+                this.header.clear();
+                if (type == DeltaEncoder.COPY) {
+                    sink.accept(readBlock(value));
+                    continue;
+                }
+                if (type != DeltaEncoder.LITERAL || value < 0 || value > DeltaEncoder.MAX_LITERAL_LENGTH) {
+                    throw new IOException("Bad delta piece " + type + " of length " + value);
+                }
+                this.literal = new byte[value];
+                this.literalFilled = 0;
+            }
+            int count = Math.min(this.literal.length - this.literalFilled, data.length - offset);
+            System.arraycopy(data, offset, this.literal, this.literalFilled, count);
+            this.literalFilled += count;
+            offset += count;
+            if (this.literalFilled == this.literal.length) {
+                byte[] completed = this.literal;
+                this.literal = null;
+                sink.accept(completed);
+            }
+        }
+    }
+
+    private byte[] readBlock(int index) throws IOException {
+        if (this.base == null || index < 0 || index >= this.signatures.getBlockCount()) {
+            throw new IOException("Delta refers to block " + index + ", which the server doesn't have");
+        }
+        ByteBuffer block = ByteBuffer.allocate(this.signatures.getBlockLength(index));
+        long position = (long) index * this.signatures.getBlockSize();
+        while (block.hasRemaining()) {
+            if (this.base.read(block, position + block.position()) == -1) {
+                throw new IOException("Server's copy shrank under block " + index);
+            }
+        }
+        return block.array();
+    }
+}
@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Client side of block-level deduplication. Describes a file as the bytes the server lacks plus references to blocks
+ * of the server's copy, found by sliding the {@link BlockSignatures} weak checksum over the file. Each piece is framed
+ * so the server's {@link DeltaDecoder} can split the stream back up:
+ * <pre>
+ *   1 byte   LITERAL or COPY
+ *   4 bytes  LITERAL: number of bytes that follow; COPY: index of a block in the server's copy, big endian
+ *   rest     LITERAL only: the bytes
+ * </pre>
+ */
+public class DeltaEncoder {
+    public static final int HEADER_LENGTH = 5;
+    public static final byte LITERAL = 0;
+    public static final byte COPY = 1;
+    public static final int MAX_LITERAL_LENGTH = 64 * 1024;
+
+    /**
+     * Receives the framed pieces in order
+     */
+    public interface Sink {
+        void accept(byte[] data) throws IOException, InterruptedException;
+    }
+
+    private final BlockSignatures signatures;
+    // first 16 bits of the weak checksum, checked before the map so most positions cost no lookup
+    private final BitSet tags = new BitSet(1 << 16);
+    private final Map<Integer, int[]> blocksByWeakSum = new HashMap<>();
+    private final MessageDigest md5Digest;
+    private long copiedBytes;
+
+    /**
+     * Indexes the server's signature
+     * @param signatures signature of the server's copy, or null if it has none
+     * @throws IOException if MD5 isn't available
+     */
+    public DeltaEncoder(BlockSignatures signatures) throws IOException {
+        this.signatures = signatures;
+        this.md5Digest = BlockSignatures.md5();
+        if (signatures == null) return;
+        // only full blocks are looked for at every offset, a short last block only at the end of the file
+        int fullBlocks = (int) (signatures.getLength() / signatures.getBlockSize());
+        for (int i = 0; i < fullBlocks; i++) {
+            int weakSum = signatures.getWeakSum(i);
+            this.tags.set(tag(weakSum));
+            int[] blocks = this.blocksByWeakSum.get(weakSum);
+            if (blocks == null) {
+                this.blocksByWeakSum.put(weakSum, new int[]{i});
+            } else if (blocks.length < 8) {
+                // a run of identical blocks, such as zeros, needs only one entry to be found
+                int[] grown = Arrays.copyOf(blocks, blocks.length + 1);
+                grown[blocks.length] = i;
+                this.blocksByWeakSum.put(weakSum, grown);
+            }
+        }
+    }
+
+    /**
+     * Encodes a file
+     * @param file the file's contents
+     * @param sink receives the framed pieces, literals at most MAX_LITERAL_LENGTH bytes each
+     * @throws IOException if the sink fails
+     * @throws InterruptedException if the sink is interrupted
+     */
+    public void encode(ByteBuffer file, Sink sink) throws IOException, InterruptedException {
+        int length = file.limit();
+        int literalStart = 0;
+        if (this.signatures != null && this.signatures.getLength() > 0) {
+            int blockSize = this.signatures.getBlockSize();
+            int position = 0;
+            int weakSum = length >= blockSize ? BlockSignatures.weakSum(file, 0, blockSize) : 0;
+            while (position + blockSize <= length) {
+                int block = this.tags.get(tag(weakSum)) ? findBlock(weakSum, file, position, blockSize) : -1;
+                if (block >= 0) {
+                    emitLiteral(file, literalStart, position, sink);
+                    emitCopy(block, sink);
+                    this.copiedBytes += blockSize;
+                    position += blockSize;
+                    literalStart = position;
+                    if (position + blockSize <= length) weakSum = BlockSignatures.weakSum(file, position, blockSize);
+                    continue;
+                }
+                if (position + blockSize < length) {
+                    weakSum = BlockSignatures.roll(weakSum, file.get(position), file.get(position + blockSize),
+                            blockSize);
+                }
+                position++;
+            }
+            int lastBlock = this.signatures.getBlockCount() - 1;
+            int lastLength = this.signatures.getBlockLength(lastBlock);
+            // the server's short last block can only match the end of the file
+            if (lastLength < blockSize && length - literalStart >= lastLength
+                    && matches(lastBlock, file, length - lastLength, lastLength)) {
+                emitLiteral(file, literalStart, length - lastLength, sink);
+                emitCopy(lastBlock, sink);
+                this.copiedBytes += lastLength;
+                literalStart = length;
+            }
+        }
+        emitLiteral(file, literalStart, length, sink);
+    }
+
+    /**
+     * @return bytes sent as references to the server's copy so far, rather than literally
+     */
+    public long getCopiedBytes() {
+        return this.copiedBytes;
+    }
+
+    private int findBlock(int weakSum, ByteBuffer file, int position, int blockSize) {
+        int[] blocks = this.blocksByWeakSum.get(weakSum);
+        if (blocks == null) return -1;
+        byte[] strongSum = BlockSignatures.strongSum(this.md5Digest, file, position, blockSize);
+        for (int block : blocks) {
+            if (Arrays.equals(strongSum, this.signatures.getStrongSum(block))) return block;
+        }
+        return -1;
+    }
+
+    private boolean matches(int block, ByteBuffer file, int position, int length) {
+        return BlockSignatures.weakSum(file, position, length) == this.signatures.getWeakSum(block)
+                && Arrays.equals(BlockSignatures.strongSum(this.md5Digest, file, position, length),
+                this.signatures.getStrongSum(block));
+    }
+
+    private void emitLiteral(ByteBuffer file, int start, int end, Sink sink) throws IOException, InterruptedException {
+        for (int offset = start; offset < end; offset += MAX_LITERAL_LENGTH) {
+            int length = Math.min(MAX_LITERAL_LENGTH, end - offset);
+            ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + length).order(ByteOrder.BIG_ENDIAN);
+            record.put(LITERAL).putInt(length);
+            ByteBuffer literal = file.duplicate();
+            literal.limit(offset + length).position(offset);
+            record.put(literal);
+            sink.accept(record.array());
+        }
+    }
+
+    private static void emitCopy(int block, Sink sink) throws IOException, InterruptedException {
+        sink.accept(ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.BIG_ENDIAN).put(COPY).putInt(block).array());
+    }
+
+    private static int tag(int weakSum) {
+        return (weakSum ^ (weakSum >>> 16)) & 0xFFFF;
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Worker thread that runs a {@link DeltaEncoder} over a file ahead of the sender, the way {@link BlockCompressor}
+ * deflates ahead of it, and packs the pieces into full segment payloads. A file over 2 GB goes as literal pieces read
+ * from disk as it goes, instead of being mapped. The file's last segment may be short, the next file's header needs a
+ * segment of its own.
+ */
+public class DeltaPacker extends Thread {
+    // segments packed ahead of the sender
+    private static final int QUEUE_DEPTH = 64;
+    private static final byte[] END_OF_FILE = new byte[0];
+
+    private final Path path;
+    private final long length;
+    private final BlockSignatures signatures;
+    private final BlockingQueue<byte[]> segments = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+    // pieces waiting to fill a segment
+    private final byte[] pending;
+    private int pendingLength;
+    private Runnable readyListener;
+    private volatile IOException failure;
+    private volatile long copiedBytes;
+
+    /**
+     * Constructs the worker, call start() to begin encoding
+     * @param path file to encode
+     * @param length number of bytes to read, from the file's header
+     * @param signatures signature of the server's copy, or null if it has none
+     * @param dataPerSegment payload bytes per segment
+     */
+    public DeltaPacker(Path path, long length, BlockSignatures signatures, int dataPerSegment) {
+        super("DeltaPacker");
+        setDaemon(true);
+        this.path = path;
+        this.length = length;
+        this.signatures = signatures;
+        this.pending = new byte[dataPerSegment];
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (this.length > Integer.MAX_VALUE) {
+                packLiteralPieces();
+            } else {
+                DeltaEncoder encoder = new DeltaEncoder(this.signatures);
+                ByteBuffer contents;
+                try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+                    if (channel.size() < this.length) {
+                        throw new IOException("File shrank while sending: " + this.path.getFileName());
+                    }
+                    contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, this.length);
+                }
+                encoder.encode(contents, this::pack);
+                this.copiedBytes = encoder.getCopiedBytes();
+            }
+            if (this.pendingLength > 0) put(Arrays.copyOf(this.pending, this.pendingLength));
+            put(END_OF_FILE);
+        } catch (IOException e) {
+            this.failure = e;
+            try {
+                put(END_OF_FILE);
+            } catch (InterruptedException interrupted) {
+                // the sender gave up, nobody is waiting
+            }
+        } catch (InterruptedException e) {
+            // the sender gave up on the file
+        }
+    }
+
+    /**
+     * Packs a file too big to map as literal pieces, read from disk as it goes
+     * @throws IOException if the file couldn't be read
+     * @throws InterruptedException if the sender gave up
+     */
+    private void packLiteralPieces() throws IOException, InterruptedException {
+        byte[] buffer = new byte[DeltaEncoder.MAX_LITERAL_LENGTH];
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(this.path), 64 * 1024)) {
+            long remaining = this.length;
+            while (remaining > 0) {
+                int count = (int) Math.min(buffer.length, remaining);
+                if (Utils.readFully(in, buffer, count) < count) {
+                    throw new IOException("File shrank while sending: " + this.path.getFileName());
+                }
+                pack(ByteBuffer.allocate(DeltaEncoder.HEADER_LENGTH).order(ByteOrder.BIG_ENDIAN)
+                        .put(DeltaEncoder.LITERAL).putInt(count).array());
+                pack(Arrays.copyOf(buffer, count));
+                remaining -= count;
+            }
+        }
+    }
+
+    /**
+     * Adds delta bytes to the pending segment, queueing it each time it fills
+     * @param piece bytes of one or more pieces
+     * @throws InterruptedException if the sender gave up
+     */
+    private void pack(byte[] piece) throws InterruptedException {
+        int offset = 0;
+        while (offset < piece.length) {
+            int count = Math.min(this.pending.length - this.pendingLength, piece.length - offset);
+            System.arraycopy(piece, offset, this.pending, this.pendingLength, count);
+            this.pendingLength += count;
+            offset += count;
+            if (this.pendingLength == this.pending.length) {
+                put(this.pending.clone());
+                this.pendingLength = 0;
+            }
+        }
+    }
+
+    private void put(byte[] segment) throws InterruptedException {
+        this.segments.put(segment);
+        if (this.readyListener != null) this.readyListener.run();
+    }
+
+    /**
+     * Waits for the next segment payload
+     * @return the payload, or null at the end of the file
+     * @throws IOException if reading the file failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public byte[] next() throws IOException, InterruptedException {
+        byte[] segment = this.segments.take();
+        if (segment == END_OF_FILE) {
+            if (this.failure != null) throw this.failure;
+            return null;
+        }
+        return segment;
+    }
+
+    /**
+     * @return true if {@link #next()} would return without waiting
+     */
+    public boolean isReady() {
+        return !this.segments.isEmpty();
+    }
+
+    /**
+     * Has the worker tell a sender that polls {@link #isReady()} instead of waiting in {@link #next()} whenever a
+     * segment is queued. Set it before starting the worker.
+     * @param readyListener called on the worker thread, must not block
+     */
+    public void setReadyListener(Runnable readyListener) {
+        this.readyListener = readyListener;
+    }
+
+    /**
+     * @return file bytes sent as references to blocks the server holds, once {@link #next()} has returned null
+     */
+    public long getCopiedBytes() {
+        return this.copiedBytes;
+    }
+}
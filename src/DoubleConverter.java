@@ -0,0 +1,16 @@
+import com.beust.jcommander.IStringConverter;
+import com.beust.jcommander.ParameterException;
+
+/**
+ * Converts command line values to doubles, which the bundled JCommander doesn't do on its own
+ */
+public class DoubleConverter implements IStringConverter<Double> {
+    @Override
+    public Double convert(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new ParameterException("\"" + value + "\" is not a number");
+        }
+    }
+}
@@ -0,0 +1,271 @@
+import javax.xml.bind.DatatypeConverter;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Client side of a download. Sends the request, the file names, on the client's FIN, then takes the server's stream
+ * the way the server takes an upload: each file as a {@link FileHeader} segment and its contents, reordered through a
+ * cache and acknowledged cumulatively. Files are written into a directory, or wherever a {@link FileSink} says, and
+ * checked against their MD5.
+ */
+public class DownloadReceiver {
+    // bytes the server may have in flight beyond the last ACK, advertised using the server's window scale
+    public static final long RECEIVE_WINDOW = 4 * 1024 * 1024;
+    private static final int MAX_TIMEOUTS = 10;
+
+    private DatagramTransport socket;
+    private InetAddress serverAddress;
+    private int serverPort;
+    private int maxSegmentSize;
+    private FileSink fileSink;
+    private int windowScale;
+    private TransportMetrics metrics;
+    private boolean isVerbose;
+    private boolean isPrintingDigests = true;
+    private MessageDigest md5Digest;
+    private long nextSequenceNumber;
+    private int ackSequenceNumber;
+    private TreeMap<Long, TcpPacket> packetCache = new TreeMap<>();
+    private FileHeader currentFile;
+    private OutputStream currentOutput;
+    private long remainingFileBytes;
+    // a segment arrived marked by a congested hop, echoed on the next ACK
+    private boolean isCongestionExperienced;
+    private List<FileHeader> received = new ArrayList<>();
+
+    /**
+     * Opens where each received file's contents go
+     */
+    public interface FileSink {
+        OutputStream open(FileHeader header) throws IOException;
+    }
+
+    /**
+     * Constructs the receiver for an established download connection
+     * @param socket transport to the server, with the retransmit timeout as its receive timeout
+     * @param serverAddress address of the server
+     * @param serverPort port of the server
+     * @param maxSegmentSize max segment size to receive
+     * @param directory where the files are written
+     * @param windowScale window scale agreed in the handshake
+     * @param metrics connection metrics
+     * @param isVerbose turn on verbose mode
+     * @throws IOException if MD5 isn't available
+     */
+    public DownloadReceiver(DatagramTransport socket, InetAddress serverAddress, int serverPort, int maxSegmentSize,
+                            Path directory, int windowScale, TransportMetrics metrics, boolean isVerbose)
+            throws IOException {
+        // only the name, the server doesn't choose where files land
+        this(socket, serverAddress, serverPort, maxSegmentSize, header -> Files.newOutputStream(
+                directory.resolve(Paths.get(header.getName()).getFileName())), windowScale, metrics, isVerbose);
+    }
+
+    /**
+     * Constructs the receiver for an established download connection
+     * @param socket transport to the server, with the retransmit timeout as its receive timeout
+     * @param serverAddress address of the server
+     * @param serverPort port of the server
+     * @param maxSegmentSize max segment size to receive
+     * @param fileSink opens where each file is written
+     * @param windowScale window scale agreed in the handshake
+     * @param metrics connection metrics
+     * @param isVerbose turn on verbose mode
+     * @throws IOException if MD5 isn't available
+     */
+    public DownloadReceiver(DatagramTransport socket, InetAddress serverAddress, int serverPort, int maxSegmentSize,
+                            FileSink fileSink, int windowScale, TransportMetrics metrics, boolean isVerbose)
+            throws IOException {
+        this.socket = socket;
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        this.maxSegmentSize = maxSegmentSize;
+        this.fileSink = fileSink;
+        this.windowScale = windowScale;
+        this.metrics = metrics;
+        this.isVerbose = isVerbose;
+        try {
+            this.md5Digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Turns off printing each file's MD5, for downloads that aren't files the user asked for
+     * @param isPrintingDigests false to stay quiet
+     */
+    public void setPrintingDigests(boolean isPrintingDigests) {
+        this.isPrintingDigests = isPrintingDigests;
+    }
+
+    /**
+     * Sends the request and receives files until the server's FIN. The request is resent on every timeout until the
+     * server acknowledges it or starts sending.
+     * @param request file names, one per line, small enough for one segment
+     * @param sequenceNumber the client's stream offset for the request
+     * @param serverSequenceNumber stream offset of the server's first byte
+     * @return headers of the files received, in order
+     * @throws IOException if the server resets or goes quiet, or a file can't be written
+     */
+    public List<FileHeader> receive(byte[] request, long sequenceNumber, long serverSequenceNumber)
+            throws IOException {
+        this.nextSequenceNumber = serverSequenceNumber;
+        // the FIN takes a sequence number after the request
+        this.ackSequenceNumber = SequenceNumbers.wrap(sequenceNumber + request.length + 1);
+        TcpPacket requestPacket = new TcpPacket(new TcpHeader(SequenceNumbers.wrap(sequenceNumber),
+                SequenceNumbers.wrap(serverSequenceNumber), 0, 0, 0, 1, 0, 0), request);
+        boolean isRequestAcked = false;
+        int timeouts = 0;
+        sendPacket(requestPacket);
+        try {
+            while (true) {
+                TcpPacket packetFromServer;
+                try {
+                    packetFromServer = receivePacket();
+                } catch (SocketTimeoutException e) {
+                    if (++timeouts > MAX_TIMEOUTS) throw new IOException("Server stopped sending the download");
+                    if (isRequestAcked) {
+                        sendAckPacket();
+                    } else {
+                        sendPacket(requestPacket);
+                        this.metrics.retransmit();
+                    }
+                    continue;
+                }
+                if (packetFromServer == null) continue;
+                if (!packetFromServer.validateChecksum()) {
+                    this.metrics.checksumFailure();
+                    continue;
+                }
+                TcpHeader header = packetFromServer.getHeader();
+                if (header.getIsRst() == 1) throw new IOException("Server reset the download");
+                if (header.getIsSyn() == 1) continue;
+                timeouts = 0;
+                if (header.getIsCongestionExperienced() == 1) this.isCongestionExperienced = true;
+                if (header.getIsAck() == 1 && header.getAckNumber() == this.ackSequenceNumber) isRequestAcked = true;
+                if (packetFromServer.getData().length == 0 && header.getIsFin() == 0) continue;
+                // data means the request got through even if its ACK didn't
+                isRequestAcked = true;
+                long segmentSequenceNumber = SequenceNumbers.unwrap(header.getSequenceNumber(),
+                        this.nextSequenceNumber);
+                if (segmentSequenceNumber == this.nextSequenceNumber) {
+                    boolean isDone = deliver(packetFromServer);
+                    while (!isDone && this.packetCache.containsKey(this.nextSequenceNumber)) {
+                        isDone = deliver(this.packetCache.remove(this.nextSequenceNumber));
+                    }
+                    this.metrics.setOutOfOrderCacheDepth(this.packetCache.size());
+                    sendAckPacket();
+                    // a lost final ACK only costs the server its FIN retransmits, like the upload close
+                    if (isDone) return this.received;
+                } else {
+                    if (segmentSequenceNumber > this.nextSequenceNumber
+                            && segmentSequenceNumber - this.nextSequenceNumber < RECEIVE_WINDOW) {
+                        this.packetCache.put(segmentSequenceNumber, packetFromServer);
+                        this.metrics.setOutOfOrderCacheDepth(this.packetCache.size());
+                    }
+                    sendAckPacket();
+                    this.metrics.duplicateAck();
+                }
+            }
+        } finally {
+            if (this.currentOutput != null) this.currentOutput.close();
+        }
+    }
+
+    /**
+     * Applies the next in-order segment: the server's FIN, a file header, or file contents
+     * @param packetFromServer the segment, whose sequence number is nextSequenceNumber
+     * @return true if it was the FIN
+     * @throws IOException if the file can't be written
+     */
+    private boolean deliver(TcpPacket packetFromServer) throws IOException {
+        byte[] data = packetFromServer.getData();
+        this.nextSequenceNumber += data.length;
+        if (packetFromServer.getHeader().getIsFin() == 1) {
+            // FIN takes up a sequence number even though no data was sent, special case
+            this.nextSequenceNumber++;
+            return true;
+        }
+        if (this.currentFile == null) {
+            this.currentFile = FileHeader.deserialize(data);
+            this.currentOutput = new BufferedOutputStream(this.fileSink.open(this.currentFile), 64 * 1024);
+            this.remainingFileBytes = this.currentFile.getLength();
+            this.md5Digest.reset();
+            if (this.isVerbose) System.out.println("Receiving " + this.currentFile.getName());
+        } else {
+            this.currentOutput.write(data);
+            this.md5Digest.update(data);
+            this.metrics.delivered(data.length);
+            this.remainingFileBytes -= data.length;
+        }
+        if (this.remainingFileBytes <= 0) finishFile();
+        return false;
+    }
+
+    /**
+     * Closes the file that just finished and checks its MD5
+     * @throws IOException if the file can't be written
+     */
+    private void finishFile() throws IOException {
+        this.currentOutput.close();
+        this.currentOutput = null;
+        byte[] md5Bytes = this.md5Digest.digest();
+        if (this.isPrintingDigests) {
+            System.out.println("MD5: " + DatatypeConverter.printHexBinary(md5Bytes) + " (" + this.currentFile.getName()
+                    + ")");
+        }
+        if (!MessageDigest.isEqual(md5Bytes, this.currentFile.getMd5())) {
+            throw new IOException("MD5 mismatch for " + this.currentFile.getName() + ", server sent "
+                    + DatatypeConverter.printHexBinary(this.currentFile.getMd5()));
+        }
+        this.received.add(this.currentFile);
+        this.currentFile = null;
+    }
+
+    private void sendAckPacket() throws IOException {
+        int window = (int) Math.min(RECEIVE_WINDOW >> this.windowScale, 0xFFFF);
+        TcpHeader header = new TcpHeader(this.ackSequenceNumber, SequenceNumbers.wrap(this.nextSequenceNumber), 1, 0, 0,
+                0, window, 0);
+        if (this.isCongestionExperienced) {
+            header.setIsEcnEcho(1);
+            this.isCongestionExperienced = false;
+        }
+        sendPacket(new TcpPacket(header, new byte[0]));
+    }
+
+    private void sendPacket(TcpPacket tcpPacket) throws IOException {
+        tcpPacket.calculateChecksum();
+        byte[] tcpPacketBytes = tcpPacket.serialize();
+        this.socket.send(new DatagramPacket(tcpPacketBytes, tcpPacketBytes.length, this.serverAddress,
+                this.serverPort));
+        this.metrics.segmentSent(tcpPacketBytes.length);
+    }
+
+    /**
+     * Receives one packet
+     * @return the packet, or null if it came from someone other than the server
+     * @throws IOException on timeout or UDP trouble
+     */
+    private TcpPacket receivePacket() throws IOException {
+        byte[] buf = new byte[this.maxSegmentSize];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        this.socket.receive(packet);
+        if (!new InetSocketAddress(this.serverAddress, this.serverPort).equals(packet.getSocketAddress())) return null;
+        this.metrics.segmentReceived(packet.getLength());
+        return TcpPacket.deserialize(Arrays.copyOf(packet.getData(), packet.getLength()));
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Low overhead diagnostic log. The hot path only claims a slot in a preallocated ring buffer and stores the event
+ * ordinal, a timestamp and two numeric arguments; formatting and printing happen on a background daemon thread. When
+ * the writer falls behind the ring simply overwrites the oldest events and the writer reports how many it missed,
+ * recording never blocks the transport.
+ * <p>
+ * Events below the output level are not printed. With dump-on-error enabled, every event is recorded regardless of
+ * level and an {@link Level#ERROR} event causes the last <code>capacity</code> events to be printed, so the history
+ * leading up to a failure is available without paying for verbose output the rest of the time.
+ */
+public class EventLog {
+    /**
+     * Severity of an event
+     */
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        OFF
+    }
+
+    private static final LogEvent[] EVENTS = LogEvent.values();
+
+    private final int mask;
+    private final int[] types;
+    private final long[] timestamps;
+    private final long[] firstArgs;
+    private final long[] secondArgs;
+    // sequence number of the event currently stored in each slot, published last
+    private final AtomicLongArray published;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final Level level;
+    private final Level recordLevel;
+    private final boolean dumpOnError;
+    private final PrintStream out;
+    private final long startNanos;
+    private final Thread writer;
+    private volatile boolean isRunning = true;
+    private long readSequence;
+
+    /**
+     * Constructs the log and starts its writer thread
+     * @param capacity number of events retained, rounded up to a power of two
+     * @param level minimum level that is printed
+     * @param dumpOnError print the retained history when an error is recorded
+     * @param out stream the writer prints to
+     */
+    public EventLog(int capacity, Level level, boolean dumpOnError, PrintStream out) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.mask = size - 1;
+        this.types = new int[size];
+        this.timestamps = new long[size];
+        this.firstArgs = new long[size];
+        this.secondArgs = new long[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.published.set(i, -1);
+        }
+        this.level = level;
+        this.recordLevel = dumpOnError ? Level.DEBUG : level;
+        this.dumpOnError = dumpOnError;
+        this.out = out;
+        this.startNanos = System.nanoTime();
+        this.writer = new Thread(this::drain, "EventLogWriter");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Checks whether an event at the given level would be recorded. Callers can use this to skip computing
+     * arguments.
+     * @param level level to check
+     * @return true if recorded
+     */
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.recordLevel) >= 0;
+    }
+
+    public void record(LogEvent event) {
+        record(event, 0, 0);
+    }
+
+    public void record(LogEvent event, long a) {
+        record(event, a, 0);
+    }
+
+    /**
+     * Records an event. Does not allocate or block.
+     * @param event the event
+     * @param a first argument
+     * @param b second argument
+     */
+    public void record(LogEvent event, long a, long b) {
+        if (!isEnabled(event.getLevel())) return;
+        long sequence = this.nextSequence.getAndIncrement();
+        int slot = (int) sequence & this.mask;
+        // mark the slot as being rewritten so a concurrent reader doesn't take a torn event
+        this.published.set(slot, -1);
+        this.types[slot] = event.ordinal();
+        this.timestamps[slot] = System.nanoTime();
+        this.firstArgs[slot] = a;
+        this.secondArgs[slot] = b;
+        this.published.lazySet(slot, sequence);
+        if (this.dumpOnError && event.getLevel() == Level.ERROR) {
+            dump();
+        }
+    }
+
+    /**
+     * Prints every event still held in the ring buffer, oldest first. Called automatically on error when
+     * dump-on-error is enabled.
+     */
+    public void dump() {
+        long end = this.nextSequence.get();
+        long start = Math.max(0, end - this.mask - 1);
+        StringBuilder builder = new StringBuilder();
+        builder.append("---- event log dump (").append(end - start).append(" events) ----\n");
+        for (long sequence = start; sequence < end; sequence++) {
+            format(builder, sequence, true);
+        }
+        builder.append("---- end of dump ----\n");
+        synchronized (this.out) {
+            this.out.print(builder);
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Stops the writer thread after it prints everything already recorded
+     */
+    public void close() {
+        this.isRunning = false;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        StringBuilder builder = new StringBuilder();
+        while (true) {
+            boolean isStopping = !this.isRunning;
+            long end = this.nextSequence.get();
+            if (end - this.readSequence > this.mask + 1) {
+                long missed = end - this.readSequence - this.mask - 1;
+                builder.append("[event log] ").append(missed).append(" events overwritten before they were written\n");
+                this.readSequence = end - this.mask - 1;
+            }
+            while (this.readSequence < end) {
+                if (!format(builder, this.readSequence, false)) {
+                    // claimed but not yet published, pick it up on the next pass
+                    break;
+                }
+                this.readSequence++;
+            }
+            if (builder.length() > 0) {
+                synchronized (this.out) {
+                    this.out.print(builder);
+                    this.out.flush();
+                }
+                builder.setLength(0);
+            }
+            if (isStopping) return;
+            LockSupport.parkNanos(1000000L);
+        }
+    }
+
+    /**
+     * Formats one event into the builder
+     * @param builder output
+     * @param sequence sequence number of the event
+     * @param isDump include events below the output level
+     * @return false if the event has not been published yet
+     */
+    private boolean format(StringBuilder builder, long sequence, boolean isDump) {
+        int slot = (int) sequence & this.mask;
+        long publishedSequence = this.published.get(slot);
+        if (publishedSequence < sequence) return false;
+        if (publishedSequence > sequence) return true;  // already overwritten
+        LogEvent event = EVENTS[this.types[slot]];
+        long timestamp = this.timestamps[slot];
+        long a = this.firstArgs[slot];
+        long b = this.secondArgs[slot];
+        if (this.published.get(slot) != sequence) return true;
+        if (!isDump && event.getLevel().compareTo(this.level) < 0) return true;
+        builder.append(String.format("%10.3f ms ", (timestamp - this.startNanos) / 1e6))
+                .append(event.getLevel()).append(' ')
+                .append(event.format(a, b)).append('\n');
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Frames one file within a session. Each file is sent as a single segment carrying this header followed by exactly
+ * <code>length</code> bytes of file data, so the server knows where one file ends and the next begins.
+ * <pre>
+ *   8 bytes   file length, big endian
+ *   16 bytes  MD5 of the file contents
+ *   rest      file name, UTF-8
+ * </pre>
+ */
+public class FileHeader {
+    public static final int FIXED_LENGTH = 24;
+
+    private String name;
+    private long length;
+    private byte[] md5;
+
+    /**
+     * Constructs the header
+     * @param name file name, without directories
+     * @param length number of data bytes that follow
+     * @param md5 MD5 digest of the data
+     */
+    public FileHeader(String name, long length, byte[] md5) {
+        this.name = name;
+        this.length = length;
+        this.md5 = md5;
+    }
+
+    /**
+     * Creates the header for a file, reading it once to compute the MD5 so files of any size can be sent
+     * @param path the file
+     * @return the header
+     * @throws IOException if the file can't be read or MD5 isn't available
+     */
+    public static FileHeader of(Path path) throws IOException {
+        MessageDigest md5Digest;
+        try {
+            md5Digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        long length = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(path)) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                md5Digest.update(buffer, 0, count);
+                length += count;
+            }
+        }
+        return new FileHeader(path.getFileName().toString(), length, md5Digest.digest());
+    }
+
+    /**
+     * Serializes the header into a segment payload
+     * @return the serialized header
+     */
+    public byte[] serialize() {
+        byte[] nameBytes = this.name.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(FIXED_LENGTH + nameBytes.length).order(ByteOrder.BIG_ENDIAN)
+                .putLong(this.length)
+                .put(this.md5)
+                .put(nameBytes)
+                .array();
+    }
+
+    /**
+     * Deserializes a segment payload into a FileHeader object
+     * @param bytes the payload
+     * @return the FileHeader object
+     */
+    public static FileHeader deserialize(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
+        long length = buffer.getLong();
+        byte[] md5 = new byte[16];
+        buffer.get(md5);
+        String name = new String(bytes, FIXED_LENGTH, bytes.length - FIXED_LENGTH, StandardCharsets.UTF_8);
+        return new FileHeader(name, length, md5);
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    public byte[] getMd5() {
+        return this.md5;
+    }
+
+    @Override
+    public String toString() {
+        return this.name + " (" + this.length + " bytes, MD5 " + Arrays.toString(this.md5) + ")";
+    }
+}
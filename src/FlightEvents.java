@@ -0,0 +1,241 @@
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events for the transport, so a stalled transfer can be pinned on the handshake, a retransmit
+ * timeout, the reassembly backlog or the network, next to the JVM's own GC, CPU and file I/O events. Disk stalls show
+ * up as the JDK's own file read and write events on the same threads.
+ * <p>
+ * Nothing is recorded unless a recording is running, and then an event costs a check and a few field stores. The
+ * per-segment events are off by default even in a recording, since there is one per datagram; {@link #record(Path)}
+ * turns everything on, as does a recording settings file that enables them.
+ */
+public class FlightEvents {
+    private static final List<Class<? extends Event>> EVENTS = Arrays.asList(Handshake.class, SegmentSent.class,
+            Retransmit.class, AckReceived.class, ReceiveFile.class, Reassembly.class, AckSent.class);
+
+    private FlightEvents() {
+    }
+
+    @Name("transport.Handshake")
+    @Label("Handshake")
+    @Category("Transport")
+    @Description("Client side of the three way handshake, from the first SYN to the SYN-ACK")
+    @StackTrace(false)
+    public static class Handshake extends Event {
+        @Label("Server")
+        String server;
+
+        @Label("SYN Attempts")
+        int attempts;
+
+        @Label("Data on SYN")
+        @DataAmount(DataAmount.BYTES)
+        int synDataBytes;
+
+        @Label("Established")
+        boolean isEstablished;
+    }
+
+    @Name("transport.SegmentSent")
+    @Label("Segment Sent")
+    @Category("Transport")
+    @Description("A data segment sent for the first time")
+    @Enabled(false)
+    @StackTrace(false)
+    public static class SegmentSent extends Event {
+        @Label("Sequence Number")
+        long sequenceNumber;
+
+        @Label("Size")
+        @DataAmount(DataAmount.BYTES)
+        int size;
+    }
+
+    @Name("transport.Retransmit")
+    @Label("Retransmit")
+    @Category("Transport")
+    @Description("A segment sent again, with why and how long after it was first sent")
+    @StackTrace(false)
+    public static class Retransmit extends Event {
+        @Label("Sequence Number")
+        long sequenceNumber;
+
+        @Label("Size")
+        @DataAmount(DataAmount.BYTES)
+        int size;
+
+        @Label("Cause")
+        String cause;
+
+        @Label("Age")
+        @Timespan(Timespan.NANOSECONDS)
+        long age;
+    }
+
+    @Name("transport.AckReceived")
+    @Label("ACK Received")
+    @Category("Transport")
+    @Description("An ACK applied to the send window")
+    @Enabled(false)
+    @StackTrace(false)
+    public static class AckReceived extends Event {
+        @Label("ACK Number")
+        int ackNumber;
+
+        @Label("Peer Window")
+        @DataAmount(DataAmount.BYTES)
+        long peerWindow;
+
+        @Label("Bytes In Flight")
+        @DataAmount(DataAmount.BYTES)
+        long bytesInFlight;
+
+        @Label("Smoothed RTT")
+        @Timespan(Timespan.NANOSECONDS)
+        long smoothedRtt;
+    }
+
+    @Name("transport.ReceiveFile")
+    @Label("Receive")
+    @Category("Transport")
+    @Description("Server receiving one connection's data, from the end of the handshake to the close")
+    @StackTrace(false)
+    public static class ReceiveFile extends Event {
+        @Label("Client")
+        String client;
+
+        @Label("Delivered")
+        @DataAmount(DataAmount.BYTES)
+        long bytesDelivered;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("transport.Reassembly")
+    @Label("Reassembly")
+    @Category("Transport")
+    @Description("Server delivering segments from the out of order cache once a hole is filled")
+    @StackTrace(false)
+    public static class Reassembly extends Event {
+        @Label("Delivered Segments")
+        int deliveredSegments;
+
+        @Label("Cached Segments")
+        int cachedSegments;
+
+        @Label("Cached")
+        @DataAmount(DataAmount.BYTES)
+        long cachedBytes;
+    }
+
+    @Name("transport.AckSent")
+    @Label("ACK Sent")
+    @Category("Transport")
+    @Description("An ACK sent by the server")
+    @Enabled(false)
+    @StackTrace(false)
+    public static class AckSent extends Event {
+        @Label("ACK Number")
+        long ackNumber;
+
+        @Label("Window")
+        @DataAmount(DataAmount.BYTES)
+        long window;
+    }
+
+    /**
+     * Records a segment sent for the first time
+     * @param sequenceNumber stream offset of its first byte
+     * @param size payload length
+     */
+    public static void segmentSent(long sequenceNumber, int size) {
+        SegmentSent event = new SegmentSent();
+        if (!event.isEnabled()) return;
+        event.sequenceNumber = sequenceNumber;
+        event.size = size;
+        event.commit();
+    }
+
+    /**
+     * Records a retransmit
+     * @param segment the segment sent again
+     * @param cause what triggered it
+     * @param now time of the retransmit, from the transport's clock
+     */
+    public static void retransmit(SendWindow.Segment segment, String cause, long now) {
+        Retransmit event = new Retransmit();
+        if (!event.isEnabled()) return;
+        event.sequenceNumber = segment.getSequenceNumber();
+        event.size = segment.getLength();
+        event.cause = cause;
+        event.age = now - segment.getSentAt();
+        event.commit();
+    }
+
+    /**
+     * Records an ACK once the send window has applied it
+     * @param ackNumber ACK number from the header
+     * @param sendWindow the window
+     */
+    public static void ackReceived(int ackNumber, SendWindow sendWindow) {
+        AckReceived event = new AckReceived();
+        if (!event.isEnabled()) return;
+        event.ackNumber = ackNumber;
+        event.peerWindow = sendWindow.getPeerWindow();
+        event.bytesInFlight = sendWindow.getBytesInFlight();
+        event.smoothedRtt = sendWindow.getSmoothedRttNanos();
+        event.commit();
+    }
+
+    /**
+     * Records an ACK sent by the server
+     * @param ackNumber stream offset of the next byte expected
+     * @param window window advertised, in bytes
+     */
+    public static void ackSent(long ackNumber, long window) {
+        AckSent event = new AckSent();
+        if (!event.isEnabled()) return;
+        event.ackNumber = ackNumber;
+        event.window = window;
+        event.commit();
+    }
+
+    /**
+     * Starts a recording of every transport event, per-segment ones included, alongside the JVM's default events.
+     * It's written to the file when the JVM exits.
+     * @param destination file to write the recording to
+     * @throws IOException if the file can't be written
+     */
+    public static void record(Path destination) throws IOException {
+        Recording recording;
+        try {
+            recording = new Recording(Configuration.getConfiguration("default"));
+        } catch (ParseException e) {
+            throw new IOException(e);
+        }
+        for (Class<? extends Event> event : EVENTS) {
+            recording.enable(event);
+        }
+        recording.setName("transport");
+        recording.setDestination(destination);
+        recording.setDumpOnExit(true);
+        recording.start();
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load-test mode: runs many client sessions against one server at the same time, each with its own socket and flow,
+ * and reports aggregate goodput, connection setup latency percentiles and failures. Sessions start on a linear ramp so
+ * the point where the server saturates shows up as setup latency climbing, rather than every SYN landing at once.
+ * <p>
+ * Each session runs on its own platform thread, plus the send and receive threads of its {@link Client}.
+ */
+public class LoadGenerator {
+    private final int sessions;
+    private final long rampUpNanos;
+    private final SessionFactory factory;
+
+    /**
+     * Creates the client for one session
+     */
+    public interface SessionFactory {
+        /**
+         * @return a new client, with its own socket, ready for {@link Client#doTheThing()}
+         * @throws IOException if the socket can't be opened
+         */
+        Client create() throws IOException;
+    }
+
+    /**
+     * Constructs the load generator
+     * @param sessions number of concurrent client sessions
+     * @param rampUpMillis time over which the session starts are spread evenly, 0 to start them all at once
+     * @param factory creates each session's client
+     */
+    public LoadGenerator(int sessions, long rampUpMillis, SessionFactory factory) {
+        this.sessions = sessions;
+        this.rampUpNanos = TimeUnit.MILLISECONDS.toNanos(rampUpMillis);
+        this.factory = factory;
+    }
+
+    /**
+     * Runs every session to completion or failure and prints the report
+     * @throws InterruptedException if interrupted while waiting for the sessions
+     */
+    public void run() throws InterruptedException {
+        AtomicInteger threadIds = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(this.sessions, runnable -> {
+            Thread thread = new Thread(runnable, "LoadSession-" + threadIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        List<Future<Session>> futures = new ArrayList<>();
+        for (int i = 0; i < this.sessions; i++) {
+            long startAt = start + this.rampUpNanos * i / this.sessions;
+            futures.add(executor.submit(() -> runSession(startAt)));
+        }
+        List<Session> results = new ArrayList<>();
+        for (Future<Session> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                results.add(Session.failed(e.getCause()));
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        executor.shutdown();
+        System.out.print(report(results, elapsedNanos));
+    }
+
+    /**
+     * Waits for the session's place in the ramp, then runs one transfer
+     * @param startAt System.nanoTime() at which to start
+     * @return the outcome
+     * @throws InterruptedException if interrupted while waiting to start
+     */
+    private Session runSession(long startAt) throws InterruptedException {
+        TimeUnit.NANOSECONDS.sleep(startAt - System.nanoTime());
+        Client client;
+        try {
+            client = this.factory.create();
+            client.doTheThing();
+        } catch (IOException e) {
+            return Session.failed(e);
+        }
+        return new Session(client.getHandshakeNanos(), client.getFileBytes(), client.getMetrics().getRetransmits(),
+                null);
+    }
+
+    /**
+     * Summarizes the sessions
+     * @param results outcome of every session
+     * @param elapsedNanos time from the first session's start to the last session's end
+     * @return the report, one line per figure
+     */
+    private static String report(List<Session> results, long elapsedNanos) {
+        long bytes = 0;
+        long retransmits = 0;
+        List<Long> setupNanos = new ArrayList<>();
+        Map<String, Integer> failures = new TreeMap<>();
+        for (Session session : results) {
+            if (session.failure != null) {
+                failures.merge(String.valueOf(session.failure.getMessage()), 1, Integer::sum);
+                continue;
+            }
+            bytes += session.bytes;
+            retransmits += session.retransmits;
+            setupNanos.add(session.handshakeNanos);
+        }
+        long[] sorted = setupNanos.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Sessions: %d completed, %d failed in %.1f s%n", sorted.length,
+                results.size() - sorted.length, seconds));
+        report.append(String.format("Goodput: %.0f bytes/s aggregate (%d bytes)%n", bytes / seconds, bytes));
+        report.append(String.format("Retransmits: %d%n", retransmits));
+        if (sorted.length > 0) {
+            report.append(String.format("Connection setup: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                    percentile(sorted, 50) / 1e6, percentile(sorted, 90) / 1e6, percentile(sorted, 99) / 1e6,
+                    sorted[sorted.length - 1] / 1e6));
+        }
+        for (Map.Entry<String, Integer> failure : failures.entrySet()) {
+            report.append(String.format("Failed: %d x %s%n", failure.getValue(), failure.getKey()));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Nearest-rank percentile
+     * @param sorted values in ascending order, at least one
+     * @param percent percentile to take, 0 to 100
+     * @return the value
+     */
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+
+    /**
+     * Outcome of one session
+     */
+    private static class Session {
+        private final long handshakeNanos;
+        private final long bytes;
+        private final long retransmits;
+        private final Throwable failure;
+
+        private Session(long handshakeNanos, long bytes, long retransmits, Throwable failure) {
+            this.handshakeNanos = handshakeNanos;
+            this.bytes = bytes;
+            this.retransmits = retransmits;
+            this.failure = failure;
+        }
+
+        private static Session failed(Throwable failure) {
+            return new Session(0, 0, 0, failure);
+        }
+    }
+}
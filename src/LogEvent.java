@@ -0,0 +1,40 @@
+/**
+ * Fixed set of diagnostic events recorded by {@link EventLog}. Each event carries at most two numeric arguments, which
+ * are only formatted into the message on the log's background thread.
+ */
+public enum LogEvent {
+    SEGMENT_RECEIVED(EventLog.Level.DEBUG, "Received packet with sequence number %d, expecting %d"),
+    SEGMENT_IN_ORDER(EventLog.Level.DEBUG, "Sequence number %d matches expected number, updating digest"),
+    SEGMENT_CACHED(EventLog.Level.DEBUG, "Received out of order packet %d, adding to cache (%d cached)"),
+    SEGMENT_FROM_CACHE(EventLog.Level.DEBUG, "ACKing packet from cache with sequence number %d"),
+    SEGMENT_RECOVERED(EventLog.Level.INFO, "Rebuilt lost packet %d (%d bytes) from parity"),
+    SEGMENT_DROPPED(EventLog.Level.INFO, "Dropped packet %d beyond the window or reassembly quota (%d bytes cached)"),
+    SEGMENT_CORRUPT(EventLog.Level.WARN, "Received corrupted packet from client, sending duplicate ack %d"),
+    ACK_SENT(EventLog.Level.DEBUG, "Sending ACK with number %d"),
+    WAITING_FOR_SEQUENCE(EventLog.Level.INFO, "Waiting for sequence number: %d"),
+    TRANSFER_COMPLETE(EventLog.Level.INFO, "File complete, %d bytes delivered"),
+    CONNECTION_EVICTED(EventLog.Level.WARN, "Evicted idle connection expecting %d, freeing %d cached bytes"),
+    IO_ERROR(EventLog.Level.ERROR, "I/O error while expecting sequence number %d");
+
+    private final EventLog.Level level;
+    private final String format;
+
+    LogEvent(EventLog.Level level, String format) {
+        this.level = level;
+        this.format = format;
+    }
+
+    public EventLog.Level getLevel() {
+        return this.level;
+    }
+
+    /**
+     * Formats the event message
+     * @param a first argument
+     * @param b second argument
+     * @return the message
+     */
+    public String format(long a, long b) {
+        return String.format(this.format, a, b);
+    }
+}
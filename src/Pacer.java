@@ -0,0 +1,75 @@
+/**
+ * Token bucket that spreads segments out at a target rate instead of sending them back to back. Time comes from the
+ * transport's clock, so pacing runs in virtual time over a {@link SimulatedNetwork}. Segments go out without waiting
+ * until the sender gets more than MIN_SLEEP_NANOS ahead of schedule, then it parks once for the whole lead, so
+ * segments leave in small evenly spaced batches rather than one sleep per segment. Up to BURST_NANOS worth of unused
+ * sending time is kept as credit after an idle spell.
+ */
+public class Pacer {
+    private static final long MIN_SLEEP_NANOS = 500000L;
+    private static final long BURST_NANOS = 1000000L;
+
+    private final DatagramSender clock;
+    private double bytesPerSecond;
+    private long nextSendTime;
+
+    /**
+     * Constructs the pacer
+     * @param clock transport whose clock to pace by
+     * @param bytesPerSecond target rate, 0 to send as fast as possible
+     */
+    public Pacer(DatagramSender clock, double bytesPerSecond) {
+        this.clock = clock;
+        this.bytesPerSecond = bytesPerSecond;
+        this.nextSendTime = clock.nanoTime();
+    }
+
+    /**
+     * Changes the target rate, taking effect from the next segment
+     * @param bytesPerSecond target rate, 0 to send as fast as possible
+     */
+    public void setRate(double bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public double getRate() {
+        return this.bytesPerSecond;
+    }
+
+    /**
+     * Waits until a segment may be sent, and books its transmission time
+     * @param length size of the segment on the wire
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void pace(int length) throws InterruptedException {
+        long delay;
+        while ((delay = getDelayNanos(this.clock.nanoTime())) > 0) {
+            this.clock.sleepNanos(delay);
+        }
+        book(length);
+    }
+
+    /**
+     * Non-blocking form of {@link #pace(int)}, for a sender that can't sleep: how long until the next segment may be
+     * sent. Call {@link #book(int)} when it goes.
+     * @param now current time in nanoseconds, from the pacer's clock
+     * @return nanoseconds to wait, 0 if it may go now
+     */
+    public long getDelayNanos(long now) {
+        if (this.bytesPerSecond <= 0) return 0;
+        if (now - this.nextSendTime > BURST_NANOS) {
+            this.nextSendTime = now - BURST_NANOS;
+        }
+        long lead = this.nextSendTime - now;
+        return lead > MIN_SLEEP_NANOS ? lead : 0;
+    }
+
+    /**
+     * Books the transmission time of a segment being sent
+     * @param length size of the segment on the wire
+     */
+    public void book(int length) {
+        if (this.bytesPerSecond <= 0) return;
+        this.nextSendTime += (long) (length * 1e9 / this.bytesPerSecond);
+    }
+}
@@ -0,0 +1,167 @@
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Server side of forward error correction, see {@link ParityEncoder}. Remembers the last few data segments delivered
+ * in order and the parity segments of groups that aren't complete yet. A group missing exactly one segment, whether
+ * the rest were delivered or are waiting out of order, gives back the missing segment as the XOR of the parity and
+ * the segments that did arrive.
+ */
+public class ParityDecoder {
+    /**
+     * A segment rebuilt from parity
+     */
+    public static class Recovered {
+        private final long sequenceNumber;
+        private final byte[] data;
+
+        private Recovered(long sequenceNumber, byte[] data) {
+            this.sequenceNumber = sequenceNumber;
+            this.data = data;
+        }
+
+        public long getSequenceNumber() {
+            return this.sequenceNumber;
+        }
+
+        public byte[] getData() {
+            return this.data;
+        }
+    }
+
+    /**
+     * A parity segment waiting for enough of its group to arrive
+     */
+    private static class Group {
+        private final long start;
+        private final long end;
+        private final int count;
+        private final byte[] parity;
+
+        private Group(long start, long end, int count, byte[] parity) {
+            this.start = start;
+            this.end = end;
+            this.count = count;
+            this.parity = parity;
+        }
+    }
+
+    // parity segments held at once, so a misbehaving sender can't make the decoder grow without bound
+    private static final int MAX_PENDING_GROUPS = 1024;
+
+    // what recovering a group gives when the group arrived whole
+    private static final Recovered NOTHING_MISSING = new Recovered(-1, new byte[0]);
+
+    private final int groupSize;
+    private final ArrayDeque<Map.Entry<Long, byte[]>> delivered = new ArrayDeque<>();
+    private final TreeMap<Long, Group> groups = new TreeMap<>();
+
+    /**
+     * Constructs the decoder
+     * @param groupSize data segments per parity segment, as negotiated
+     */
+    public ParityDecoder(int groupSize) {
+        this.groupSize = groupSize;
+    }
+
+    /**
+     * Remembers a data segment delivered in order, in case a later segment of its group is lost
+     * @param sequenceNumber stream offset of the segment
+     * @param data segment payload
+     */
+    public void delivered(long sequenceNumber, byte[] data) {
+        this.delivered.addLast(new AbstractMap.SimpleImmutableEntry<>(sequenceNumber, data));
+        if (this.delivered.size() > this.groupSize) this.delivered.pollFirst();
+    }
+
+    /**
+     * Stores a parity segment
+     * @param parityPacket the parity segment
+     * @param lastAckNumber next stream offset expected, used to unwrap the group start
+     * @param limit end of the receive window, groups reaching past it are dropped
+     * @return false if the parity segment was dropped for being outside the window or with too many groups pending
+     */
+    public boolean addParity(TcpPacket parityPacket, long lastAckNumber, long limit) {
+        TcpHeader header = parityPacket.getHeader();
+        long start = SequenceNumbers.unwrap(header.getSequenceNumber(), lastAckNumber);
+        long end = start + (header.getAckNumber() & 0xFFFFFFFFL);
+        // a group that is already complete needs no help
+        if (end <= lastAckNumber || header.getWindow() > this.groupSize) return true;
+        if (end > limit || (this.groups.size() >= MAX_PENDING_GROUPS && !this.groups.containsKey(start))) {
+            return false;
+        }
+        this.groups.put(start, new Group(start, end, header.getWindow(), parityPacket.getData()));
+        return true;
+    }
+
+    /**
+     * Rebuilds a missing segment if some group now lacks exactly one. Forgets groups that are complete.
+     * @param lastAckNumber next stream offset expected
+     * @param packetCache segments that arrived out of order, by stream offset
+     * @return the rebuilt segment, or null if nothing can be rebuilt yet
+     */
+    public Recovered recover(long lastAckNumber, NavigableMap<Long, TcpPacket> packetCache) {
+        Iterator<Group> iterator = this.groups.values().iterator();
+        while (iterator.hasNext()) {
+            Group group = iterator.next();
+            if (group.end <= lastAckNumber) {
+                iterator.remove();
+                continue;
+            }
+            Recovered recovered = recover(group, lastAckNumber, packetCache);
+            if (recovered == NOTHING_MISSING) {
+                iterator.remove();
+            } else if (recovered != null) {
+                iterator.remove();
+                return recovered;
+            }
+        }
+        return null;
+    }
+
+    private Recovered recover(Group group, long lastAckNumber, NavigableMap<Long, TcpPacket> packetCache) {
+        TreeMap<Long, byte[]> present = new TreeMap<>();
+        for (Map.Entry<Long, byte[]> segment : this.delivered) {
+            if (segment.getKey() >= group.start && segment.getKey() < lastAckNumber) {
+                present.put(segment.getKey(), segment.getValue());
+            }
+        }
+        // everything in the group before lastAckNumber was delivered, so it has to be remembered
+        if (group.start < lastAckNumber && (present.isEmpty() || present.firstKey() != group.start)) return null;
+        long cachedFrom = Math.max(group.start, lastAckNumber);
+        for (Map.Entry<Long, TcpPacket> cached : packetCache.subMap(cachedFrom, true, group.end, false).entrySet()) {
+            present.put(cached.getKey(), cached.getValue().getData());
+        }
+        if (present.size() == group.count) return NOTHING_MISSING;
+        if (present.size() != group.count - 1) return null;
+        long position = group.start;
+        long gapStart = -1;
+        long gapEnd = -1;
+        for (Map.Entry<Long, byte[]> segment : present.entrySet()) {
+            if (segment.getKey() != position) {
+                if (gapStart != -1 || segment.getKey() < position) return null;
+                gapStart = position;
+                gapEnd = segment.getKey();
+            }
+            position = segment.getKey() + segment.getValue().length;
+        }
+        if (position != group.end) {
+            if (gapStart != -1 || position > group.end) return null;
+            gapStart = position;
+            gapEnd = group.end;
+        }
+        if (gapStart == -1 || gapEnd - gapStart > group.parity.length) return null;
+        byte[] data = new byte[(int) (gapEnd - gapStart)];
+        System.arraycopy(group.parity, 0, data, 0, data.length);
+        for (byte[] segment : present.values()) {
+            for (int i = 0; i < Math.min(segment.length, data.length); i++) {
+                data[i] ^= segment[i];
+            }
+        }
+        return new Recovered(gapStart, data);
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.Arrays;
+
+/**
+ * Client side of forward error correction. XORs every group of data segments into one parity segment, which the
+ * server can use to rebuild any single segment of the group that is lost, without waiting for a retransmit.
+ * Groups are consecutive data segments in stream order. The parity segment carries the group's first sequence
+ * number as its sequence number, the group's length in bytes in its ACK field and the number of segments in its
+ * window field; its payload is the XOR of the group's payloads, each padded with zeros to the longest.
+ */
+public class ParityEncoder {
+    private final int groupSize;
+    private final byte[] parity;
+    private long groupStart;
+    private int groupLength;
+    private int count;
+    private int longest;
+
+    /**
+     * Constructs the encoder
+     * @param groupSize data segments per parity segment
+     * @param maxPayload largest data segment payload
+     */
+    public ParityEncoder(int groupSize, int maxPayload) {
+        this.groupSize = groupSize;
+        this.parity = new byte[maxPayload];
+    }
+
+    /**
+     * Adds the next data segment of the stream
+     * @param sequenceNumber stream offset of the segment
+     * @param data segment payload
+     * @return the parity segment if this segment completed a group, otherwise null
+     */
+    public TcpPacket add(long sequenceNumber, byte[] data) {
+        if (this.count == 0) this.groupStart = sequenceNumber;
+        for (int i = 0; i < data.length; i++) {
+            this.parity[i] ^= data[i];
+        }
+        this.longest = Math.max(this.longest, data.length);
+        this.groupLength += data.length;
+        this.count++;
+        return this.count == this.groupSize ? flush() : null;
+    }
+
+    /**
+     * Ends the current group early, at the end of the stream
+     * @return the parity segment for the partial group, or null if the group is empty
+     */
+    public TcpPacket flush() {
+        if (this.count == 0) return null;
+        byte[] payload = new byte[this.longest];
+        System.arraycopy(this.parity, 0, payload, 0, this.longest);
+        TcpHeader header = new TcpHeader(SequenceNumbers.wrap(this.groupStart), this.groupLength, 0, 0, 0, 0,
+                this.count, 0);
+        header.setIsParity(1);
+        Arrays.fill(this.parity, (byte) 0);
+        this.groupLength = 0;
+        this.count = 0;
+        this.longest = 0;
+        return new TcpPacket(header, payload);
+    }
+}
@@ -0,0 +1,269 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Staged receive path for the server, so one fast flow can use more than one core. A reader thread only pulls
+ * datagrams off the transport into pooled buffers; a pool of workers deserializes them and validates their checksums
+ * in parallel; the server thread, the committer, takes the results in the order the datagrams arrived and does the
+ * ordering, digesting and ACKing as before.
+ * <p>
+ * Each datagram's work is a {@link Future} queued in arrival order, so the committer never sees datagrams reordered
+ * by the workers. The queue and the buffer pool are bounded: when the committer falls behind the reader stops taking
+ * datagrams and they wait in the socket's receive buffer. The receive timeout applies to the committer's wait, on the
+ * transport's clock. The reader is started, and both ends wait on the queue, through the transport, so over a
+ * {@link SimulatedNetwork} the pipeline is scheduled like any other pair of threads.
+ * <p>
+ * The pipeline is itself a {@link DatagramTransport}, so code that reads raw datagrams, such as the ACK reader of a
+ * download, works over it unchanged.
+ */
+public class ReceivePipeline implements DatagramTransport {
+    private static final int QUEUE_DEPTH = 256;
+    private static final AtomicInteger pipelineIds = new AtomicInteger();
+
+    private final DatagramTransport transport;
+    private final BlockingQueue<byte[]> bufferPool;
+    // at most QUEUE_DEPTH, guarded by itself
+    private final ArrayDeque<Future<Segment>> arrivals = new ArrayDeque<>();
+    private final ExecutorService workers;
+    private final Thread reader;
+    private volatile int timeout;
+    private volatile boolean isClosed;
+
+    /**
+     * A datagram after the worker stage: deserialized, with its checksum validated
+     */
+    public static class Segment {
+        private final TcpPacket packet;
+        private final InetAddress address;
+        private final int port;
+        private final int length;
+
+        private Segment(TcpPacket packet, InetAddress address, int port, int length) {
+            this.packet = packet;
+            this.address = address;
+            this.port = port;
+            this.length = length;
+        }
+
+        public TcpPacket getPacket() {
+            return this.packet;
+        }
+
+        public InetAddress getAddress() {
+            return this.address;
+        }
+
+        public int getPort() {
+            return this.port;
+        }
+
+        /**
+         * @return size of the datagram
+         */
+        public int getLength() {
+            return this.length;
+        }
+    }
+
+    /**
+     * Constructs the pipeline and starts its reader and workers
+     * @param transport transport to read from, with no receive timeout
+     * @param maxSegmentSize max segment size to receive
+     * @param workerCount number of worker threads
+     */
+    public ReceivePipeline(DatagramTransport transport, int maxSegmentSize, int workerCount) {
+        this.transport = transport;
+        // every queued datagram holds a buffer until its worker is done with it
+        int poolSize = QUEUE_DEPTH + workerCount;
+        this.bufferPool = new ArrayBlockingQueue<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            this.bufferPool.add(new byte[maxSegmentSize]);
+        }
+        int id = pipelineIds.incrementAndGet();
+        AtomicInteger workerIds = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "ReceiveWorker-" + id + "-" + workerIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reader = new Thread(this::read, "ReceiveReader-" + id);
+        this.reader.setDaemon(true);
+        this.transport.start(this.reader);
+    }
+
+    /**
+     * Reader stage: receive into a pooled buffer and hand it to a worker, until the transport fails or closes
+     */
+    private void read() {
+        try {
+            while (!this.isClosed) {
+                byte[] buffer = this.bufferPool.take();
+                DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+                this.transport.receive(datagram);
+                InetAddress address = datagram.getAddress();
+                int port = datagram.getPort();
+                int length = datagram.getLength();
+                enqueue(this.workers.submit(() -> decode(buffer, length, address, port)));
+            }
+        } catch (IOException e) {
+            failArrivals(e);
+        } catch (InterruptedException e) {
+            failArrivals(new SocketException("Receive pipeline interrupted"));
+        }
+    }
+
+    /**
+     * Worker stage: copy the segment out of the pooled buffer, validate its checksum so the committer finds the
+     * result remembered, and give the buffer back
+     */
+    private Segment decode(byte[] buffer, int length, InetAddress address, int port) {
+        TcpPacket packet;
+        try {
+            packet = TcpPacket.deserialize(Arrays.copyOf(buffer, length));
+        } finally {
+            this.bufferPool.add(buffer);
+        }
+        packet.validateChecksum();
+        return new Segment(packet, address, port, length);
+    }
+
+    /**
+     * Queues a datagram's work for the committer, waiting while the queue is full
+     * @param arrival the work
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void enqueue(Future<Segment> arrival) throws InterruptedException {
+        synchronized (this.arrivals) {
+            while (this.arrivals.size() >= QUEUE_DEPTH) {
+                this.transport.await(this.arrivals, 0);
+            }
+            this.arrivals.addLast(arrival);
+            this.transport.signalAll(this.arrivals);
+        }
+    }
+
+    /**
+     * Queues the reader's failure so the committer sees it after every datagram that arrived before it
+     */
+    private void failArrivals(IOException failure) {
+        CompletableFuture<Segment> failed = new CompletableFuture<>();
+        failed.completeExceptionally(failure);
+        try {
+            enqueue(failed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Committer stage: waits for the next datagram in arrival order, already deserialized and validated
+     * @return the segment
+     * @throws SocketTimeoutException if nothing arrives within the receive timeout
+     * @throws IOException if the transport failed or was closed
+     */
+    public Segment receiveSegment() throws IOException {
+        Future<Segment> next;
+        synchronized (this.arrivals) {
+            int timeout = this.timeout;
+            long deadline = this.transport.nanoTime() + timeout * 1000000L;
+            try {
+                while ((next = this.arrivals.pollFirst()) == null) {
+                    long remaining = deadline - this.transport.nanoTime();
+                    if (timeout > 0 && remaining <= 0) throw new SocketTimeoutException("Receive timed out");
+                    this.transport.await(this.arrivals, timeout > 0 ? remaining : 0);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SocketException("Interrupted");
+            }
+            // the reader may be waiting for room
+            this.transport.signalAll(this.arrivals);
+        }
+        try {
+            return next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                // keep failing, like a closed socket does
+                synchronized (this.arrivals) {
+                    this.arrivals.addFirst(next);
+                }
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void receive(DatagramPacket packet) throws IOException {
+        Segment segment = receiveSegment();
+        byte[] bytes = segment.getPacket().serialize();
+        int length = Math.min(bytes.length, packet.getData().length - packet.getOffset());
+        System.arraycopy(bytes, 0, packet.getData(), packet.getOffset(), length);
+        packet.setLength(length);
+        packet.setAddress(segment.getAddress());
+        packet.setPort(segment.getPort());
+    }
+
+    @Override
+    public void send(DatagramPacket packet) throws IOException {
+        this.transport.send(packet);
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void close() {
+        this.isClosed = true;
+        this.transport.close();
+        this.workers.shutdown();
+    }
+
+    @Override
+    public long nanoTime() {
+        return this.transport.nanoTime();
+    }
+
+    @Override
+    public void sleepNanos(long nanos) throws InterruptedException {
+        this.transport.sleepNanos(nanos);
+    }
+
+    @Override
+    public void await(Object monitor, long timeoutNanos) throws InterruptedException {
+        this.transport.await(monitor, timeoutNanos);
+    }
+
+    @Override
+    public void signalAll(Object monitor) {
+        this.transport.signalAll(monitor);
+    }
+
+    @Override
+    public void start(Thread thread) {
+        this.transport.start(thread);
+    }
+
+    @Override
+    public void join(Thread thread) throws InterruptedException {
+        this.transport.join(thread);
+    }
+}
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Hot-file cache for downloads. Each entry memory-maps a file and keeps its {@link FileHeader} and the checksum sum of
+ * every segment's payload, so sending the same file again needs neither an MD5 pass over the disk nor a checksum pass
+ * over the data, only the 20 header bytes of each segment.
+ * <p>
+ * Entries are evicted least recently used first once the mapped bytes exceed the capacity. A file that changed size
+ * or modification time since it was cached is mapped again. Files bigger than the whole cache aren't cached. Mapped
+ * pages live in the page cache rather than on the heap, and are released once an evicted entry is collected.
+ */
+public class SegmentCache {
+    private final long capacityBytes;
+    private final LinkedHashMap<Path, CachedFile> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * Constructs an empty cache
+     * @param capacityBytes most file bytes kept mapped at once
+     */
+    public SegmentCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * Returns the cached segments of a file, mapping and checksumming it first if it isn't cached or changed on disk
+     * @param path the file
+     * @param dataPerSegment payload bytes per segment
+     * @return the cached file, or null if the file is too big to cache
+     * @throws IOException if the file can't be read
+     */
+    public synchronized CachedFile get(Path path, int dataPerSegment) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        CachedFile cached = this.entries.get(key);
+        if (cached != null && cached.size == attributes.size()
+                && cached.lastModified == attributes.lastModifiedTime().toMillis()
+                && cached.dataPerSegment == dataPerSegment) {
+            this.hits++;
+            return cached;
+        }
+        this.misses++;
+        if (cached != null) remove(key);
+        // a single mapping can't exceed 2 GB
+        if (attributes.size() > Math.min(this.capacityBytes, Integer.MAX_VALUE)) return null;
+        cached = CachedFile.map(key, attributes, dataPerSegment);
+        this.entries.put(key, cached);
+        this.cachedBytes += cached.size;
+        Iterator<Map.Entry<Path, CachedFile>> eldest = this.entries.entrySet().iterator();
+        while (this.cachedBytes > this.capacityBytes && eldest.hasNext()) {
+            Map.Entry<Path, CachedFile> entry = eldest.next();
+            if (entry.getValue() == cached) continue;
+            this.cachedBytes -= entry.getValue().size;
+            eldest.remove();
+        }
+        return cached;
+    }
+
+    private void remove(Path key) {
+        CachedFile removed = this.entries.remove(key);
+        if (removed != null) this.cachedBytes -= removed.size;
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized long getCachedBytes() {
+        return this.cachedBytes;
+    }
+
+    /**
+     * One mapped file, split into segments of a fixed payload size
+     */
+    public static class CachedFile {
+        private final FileHeader header;
+        private final MappedByteBuffer contents;
+        private final int[] payloadSums;
+        private final int dataPerSegment;
+        private final long size;
+        private final long lastModified;
+
+        private CachedFile(FileHeader header, MappedByteBuffer contents, int[] payloadSums, int dataPerSegment,
+                           long size, long lastModified) {
+            this.header = header;
+            this.contents = contents;
+            this.payloadSums = payloadSums;
+            this.dataPerSegment = dataPerSegment;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Maps a file and makes one pass over it for the MD5 and the payload sums
+         * @param path the file
+         * @param attributes its size and modification time
+         * @param dataPerSegment payload bytes per segment
+         * @return the cached file
+         * @throws IOException if the file can't be mapped
+         */
+        private static CachedFile map(Path path, BasicFileAttributes attributes, int dataPerSegment)
+                throws IOException {
+            MessageDigest md5Digest;
+            try {
+                md5Digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            long size = attributes.size();
+            MappedByteBuffer contents;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            int segments = (int) ((size + dataPerSegment - 1) / dataPerSegment);
+            int[] payloadSums = new int[segments];
+            for (int i = 0; i < segments; i++) {
+                int offset = i * dataPerSegment;
+                payloadSums[i] = Utils.sumIPChecksumWords(contents, offset,
+                        (int) Math.min(dataPerSegment, size - offset));
+            }
+            md5Digest.update(contents.duplicate());
+            FileHeader header = new FileHeader(path.getFileName().toString(), size, md5Digest.digest());
+            return new CachedFile(header, contents, payloadSums, dataPerSegment, size,
+                    attributes.lastModifiedTime().toMillis());
+        }
+
+        public FileHeader getHeader() {
+            return this.header;
+        }
+
+        /**
+         * @return number of data segments, not counting the header segment
+         */
+        public int getSegmentCount() {
+            return this.payloadSums.length;
+        }
+
+        /**
+         * Copies a segment's payload out of the mapping
+         * @param index segment number
+         * @return the payload
+         */
+        public byte[] getSegment(int index) {
+            int offset = index * this.dataPerSegment;
+            byte[] data = new byte[(int) Math.min(this.dataPerSegment, this.size - offset)];
+            ByteBuffer view = this.contents.duplicate();
+            view.position(offset);
+            view.get(data);
+            return data;
+        }
+
+        /**
+         * @param index segment number
+         * @return unfolded checksum sum of the segment's payload
+         */
+        public int getPayloadSum(int index) {
+            return this.payloadSums[index];
+        }
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.ArrayDeque;
+
+/**
+ * Sender-side sliding window shared by the client's send and receive threads. Tracks every segment that has been sent
+ * but not acknowledged, in stream order, using 64-bit stream offsets. The send thread blocks in
+ * {@link #awaitSpace(int)} while the bytes in flight would exceed the window; the receive thread feeds ACKs in through
+ * {@link #onAck(int, int, boolean, long)} and retransmits {@link #nextRetransmission()} on timeouts and duplicate ACKs.
+ * ACKs for segments that were never retransmitted also feed a smoothed round trip time, which sets the pacing rate.
+ * <p>
+ * The window is the one the server advertised, further limited by a congestion window once the network has signalled
+ * congestion. The signal is an ACK echoing an ECN mark: a congested hop marks segments instead of dropping them, and
+ * the congestion window is halved, at most once per window of data, and then grows by a segment per round trip. Until
+ * the first echo there is no congestion window, so a path without ECN marking behaves as before.
+ * <p>
+ * The send thread waits through the transport's clock, so over a {@link SimulatedNetwork} it counts as blocked.
+ */
+public class SendWindow {
+    /**
+     * A segment in flight
+     */
+    public static class Segment {
+        private final long sequenceNumber;
+        private final int length;
+        private final DatagramPacket packet;
+        private final long sentAt;
+        private boolean isRetransmitted;
+
+        private Segment(long sequenceNumber, int length, DatagramPacket packet, long sentAt) {
+            this.sequenceNumber = sequenceNumber;
+            this.length = length;
+            this.packet = packet;
+            this.sentAt = sentAt;
+        }
+
+        public long getSequenceNumber() {
+            return this.sequenceNumber;
+        }
+
+        public int getLength() {
+            return this.length;
+        }
+
+        public DatagramPacket getPacket() {
+            return this.packet;
+        }
+
+        /**
+         * @return when the segment was first sent, from the transport's clock
+         */
+        public long getSentAt() {
+            return this.sentAt;
+        }
+    }
+
+    // window assumed until the first ACK says otherwise
+    private static final int INITIAL_WINDOW = 0xFFFF;
+    // pace a little faster than one window per round trip so the pacer never becomes the limit
+    private static final double PACING_GAIN = 1.25;
+    // a connection marked over and over still keeps a few segments in flight
+    private static final long MIN_CONGESTION_WINDOW = 4 * 1024;
+
+    private final ArrayDeque<Segment> inFlight = new ArrayDeque<>();
+    private final int windowScale;
+    // null for a sender that never waits in awaitSpace
+    private final DatagramTransport clock;
+    private long oldestUnacked;
+    private long nextSequenceNumber;
+    private long peerWindow;
+    private int duplicateAcks;
+    // end of the data in flight when the last fast retransmit started, -1 when not recovering
+    private long recoveryPoint = -1;
+    private long smoothedRttNanos;
+    private long congestionWindow = Long.MAX_VALUE;
+    // end of the data in flight when the congestion window was last cut, echoes for data before it are the same event
+    private long congestionPoint = -1;
+    private long congestionReductions;
+    private boolean isClosed;
+    private IOException failure;
+
+    /**
+     * Constructs the window
+     * @param initialSequenceNumber stream offset of the first byte to be sent
+     * @param windowScale shift the server applies to the window it advertises
+     * @param clock transport the send and receive threads use, which {@link #awaitSpace(int)} waits through
+     */
+    public SendWindow(long initialSequenceNumber, int windowScale, DatagramTransport clock) {
+        this.oldestUnacked = initialSequenceNumber;
+        this.nextSequenceNumber = initialSequenceNumber;
+        this.windowScale = windowScale;
+        this.peerWindow = INITIAL_WINDOW;
+        this.clock = clock;
+    }
+
+    /**
+     * Constructs a window for a sender that checks {@link #hasSpace(int)} instead of waiting
+     * @param initialSequenceNumber stream offset of the first byte to be sent
+     * @param windowScale shift the server applies to the window it advertises
+     */
+    public SendWindow(long initialSequenceNumber, int windowScale) {
+        this(initialSequenceNumber, windowScale, null);
+    }
+
+    /**
+     * Blocks until a segment of the given length fits in the window. A segment always fits when nothing is in flight
+     * so a tiny window can't stall the connection.
+     * @param length payload length
+     * @throws IOException if the connection failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void awaitSpace(int length) throws IOException, InterruptedException {
+        while (this.failure == null && !this.inFlight.isEmpty()
+                && this.nextSequenceNumber + length - this.oldestUnacked > getWindow()) {
+            if (this.clock != null) {
+                this.clock.await(this, 0);
+            } else {
+                wait();
+            }
+        }
+        if (this.failure != null) throw this.failure;
+    }
+
+    /**
+     * Non-blocking form of {@link #awaitSpace(int)}, for a sender that can't wait on the window
+     * @param length payload length
+     * @return true if a segment of the given length fits in the window now
+     */
+    public synchronized boolean hasSpace(int length) {
+        return this.inFlight.isEmpty() || this.nextSequenceNumber + length - this.oldestUnacked <= getWindow();
+    }
+
+    /**
+     * Records a segment that is about to be sent
+     * @param sequenceNumber stream offset of its first byte, which must be the next sequence number
+     * @param length payload length
+     * @param packet the datagram, kept for retransmission
+     * @param now send time in nanoseconds, from the transport's clock
+     */
+    public synchronized void add(long sequenceNumber, int length, DatagramPacket packet, long now) {
+        this.inFlight.addLast(new Segment(sequenceNumber, length, packet, now));
+        this.nextSequenceNumber = sequenceNumber + length;
+    }
+
+    /**
+     * Applies an ACK from the server
+     * @param wireAckNumber 32-bit ACK number from the header
+     * @param wireWindow window field from the header, before scaling
+     * @param isCongestionEchoed the ACK echoes an ECN mark
+     * @param now arrival time in nanoseconds, from the transport's clock
+     * @return true if the oldest segment should be retransmitted now: on the third duplicate ACK in a row, or on an
+     * ACK that moves forward but stops short of where recovery started, which means the next segment was lost
+     * too (NewReno)
+     */
+    public synchronized boolean onAck(int wireAckNumber, int wireWindow, boolean isCongestionEchoed, long now) {
+        long ackNumber = SequenceNumbers.unwrap(wireAckNumber, this.oldestUnacked);
+        this.peerWindow = (long) wireWindow << this.windowScale;
+        if (ackNumber > this.nextSequenceNumber) {
+            // acknowledges something never sent, ignore it
+            return false;
+        }
+        if (isCongestionEchoed && ackNumber >= this.congestionPoint) {
+            long flight = Math.min(this.nextSequenceNumber - this.oldestUnacked, this.congestionWindow);
+            this.congestionWindow = Math.max(flight / 2, MIN_CONGESTION_WINDOW);
+            this.congestionPoint = this.nextSequenceNumber;
+            this.congestionReductions++;
+        }
+        if (ackNumber <= this.oldestUnacked) {
+            wakeSender();
+            if (this.inFlight.isEmpty() || this.recoveryPoint != -1) return false;
+            return ++this.duplicateAcks == 3;
+        }
+        this.duplicateAcks = 0;
+        long previouslyUnacked = this.oldestUnacked;
+        this.oldestUnacked = ackNumber;
+        Segment newestAcked = null;
+        while (!this.inFlight.isEmpty()
+                && this.inFlight.peekFirst().sequenceNumber + this.inFlight.peekFirst().length <= ackNumber) {
+            newestAcked = this.inFlight.pollFirst();
+        }
+        // Karn's algorithm, an ACK for a retransmitted segment could be for either copy
+        if (newestAcked != null && !newestAcked.isRetransmitted) {
+            updateRoundTripTime(now - newestAcked.sentAt);
+        }
+        if (newestAcked != null && this.congestionWindow < this.peerWindow && ackNumber > this.congestionPoint) {
+            // additive increase, one segment per window acknowledged
+            long acked = ackNumber - previouslyUnacked;
+            this.congestionWindow += Math.max(acked * newestAcked.length / this.congestionWindow, 1);
+        }
+        wakeSender();
+        if (this.recoveryPoint != -1) {
+            if (ackNumber < this.recoveryPoint) return true;
+            this.recoveryPoint = -1;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the oldest unacknowledged segment, to retransmit, and stops it from giving a round trip sample. Starts
+     * recovery if it isn't under way, so after a timeout the following holes are filled one per ACK rather than one
+     * per timeout.
+     * @return the segment, or null if nothing is in flight
+     */
+    public synchronized Segment nextRetransmission() {
+        Segment oldest = this.inFlight.peekFirst();
+        if (oldest == null) return null;
+        oldest.isRetransmitted = true;
+        if (this.recoveryPoint == -1) this.recoveryPoint = this.nextSequenceNumber;
+        return oldest;
+    }
+
+    private void wakeSender() {
+        if (this.clock != null) {
+            this.clock.signalAll(this);
+        } else {
+            notifyAll();
+        }
+    }
+
+    private void updateRoundTripTime(long sampleNanos) {
+        if (this.smoothedRttNanos == 0) {
+            this.smoothedRttNanos = Math.max(sampleNanos, 1);
+        } else {
+            this.smoothedRttNanos = Math.max(this.smoothedRttNanos + (sampleNanos - this.smoothedRttNanos) / 8, 1);
+        }
+    }
+
+    /**
+     * @return smoothed round trip time in nanoseconds, 0 before the first sample
+     */
+    public synchronized long getSmoothedRttNanos() {
+        return this.smoothedRttNanos;
+    }
+
+    /**
+     * @return the rate that spreads one window evenly over a round trip, in bytes per second, or 0 before the first
+     * round trip sample
+     */
+    public synchronized double getPacingRate() {
+        if (this.smoothedRttNanos == 0) return 0;
+        return PACING_GAIN * getWindow() * 1e9 / this.smoothedRttNanos;
+    }
+
+    /**
+     * @return bytes allowed in flight: the server's window, or the congestion window if that's smaller
+     */
+    public synchronized long getWindow() {
+        return Math.min(this.peerWindow, this.congestionWindow);
+    }
+
+    /**
+     * @return times the congestion window was cut for an ECN echo
+     */
+    public synchronized long getCongestionReductions() {
+        return this.congestionReductions;
+    }
+
+    /**
+     * Marks the end of the stream, no more segments will be added
+     */
+    public synchronized void close() {
+        this.isClosed = true;
+        wakeSender();
+    }
+
+    /**
+     * Fails the connection, waking the send thread
+     * @param failure why
+     */
+    public synchronized void fail(IOException failure) {
+        this.failure = failure;
+        wakeSender();
+    }
+
+    /**
+     * @return true once the stream is closed and every byte has been acknowledged
+     */
+    public synchronized boolean isComplete() {
+        return this.isClosed && this.inFlight.isEmpty();
+    }
+
+    public synchronized boolean isFailed() {
+        return this.failure != null;
+    }
+
+    public synchronized long getPeerWindow() {
+        return this.peerWindow;
+    }
+
+    /**
+     * @return stream offset of the first byte not yet acknowledged
+     */
+    public synchronized long getAcknowledged() {
+        return this.oldestUnacked;
+    }
+
+    public synchronized long getBytesInFlight() {
+        return this.nextSequenceNumber - this.oldestUnacked;
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Arithmetic between the 32-bit sequence and ACK numbers on the wire and the 64-bit stream offsets both ends keep
+ * internally. Wire numbers wrap around every 4 GB; as long as the two ends are never more than 2 GB apart, a wire
+ * number can be placed exactly by comparing it with a nearby offset (RFC 1982 serial number arithmetic). Also holds
+ * the window scaling used to advertise windows larger than the 16-bit window field.
+ */
+public final class SequenceNumbers {
+    /**
+     * Largest window scale shift, as in TCP
+     */
+    public static final int MAX_WINDOW_SCALE = 14;
+
+    private SequenceNumbers() {
+    }
+
+    /**
+     * Truncates a stream offset to the wire
+     * @param offset 64-bit stream offset
+     * @return 32-bit wire number
+     */
+    public static int wrap(long offset) {
+        return (int) offset;
+    }
+
+    /**
+     * Expands a wire number into the stream offset closest to a reference offset
+     * @param wire 32-bit wire number
+     * @param reference an offset known to be within 2 GB of the answer, such as the next expected sequence number
+     * @return the 64-bit stream offset
+     */
+    public static long unwrap(int wire, long reference) {
+        return reference + (wire - (int) reference);
+    }
+
+    /**
+     * Compares two wire numbers modulo 2^32
+     * @param a first wire number
+     * @param b second wire number
+     * @return true if a comes before b
+     */
+    public static boolean isBefore(int a, int b) {
+        return a - b < 0;
+    }
+
+    /**
+     * Picks the smallest shift that fits a window into the 16-bit window field
+     * @param window window in bytes
+     * @return the shift
+     */
+    public static int windowScaleFor(long window) {
+        int shift = 0;
+        while ((window >> shift) > 0xFFFF && shift < MAX_WINDOW_SCALE) {
+            shift++;
+        }
+        return shift;
+    }
+}
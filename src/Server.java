@@ -1,19 +1,49 @@
 import javax.xml.bind.DatatypeConverter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Server thread
  */
 public class Server {
-    private DatagramSocket socket;
+    private static final int CLOSE_TIMEOUT = 1000;
+    private static final int MAX_FIN_ATTEMPTS = 5;
+    // bytes the client may have in flight beyond the last ACK, advertised using a window scale
+    private static final long RECEIVE_WINDOW = 4 * 1024 * 1024;
+    private static final int WINDOW_SCALE = SequenceNumbers.windowScaleFor(RECEIVE_WINDOW);
+    // a connected client that has sent nothing for this long is presumed gone, and another client's SYN takes over
+    private static final long PEER_IDLE_NANOS = 3000000000L;
+    private static final int DEFAULT_IDLE_TIMEOUT = 30000;
+
+    private DatagramTransport socket;
+    private ReceivePipeline pipeline;
     private int maxSegmentSize;
     private boolean isVerbose;
     private MessageDigest md5Digest;
@@ -22,180 +52,999 @@ public class Server {
     private int ackNumber;
     private InetAddress clientAddress = null;
     private int clientPort = -1;
-    private int clientSequenceNumber = -1;
-    private int lastAckNumber = -1;
-    private HashMap<Integer, TcpPacket> packetCache;
+    // 64-bit stream offsets, the 32-bit wire numbers are unwrapped against lastAckNumber
+    private long clientSequenceNumber = -1;
+    private long lastAckNumber = -1;
+    private TreeMap<Long, TcpPacket> packetCache;
+    // payload bytes held in packetCache, at most reassemblyQuota
+    private long cachedBytes;
+    private long reassemblyQuota = RECEIVE_WINDOW;
+    private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private final ServerMetrics serverMetrics = new ServerMetrics();
+    // a segment arrived marked by a congested hop, echoed on the next ACK
+    private boolean isCongestionExperienced;
+    private FileHeader currentFile;
+    private TcpPacket synAckPacket;
+    private TcpPacket pendingSynPacket;
+    private InetAddress connectionAddress;
+    private int connectionPort = -1;
+    private long lastPeerActivity;
+    private final ConnectionCookies cookies;
+    private boolean isFastOpen;
+    private boolean isCompressionEnabled;
+    private boolean isCompressed;
+    private BlockDecompressor decompressor = new BlockDecompressor();
+    private boolean isParityEnabled;
+    private int parityGroupSize;
+    private ParityDecoder parityDecoder;
+    private long remainingFileBytes;
+    private Path serveDirectory;
+    private SegmentCache segmentCache;
+    private boolean isDownload;
+    private ByteArrayOutputStream downloadRequest = new ByteArrayOutputStream();
+    private Path storeDirectory;
+    private boolean isDedup;
+    private DeltaDecoder deltaDecoder = new DeltaDecoder();
+    // signatures of stored files, recomputed when a file changes
+    private Map<Path, BlockSignatures> signatureIndex = new HashMap<>();
+    private FileChannel deltaBase;
+    private Path storePath;
+    private Path storePartPath;
+    private OutputStream storeOutput;
+    private boolean isStreamEnabled;
+    private boolean isStream;
+    private TransportInputStream stream;
+    private final BlockingQueue<TransportInputStream> acceptedStreams = new LinkedBlockingQueue<>();
+    private TransportMetrics metrics;
+    private EventLog log;
+    private volatile boolean isRunning = true;
 
     /**
      * Constructs the server thread, creates the UDP socket to communicate with the client
      * @param port port to listen on
      * @param maxSegmentSize max segment size to send over the connection
      * @param isVerbose turn on verbose mode
+     * @param log diagnostic event log for the per-segment path, closed when {@link #doTheThing()} returns
      * @throws IOException if there are UDP errors
-     * @throws NoSuchAlgorithmException this shouldn't happen
+     * @throws GeneralSecurityException this shouldn't happen
      */
-    public Server(int port, int maxSegmentSize, boolean isVerbose) throws IOException, NoSuchAlgorithmException {
-        this.socket = new DatagramSocket(port);
+    public Server(int port, int maxSegmentSize, boolean isVerbose, EventLog log)
+            throws IOException, GeneralSecurityException {
+        this(new UdpTransport(createSocket(port)), maxSegmentSize, isVerbose, log);
         if (isVerbose) System.out.println("Listening on port " + port + "...");
+    }
+
+    /**
+     * Creates the UDP socket, with a receive buffer big enough to hold the whole advertised window so a paced burst
+     * isn't dropped by the kernel while the server is busy
+     * @param port port to listen on
+     * @return the socket
+     * @throws SocketException if the port is taken
+     */
+    private static DatagramSocket createSocket(int port) throws SocketException {
+        DatagramSocket socket = new DatagramSocket(port);
+        socket.setReceiveBufferSize((int) RECEIVE_WINDOW);
+        return socket;
+    }
+
+    /**
+     * Constructs the server over the given transport
+     * @param socket transport to receive from the client on
+     * @param maxSegmentSize max segment size to send over the connection
+     * @param isVerbose turn on verbose mode
+     * @param log diagnostic event log for the per-segment path, closed when {@link #doTheThing()} returns
+     * @throws GeneralSecurityException this shouldn't happen
+     */
+    public Server(DatagramTransport socket, int maxSegmentSize, boolean isVerbose, EventLog log)
+            throws GeneralSecurityException {
+        this.socket = socket;
         this.maxSegmentSize = maxSegmentSize;
         this.isVerbose = isVerbose;
+        this.log = log;
         this.md5Digest = MessageDigest.getInstance("MD5");
+        this.cookies = new ConnectionCookies();
         this.connectionState = TcpConnectionState.CLOSED;
         this.sequenceNumber = 0;
         this.ackNumber = 0;
-        this.packetCache = new HashMap<>();
+        this.packetCache = new TreeMap<>();
+        this.serverMetrics.setReassemblyQuotaBytes(this.reassemblyQuota);
+    }
+
+    /**
+     * Turns on fast open: hand every client a cookie in the SYN-ACK and accept data on SYNs that present one
+     * @param isFastOpen true to use fast open
+     */
+    public void setFastOpen(boolean isFastOpen) {
+        this.isFastOpen = isFastOpen;
+    }
+
+    /**
+     * Lets clients that ask for it send file contents in deflate blocks
+     * @param isCompressionEnabled true to agree to compression
+     */
+    public void setCompression(boolean isCompressionEnabled) {
+        this.isCompressionEnabled = isCompressionEnabled;
+    }
+
+    /**
+     * Lets clients that ask for it send parity segments, so a lost segment can be rebuilt without a retransmit
+     * @param isParityEnabled true to agree to parity segments
+     */
+    public void setParity(boolean isParityEnabled) {
+        this.isParityEnabled = isParityEnabled;
+    }
+
+    /**
+     * Serves downloads: a client that asks for one names files in its stream, and once it closes its side the server
+     * sends those files back over the same connection
+     * @param directory directory whose files are served, null to refuse downloads
+     * @param cacheBytes most file bytes kept memory-mapped in the hot-file cache
+     */
+    public void setDownloads(Path directory, long cacheBytes) {
+        this.serveDirectory = directory;
+        this.segmentCache = directory != null ? new SegmentCache(cacheBytes) : null;
+    }
+
+    /**
+     * Keeps every file received in a directory, replacing an older copy of the same name once the new one checks out
+     * against its MD5. Lets clients that ask for it deduplicate against the stored copies: they fetch the
+     * {@link BlockSignatures} of the files they're about to send, then send only the blocks the server lacks.
+     * @param directory where received files are kept, null to only digest them
+     */
+    public void setStore(Path directory) {
+        this.storeDirectory = directory;
+    }
+
+    /**
+     * Lets clients that ask for it open a stream connection, whose bytes go to the application through
+     * {@link #acceptStream()} instead of being taken as files. Only turn on if something accepts the streams, or the
+     * first one stalls the server once its buffer fills.
+     * @param isStreamEnabled true to agree to streams
+     */
+    public void setStreams(boolean isStreamEnabled) {
+        this.isStreamEnabled = isStreamEnabled;
+    }
+
+    /**
+     * Waits for the next stream connection. Call from the application's thread while {@link #doTheThing()} runs on
+     * another; read each stream promptly, or close it, since the server serves one connection at a time.
+     * @return the stream, which ends when the client closes its side
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public TransportInputStream acceptStream() throws InterruptedException {
+        return this.acceptedStreams.take();
+    }
+
+    /**
+     * Splits receiving into stages: a reader thread, workers that deserialize and validate checksums in parallel, and
+     * this server's thread committing the results in arrival order. Call before {@link #doTheThing()}.
+     * @param workerCount number of validation workers, 0 to receive on the server's thread alone
+     */
+    public void setReceiveWorkers(int workerCount) {
+        if (workerCount <= 0 || this.pipeline != null) return;
+        this.pipeline = new ReceivePipeline(this.socket, this.maxSegmentSize, workerCount);
+        this.socket = this.pipeline;
+    }
+
+    /**
+     * Caps the bytes a connection may have waiting out of order. The advertised window shrinks to match, so a well
+     * behaved client never sends past it; segments beyond the window or the quota are dropped unacknowledged.
+     * @param bytes the quota, at most the full receive window
+     */
+    public void setReassemblyQuota(long bytes) {
+        this.reassemblyQuota = Math.max(Math.min(bytes, RECEIVE_WINDOW), this.maxSegmentSize);
+        this.serverMetrics.setReassemblyQuotaBytes(this.reassemblyQuota);
+    }
+
+    /**
+     * Evicts a connection whose client has sent nothing for this long, whether it's half-open in the handshake or
+     * stalled mid-transfer, and goes back to listening
+     * @param millis the idle timeout
+     */
+    public void setIdleTimeout(int millis) {
+        this.idleTimeout = millis;
+    }
+
+    /**
+     * @return number of connections evicted for going idle since the server started
+     */
+    public long getEvictedConnections() {
+        return this.serverMetrics.getEvictedConnections();
     }
 
     public void doTheThing() {
-        while(true) {
-            try {
-                if (this.connectionState != TcpConnectionState.ESTABLISHED) {
-                    listenForHandshake();
+        this.serverMetrics.register();
+        try {
+            while (this.isRunning) {
+                try {
+                    if (this.connectionState != TcpConnectionState.ESTABLISHED) {
+                        if (this.metrics != null) this.metrics.unregister();
+                        this.metrics = TransportMetrics.register("server");
+                        listenForHandshake();
+                    }
+                    receiveFile();
+                } catch (IOException e) {
+                    if (!this.isRunning) break;
+                    this.log.record(LogEvent.IO_ERROR, this.lastAckNumber);
+                    e.printStackTrace();
                 }
-                receiveFile();
-            } catch (IOException e) {
-                e.printStackTrace();
             }
+        } finally {
+            if (this.stream != null) this.stream.fail(new IOException("Server closed"));
+            if (this.metrics != null) this.metrics.unregister();
+            this.serverMetrics.unregister();
+            // write out the events still buffered and stop the writer thread
+            this.log.close();
         }
     }
 
     /**
-     * Performs the server's part of the three way handshake
+     * Stops the server and closes its transport. A blocked {@link #doTheThing()} returns.
+     */
+    public void close() {
+        this.isRunning = false;
+        this.socket.close();
+    }
+
+    /**
+     * Performs the server's part of the three way handshake without keeping anything for a half-open connection, so a
+     * flood of SYNs, spoofed or not, costs no memory and never blocks the server waiting for an ACK. Every SYN is
+     * answered with a SYN-ACK whose sequence number is a SYN cookie ({@link ConnectionCookies}); the connection is only
+     * set up when a segment acknowledges a valid cookie, which is the final ACK or, if that was lost, the client's first
+     * segment after it. The options agreed in the SYN-ACK come back out of the cookie. With fast open enabled the
+     * SYN-ACK also carries the client's fast open cookie; a SYN presenting a valid one has its data accepted right away
+     * and the connection is established without waiting for the final ACK.
      * @throws IOException if there's weird stuff with the UDP port
      */
     private void listenForHandshake() throws IOException {
         this.connectionState = TcpConnectionState.LISTEN;
         if (this.isVerbose) System.out.println("Listening for handshake...");
-        while (this.connectionState != TcpConnectionState.SYN_RECEIVED) {
-            if (this.isVerbose) System.out.println("Waiting for SYN...");
-            TcpPacket synPacket = receivePacketForHandshake();
-            if (synPacket.getHeader().getIsRst() == 1) {
-                if (this.isVerbose) System.out.println("Received RST from client, restarting handshake...");
-                continue;
+        while (true) {
+            TcpPacket packet;
+            if (this.pendingSynPacket != null) {
+                packet = this.pendingSynPacket;
+                this.pendingSynPacket = null;
+            } else {
+                packet = receivePacketForHandshake();
             }
-            if (!synPacket.validateChecksum()) {
+            TcpHeader header = packet.getHeader();
+            if (header.getIsRst() == 1 || header.getIsParity() == 1) continue;
+            if (!packet.validateChecksum()) {
+                this.metrics.checksumFailure();
                 if (this.isVerbose) System.out.println("Received corrupted packet from client waiting for SYN");
                 continue;
             }
-            if (synPacket.getHeader().getIsSyn() != 1) {
-                if (this.isVerbose) System.out.println("Received packet from client with incorrect CTRL flags");
+            if (header.getIsSyn() == 1) {
+                if (answerSyn(packet)) return;
                 continue;
             }
-            if (this.isVerbose) {
-                System.out.println("Received SYN from client");
-                System.out.println("Sending SYN-ACK...");
+            // the final ACK and the first segment after it both carry the sequence number after the SYN's
+            ConnectionOptions agreed = this.cookies.checkSynCookie(header.getAckNumber() - 1, this.clientAddress,
+                    this.clientPort, header.getSequenceNumber() - 1, WINDOW_SCALE, this.socket.nanoTime());
+            if (agreed == null) {
+                if (this.isVerbose) System.out.println("Received packet from client without a valid SYN cookie");
+                continue;
             }
-            this.connectionState = TcpConnectionState.SYN_RECEIVED;
-            this.clientSequenceNumber = synPacket.getHeader().getSequenceNumber();
-        }
-        // add one to the sequence number even though no data was received, special case
-        TcpPacket synAckPacket = createSynAckPacket(this.sequenceNumber, this.clientSequenceNumber++);
-        this.lastAckNumber = this.clientSequenceNumber;
-        sendPacket(synAckPacket);
-        if (this.isVerbose) System.out.println("Waiting for ACK...");
-        TcpPacket ackPacket = receivePacketForHandshake();
-        if (ackPacket.getHeader().getIsRst() == 1) {
-            if (this.isVerbose) System.out.println("Received RST from client, restarting handshake...");
-            listenForHandshake();
-            return;
-        }
-        if (!ackPacket.validateChecksum()) {
-            if (this.isVerbose) {
-                System.out.println("Received corrupted packet from client waiting for ACK");
-                System.out.println("Resetting connection...");
+            establish(header.getSequenceNumber() - 1, header.getAckNumber() - 1, agreed);
+            if (header.getIsAck() != 1 || packet.getData().length > 0) {
+                // the ACK was lost but data is already flowing, which means the client got the SYN-ACK
+                cacheSegment(SequenceNumbers.unwrap(header.getSequenceNumber(), this.lastAckNumber), packet);
             }
-
-            TcpPacket rstPacket = createRstPacket();
-            sendPacket(rstPacket);
-            listenForHandshake();
-            return;
-        }
-        if (ackPacket.getHeader().getIsAck() != 1) {
             if (this.isVerbose) {
-                System.out.println("Received packet from client with incorrect CTRL flags");
-                System.out.println("Resetting connection...");
+                System.out.println("Received ACK from client");
+                System.out.println("Connection established on server!");
             }
-            TcpPacket rstPacket = createRstPacket();
-            sendPacket(rstPacket);
-            listenForHandshake();
             return;
         }
-        if (this.isVerbose) {
-            System.out.println("Received ACK from client");
-            System.out.println("Connection established on server!");
+    }
+
+    /**
+     * Answers a SYN with a SYN-ACK carrying a SYN cookie, keeping nothing unless the SYN carries fast open data with a
+     * valid cookie, in which case the connection is established and the data consumed
+     * @param synPacket the SYN
+     * @return true if the connection was established
+     * @throws IOException weird UDP stuff
+     */
+    private boolean answerSyn(TcpPacket synPacket) throws IOException {
+        if (this.isVerbose) System.out.println("Received SYN from client");
+        int clientSequenceNumber = synPacket.getHeader().getSequenceNumber();
+        ConnectionOptions agreed = negotiate(ConnectionOptions.fromWindowField(synPacket.getHeader().getWindow()));
+        int synCookie = this.cookies.synCookie(this.clientAddress, this.clientPort, clientSequenceNumber, agreed,
+                this.socket.nanoTime());
+        byte[] fastOpenCookie = this.isFastOpen ? this.cookies.fastOpenCookie(this.clientAddress) : new byte[0];
+        byte[] synData = synPacket.getData();
+        if (this.isFastOpen && synData.length > ConnectionCookies.FAST_OPEN_COOKIE_LENGTH) {
+            byte[] cookie = Arrays.copyOf(synData, ConnectionCookies.FAST_OPEN_COOKIE_LENGTH);
+            if (this.cookies.isValidFastOpenCookie(cookie, this.clientAddress)) {
+                establish(clientSequenceNumber, synCookie, agreed);
+                byte[] data = Arrays.copyOfRange(synData, ConnectionCookies.FAST_OPEN_COOKIE_LENGTH, synData.length);
+                TcpHeader dataHeader = new TcpHeader(SequenceNumbers.wrap(this.lastAckNumber), 0, 0, 0, 0, 0, 0, 0);
+                consume(new TcpPacket(dataHeader, data));
+                this.synAckPacket = createSynAckPacket(synCookie, SequenceNumbers.wrap(this.lastAckNumber), agreed,
+                        fastOpenCookie);
+                if (this.isVerbose) System.out.println("Sending SYN-ACK...");
+                sendPacket(this.synAckPacket);
+                if (this.isVerbose) System.out.println("Connection established on server with data from the SYN!");
+                return true;
+            }
+            if (this.isVerbose) System.out.println("Invalid fast open cookie, ignoring data on the SYN");
         }
+        if (this.isVerbose) System.out.println("Sending SYN-ACK...");
+        // add one to the sequence number even though no data was received, special case
+        sendPacket(createSynAckPacket(synCookie, clientSequenceNumber + 1, agreed, fastOpenCookie));
+        return false;
+    }
+
+    /**
+     * Picks the options to agree to out of the ones a client asked for
+     * @param requested options from the SYN
+     * @return the options for the SYN-ACK
+     */
+    private ConnectionOptions negotiate(ConnectionOptions requested) {
+        // a download's request is tiny, compression and parity only apply to uploads
+        // a download that asks for dedup is a query for the signatures of stored files
+        boolean isSignatureQuery = this.storeDirectory != null && requested.getIsDownload() && requested.getIsDedup();
+        boolean isDownload = isSignatureQuery || this.serveDirectory != null && requested.getIsDownload();
+        boolean isStream = this.isStreamEnabled && requested.getIsStream() && !isDownload;
+        boolean isDedup = this.storeDirectory != null && requested.getIsDedup() && !isStream
+                && (isSignatureQuery || !isDownload);
+        boolean isCompressed = this.isCompressionEnabled && requested.getIsCompressed() && !isDownload && !isDedup;
+        int parityGroupSize = this.isParityEnabled && !isDownload ? requested.getParityGroupSize() : 0;
+        return new ConnectionOptions(WINDOW_SCALE)
+                .withCompression(isCompressed)
+                .withParityGroupSize(parityGroupSize)
+                .withDownload(isDownload)
+                .withStream(isStream)
+                .withDedup(isDedup);
+    }
+
+    /**
+     * Sets up the connection with the client the last packet came from, the first time anything is kept about it
+     * @param clientSequenceNumber sequence number of the client's SYN
+     * @param sequenceNumber the server's initial sequence number, the SYN cookie
+     * @param agreed options agreed in the SYN-ACK
+     */
+    private void establish(int clientSequenceNumber, int sequenceNumber, ConnectionOptions agreed) {
         this.connectionState = TcpConnectionState.ESTABLISHED;
+        this.clientSequenceNumber = clientSequenceNumber;
+        // add one to the sequence number even though no data was received, special case
+        this.lastAckNumber = this.clientSequenceNumber + 1;
+        this.sequenceNumber = sequenceNumber;
+        this.isDownload = agreed.getIsDownload();
+        this.isStream = agreed.getIsStream();
+        this.isDedup = agreed.getIsDedup();
+        this.isCompressed = agreed.getIsCompressed();
+        this.parityGroupSize = agreed.getParityGroupSize();
+        this.downloadRequest.reset();
+        this.parityDecoder = this.parityGroupSize > 0 ? new ParityDecoder(this.parityGroupSize) : null;
+        this.connectionAddress = this.clientAddress;
+        this.connectionPort = this.clientPort;
+        this.lastPeerActivity = this.socket.nanoTime();
+        this.synAckPacket = createSynAckPacket(sequenceNumber, SequenceNumbers.wrap(this.lastAckNumber), agreed,
+                this.isFastOpen ? this.cookies.fastOpenCookie(this.clientAddress) : new byte[0]);
     }
 
     /**
-     * Receive the file from the client. Deals with out of order packets. Prints MD5 checksum of the file when the
-     * client sends a FIN packet
+     * Receive files from the client until it closes the connection. Deals with out of order packets. Each file starts
+     * with a segment holding its {@link FileHeader}; the MD5 checksum of each file is printed once all of its bytes
+     * have arrived. Closes the connection when the client sends a FIN packet.
      * @throws IOException weird UDP stuff
      */
     private void receiveFile() throws IOException {
-        if (this.isVerbose) System.out.println("Waiting for sequence number: " + this.lastAckNumber);
+        this.log.record(LogEvent.WAITING_FOR_SEQUENCE, this.lastAckNumber);
+        FlightEvents.ReceiveFile event = new FlightEvents.ReceiveFile();
+        event.begin();
+        event.client = this.connectionAddress + ":" + this.connectionPort;
+        event.outcome = "error";
+        long deliveredBefore = this.metrics.getBytesDelivered();
+        try {
+            // hand a stream to the application as soon as it's established, even if it turns out empty
+            if (this.isStream) openStream();
+            // data that arrived during the handshake
+            if (checkCache()) {
+                closeConnection();
+                event.outcome = "ended";
+                return;
+            }
+            this.socket.setSoTimeout(this.idleTimeout);
+            try {
+                receiveSegments();
+                event.outcome = "ended";
+            } catch (SocketTimeoutException e) {
+                evict();
+                event.outcome = "evicted";
+            } finally {
+                this.socket.setSoTimeout(0);
+            }
+        } finally {
+            event.bytesDelivered = this.metrics.getBytesDelivered() - deliveredBefore;
+            event.commit();
+        }
+    }
+
+    /**
+     * The body of {@link #receiveFile()}, with the idle timeout set on the socket
+     * @throws IOException weird UDP stuff, or a timeout when the client goes idle
+     */
+    private void receiveSegments() throws IOException {
         while (true) {
-            TcpPacket packetFromClient = receivePacket();
+            TcpPacket packetFromClient = receivePacketFromPeer();
+            if (packetFromClient == null) {
+                if (this.isVerbose) System.out.println("Received SYN from a new client, dropping quiet connection");
+                dropConnectionState();
+                return;
+            }
             if (!packetFromClient.validateChecksum()) {
-                if (this.isVerbose) System.out.println("Received corrupted packet from client, sending duplicate ack");
+                this.metrics.checksumFailure();
+                this.log.record(LogEvent.SEGMENT_CORRUPT, this.lastAckNumber);
                 // send duplicate ack
                 TcpPacket duplicateAck = createAckPacket(this.lastAckNumber);
                 sendPacket(duplicateAck);
+                this.metrics.duplicateAck();
+                continue;
             }
-            this.clientSequenceNumber = packetFromClient.getHeader().getSequenceNumber();
-            if (this.isVerbose) {
-                System.out.println("Expecting packet with sequence number: " + this.lastAckNumber);
-                System.out.println("Received packet with sequence number: " + this.clientSequenceNumber);
+            TcpHeader header = packetFromClient.getHeader();
+            if (header.getIsCongestionExperienced() == 1) this.isCongestionExperienced = true;
+            if (header.getIsParity() == 1) {
+                if (this.parityDecoder == null) continue;
+                if (!this.parityDecoder.addParity(packetFromClient, this.lastAckNumber,
+                        this.lastAckNumber + this.reassemblyQuota)) {
+                    this.metrics.segmentDropped();
+                    continue;
+                }
+                if (recoverFromParity()) {
+                    closeConnection();
+                    return;
+                }
+                continue;
             }
+            if (header.getIsSyn() == 1) {
+                // the client never got the SYN-ACK
+                sendPacket(this.synAckPacket);
+                continue;
+            }
+            if (header.getIsRst() == 1) {
+                if (this.isVerbose) System.out.println("Received RST from client, dropping connection");
+                dropConnectionState();
+                return;
+            }
+            if (packetFromClient.getData().length == 0 && header.getIsFin() == 0) {
+                // a bare ACK, such as the end of a fast open handshake, carries nothing to deliver
+                continue;
+            }
+            this.clientSequenceNumber = SequenceNumbers.unwrap(header.getSequenceNumber(), this.lastAckNumber);
+            this.log.record(LogEvent.SEGMENT_RECEIVED, this.clientSequenceNumber, this.lastAckNumber);
             // if the sequence number equals the last one we ACKed, order is good. Send ack.
             if (this.clientSequenceNumber == this.lastAckNumber) {
-                if (this.isVerbose) {
-                    System.out.println("Sequence number matches expected number");
-                    System.out.println("Updating digest");
+                this.log.record(LogEvent.SEGMENT_IN_ORDER, this.clientSequenceNumber);
+                boolean isDone = deliver(packetFromClient) || checkCache();
+                if (isDone) {
+                    closeConnection();
+                    return;
                 }
-                md5Digest.update(packetFromClient.getData());
-                this.lastAckNumber = this.clientSequenceNumber + packetFromClient.getData().length;
-                sendAckPacket(lastAckNumber);
-                boolean isDone = checkCache(this.lastAckNumber);
-                if (isDone) return;
-                // calculate the final checksum
-                if (packetFromClient.getHeader().getIsFin() == 1) {
-                    byte[] md5Bytes = md5Digest.digest();
-                    System.out.println("MD5: " + DatatypeConverter.printHexBinary(md5Bytes));
-                    this.connectionState = TcpConnectionState.CLOSED;
+            } else if (this.clientSequenceNumber > this.lastAckNumber) {
+                if (!cacheSegment(this.clientSequenceNumber, packetFromClient)) continue;
+                this.log.record(LogEvent.SEGMENT_CACHED, this.clientSequenceNumber, this.packetCache.size());
+                if (this.parityDecoder != null && recoverFromParity()) {
+                    closeConnection();
                     return;
                 }
+                // duplicate ACK for the hole, three of them trigger a fast retransmit
+                if (this.packetCache.containsKey(this.clientSequenceNumber)) {
+                    sendAckPacket(this.lastAckNumber);
+                    this.metrics.duplicateAck();
+                }
+            } else {
+                // already delivered, the ACK must have been lost
+                sendAckPacket(this.lastAckNumber);
+                this.metrics.duplicateAck();
+            }
+        }
 
+    }
+
+    /**
+     * Rebuilds every lost segment the parity segments received so far allow, and delivers the ones that are in order
+     * @return true if delivery reached the client's FIN
+     * @throws IOException weird UDP stuff
+     */
+    private boolean recoverFromParity() throws IOException {
+        ParityDecoder.Recovered recovered;
+        while ((recovered = this.parityDecoder.recover(this.lastAckNumber, this.packetCache)) != null) {
+            this.metrics.segmentRecovered();
+            this.log.record(LogEvent.SEGMENT_RECOVERED, recovered.getSequenceNumber(), recovered.getData().length);
+            TcpHeader header = new TcpHeader(SequenceNumbers.wrap(recovered.getSequenceNumber()), 0, 0, 0, 0, 0, 0, 0);
+            TcpPacket packet = new TcpPacket(header, recovered.getData());
+            if (recovered.getSequenceNumber() == this.lastAckNumber) {
+                if (deliver(packet) || checkCache()) return true;
             } else {
-                if (this.isVerbose) System.out.println("Received out of order packet, adding to cache");
-                this.packetCache.put(packetFromClient.getHeader().getSequenceNumber(), packetFromClient);
+                cacheSegment(recovered.getSequenceNumber(), packet);
             }
         }
+        return false;
+    }
 
+    /**
+     * Delivers every cached packet that is now in order
+     * @return true if one of them was the client's FIN
+     * @throws IOException weird UDP stuff
+     */
+    private boolean checkCache() throws IOException {
+        FlightEvents.Reassembly event = new FlightEvents.Reassembly();
+        event.begin();
+        int delivered = 0;
+        try {
+            TcpPacket cachedPacket;
+            while ((cachedPacket = uncacheSegment(this.lastAckNumber)) != null) {
+                this.log.record(LogEvent.SEGMENT_FROM_CACHE, this.lastAckNumber);
+                delivered++;
+                if (deliver(cachedPacket)) return true;
+            }
+            // copies that were delivered some other way, by a retransmit or from parity, would otherwise stay forever
+            while (!this.packetCache.isEmpty() && this.packetCache.firstKey() < this.lastAckNumber) {
+                uncacheSegment(this.packetCache.firstKey());
+            }
+            return false;
+        } finally {
+            // called after every in-order segment, only a filled hole is worth an event
+            if (delivered > 0) {
+                event.deliveredSegments = delivered;
+                event.cachedSegments = this.packetCache.size();
+                event.cachedBytes = this.cachedBytes;
+                event.commit();
+            }
+        }
     }
 
-    private boolean checkCache(int lastAckNumber) throws IOException {
-        if (this.packetCache.isEmpty()) {
+    /**
+     * Holds a segment that arrived ahead of lastAckNumber, unless it lies beyond the advertised window or the
+     * connection's reassembly quota is used up
+     * @param sequenceNumber stream offset of the segment
+     * @param packet the segment
+     * @return true if it was cached, false if it was dropped
+     */
+    private boolean cacheSegment(long sequenceNumber, TcpPacket packet) {
+        int length = packet.getData().length;
+        TcpPacket previous = this.packetCache.get(sequenceNumber);
+        long growth = length - (previous != null ? previous.getData().length : 0);
+        if (sequenceNumber + length > this.lastAckNumber + this.reassemblyQuota
+                || this.cachedBytes + growth > this.reassemblyQuota) {
+            this.metrics.segmentDropped();
+            this.log.record(LogEvent.SEGMENT_DROPPED, sequenceNumber, this.cachedBytes);
             return false;
         }
+        this.packetCache.put(sequenceNumber, packet);
+        this.cachedBytes += growth;
+        this.metrics.setOutOfOrderCacheDepth(this.packetCache.size());
+        this.serverMetrics.setReassemblyBytes(this.cachedBytes);
+        return true;
+    }
+
+    /**
+     * Takes a segment out of the out of order cache
+     * @param sequenceNumber stream offset of the segment
+     * @return the segment, or null if it isn't cached
+     */
+    private TcpPacket uncacheSegment(long sequenceNumber) {
+        TcpPacket packet = this.packetCache.remove(sequenceNumber);
+        if (packet != null) {
+            this.cachedBytes -= packet.getData().length;
+            this.metrics.setOutOfOrderCacheDepth(this.packetCache.size());
+            this.serverMetrics.setReassemblyBytes(this.cachedBytes);
+        }
+        return packet;
+    }
 
-        for (Map.Entry<Integer, TcpPacket> cacheEntry : this.packetCache.entrySet()) {
-            if (cacheEntry.getKey() == lastAckNumber) {
-                if (this.isVerbose)
-                    System.out.println("ACKing packet from cache with sequence number " + cacheEntry.getKey());
-                this.lastAckNumber = cacheEntry.getKey() + cacheEntry.getValue().getData().length;
-                this.md5Digest.update(cacheEntry.getValue().getData());
-                sendAckPacket(this.lastAckNumber);
-                if (cacheEntry.getValue().getHeader().getIsFin() == 1) {
-                    byte[] md5Bytes = md5Digest.digest();
-                    System.out.println("MD5: " + DatatypeConverter.printHexBinary(md5Bytes));
+    /**
+     * Gives up on a connection whose client went idle and forgets everything about it
+     */
+    private void evict() {
+        this.serverMetrics.connectionEvicted();
+        this.log.record(LogEvent.CONNECTION_EVICTED, this.lastAckNumber, this.cachedBytes);
+        dropConnectionState();
+    }
+
+    /**
+     * Forgets the current connection, freeing everything it held
+     */
+    private void dropConnectionState() {
+        this.connectionState = TcpConnectionState.CLOSED;
+        this.isCongestionExperienced = false;
+        this.packetCache.clear();
+        this.cachedBytes = 0;
+        this.serverMetrics.setReassemblyBytes(0);
+        this.parityDecoder = null;
+        this.downloadRequest.reset();
+        this.currentFile = null;
+        abandonStoredFile();
+        if (this.stream != null) {
+            // no-op once the client's FIN ended it
+            this.stream.fail(new IOException("Connection reset before the end of the stream"));
+            this.stream = null;
+        }
+    }
+
+    /**
+     * Creates the connection's stream and queues it for {@link #acceptStream()}, unless it already exists
+     * @return the stream
+     */
+    private TransportInputStream openStream() {
+        if (this.stream == null) {
+            this.decompressor.reset();
+            this.stream = new TransportInputStream(this.reassemblyQuota);
+            this.acceptedStreams.add(this.stream);
+        }
+        return this.stream;
+    }
+
+    /**
+     * Delivers the next in-order packet: a file header, file data, or the FIN that ends the session. ACKs it.
+     * @param packetFromClient the packet, whose sequence number is lastAckNumber
+     * @return true if the packet was a FIN
+     * @throws IOException weird UDP stuff
+     */
+    private boolean deliver(TcpPacket packetFromClient) throws IOException {
+        if (packetFromClient.getHeader().getIsFin() == 1) {
+            if (this.isDownload) {
+                this.downloadRequest.write(packetFromClient.getData(), 0, packetFromClient.getData().length);
+            }
+            this.lastAckNumber += packetFromClient.getData().length;
+            // FIN takes up a sequence number even though no data was sent, special case
+            this.lastAckNumber++;
+            if (this.isStream) openStream().end();
+            return true;
+        }
+        consume(packetFromClient);
+        sendAckPacket(this.lastAckNumber);
+        return false;
+    }
+
+    /**
+     * Applies the data of the next in-order packet: a file header or file contents, which are inflated first on a
+     * compressed connection. Doesn't ACK it.
+     * @param packetFromClient the packet, whose sequence number is lastAckNumber
+     * @throws IOException if a compressed block is corrupt
+     */
+    private void consume(TcpPacket packetFromClient) throws IOException {
+        byte[] data = packetFromClient.getData();
+        if (this.parityDecoder != null) this.parityDecoder.delivered(this.lastAckNumber, data);
+        this.lastAckNumber += data.length;
+        if (this.isDownload) {
+            // a request longer than the quota is cut off, the names past the cut aren't served
+            if (this.downloadRequest.size() + data.length <= this.reassemblyQuota) {
+                this.downloadRequest.write(data, 0, data.length);
+            }
+            return;
+        }
+        if (this.isStream) {
+            if (this.isCompressed) {
+                this.decompressor.feed(data, this::consumeStreamData);
+            } else {
+                consumeStreamData(data);
+            }
+            return;
+        }
+        if (this.currentFile == null) {
+            this.currentFile = FileHeader.deserialize(data);
+            this.remainingFileBytes = this.currentFile.getLength();
+            this.md5Digest.reset();
+            this.decompressor.reset();
+            if (this.isVerbose) System.out.println("Receiving " + this.currentFile.getName());
+            openStoredFile();
+        } else if (this.isDedup) {
+            this.deltaDecoder.feed(data, this::consumeFileData);
+        } else if (this.isCompressed) {
+            this.decompressor.feed(data, this::consumeFileData);
+        } else {
+            consumeFileData(data);
+        }
+        if (this.remainingFileBytes <= 0) {
+            finishFile();
+        }
+    }
+
+    /**
+     * Digests the next piece of the current file's contents, and stores it if the server keeps files
+     * @param data file contents, already inflated or rebuilt from a delta
+     * @throws IOException if the stored copy can't be written
+     */
+    private void consumeFileData(byte[] data) throws IOException {
+        if (this.storeOutput != null) this.storeOutput.write(data);
+        this.md5Digest.update(data);
+        this.metrics.delivered(data.length);
+        this.remainingFileBytes -= data.length;
+    }
+
+    /**
+     * Hands the next piece of a stream to the application, waiting while the application is a full buffer behind
+     * @param data stream bytes, already inflated
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private void consumeStreamData(byte[] data) throws InterruptedIOException {
+        try {
+            openStream().write(data);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing over the stream");
+        }
+        this.metrics.delivered(data.length);
+    }
+
+    /**
+     * Prints the checksum of the file that just finished and gets ready for the next file's header
+     * @throws IOException if the stored copy can't be written
+     */
+    private void finishFile() throws IOException {
+        this.log.record(LogEvent.TRANSFER_COMPLETE, this.currentFile.getLength());
+        byte[] md5Bytes = md5Digest.digest();
+        System.out.println("MD5: " + DatatypeConverter.printHexBinary(md5Bytes) + " (" + this.currentFile.getName() + ")");
+        boolean isIntact = MessageDigest.isEqual(md5Bytes, this.currentFile.getMd5());
+        if (!isIntact) {
+            System.err.println("MD5 mismatch for " + this.currentFile.getName() + ", client sent "
+                    + DatatypeConverter.printHexBinary(this.currentFile.getMd5()));
+        }
+        closeStoredFile(isIntact);
+        this.currentFile = null;
+    }
+
+    /**
+     * Starts storing the current file, next to its older copy, and points the delta decoder at that copy
+     * @throws IOException if the file can't be created
+     */
+    private void openStoredFile() throws IOException {
+        if (this.storeDirectory == null) return;
+        // only the name, the client doesn't choose where files land
+        this.storePath = this.storeDirectory.resolve(Paths.get(this.currentFile.getName()).getFileName());
+        this.storePartPath = this.storePath.resolveSibling(this.storePath.getFileName() + ".part");
+        this.storeOutput = new BufferedOutputStream(Files.newOutputStream(this.storePartPath), 64 * 1024);
+        if (!this.isDedup) return;
+        BlockSignatures signatures = signaturesFor(this.storePath);
+        this.deltaBase = signatures != null ? FileChannel.open(this.storePath, StandardOpenOption.READ) : null;
+        this.deltaDecoder.reset(this.deltaBase, signatures);
+    }
+
+    /**
+     * Finishes storing the current file, if one is being stored
+     * @param isIntact true to replace the stored copy with it, false to throw it away
+     * @throws IOException if the file can't be written or moved into place
+     */
+    private void closeStoredFile(boolean isIntact) throws IOException {
+        if (this.deltaBase != null) {
+            this.deltaBase.close();
+            this.deltaBase = null;
+        }
+        if (this.storeOutput == null) return;
+        try {
+            this.storeOutput.close();
+        } finally {
+            this.storeOutput = null;
+        }
+        if (isIntact) {
+            Files.move(this.storePartPath, this.storePath, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(this.storePartPath);
+        }
+    }
+
+    /**
+     * Throws away the file being stored when its connection goes away part way through
+     */
+    private void abandonStoredFile() {
+        try {
+            closeStoredFile(false);
+        } catch (IOException e) {
+            System.err.println("Couldn't remove " + this.storePartPath + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the signature of a stored file, computing it if the file is new or changed since
+     * @param path the stored file
+     * @return the signature, or null if there's no such file or it's too big to sign
+     * @throws IOException if the file can't be read
+     */
+    private BlockSignatures signaturesFor(Path path) throws IOException {
+        if (!Files.isRegularFile(path) || Files.size(path) > Integer.MAX_VALUE) return null;
+        Path key = path.toAbsolutePath().normalize();
+        BlockSignatures signatures = this.signatureIndex.get(key);
+        if (signatures == null || !signatures.isCurrent(key)) {
+            signatures = BlockSignatures.of(key);
+            this.signatureIndex.put(key, signatures);
+        }
+        return signatures;
+    }
+
+    /**
+     * Server side of the close: answers the client's FIN with a FIN-ACK and waits for the final ACK, resending the
+     * FIN-ACK if the client repeats its FIN. Closes anyway after MAX_FIN_ATTEMPTS timeouts. On a download connection
+     * the client's FIN ends its request, and the files go back before the server's FIN.
+     * @throws IOException weird UDP stuff
+     */
+    private void closeConnection() throws IOException {
+        if (this.isDownload) {
+            serveDownload();
+            return;
+        }
+        this.connectionState = TcpConnectionState.LAST_ACK;
+        if (this.isVerbose) System.out.println("Received FIN from client, sending FIN-ACK...");
+        TcpPacket finAckPacket = createFinAckPacket(this.sequenceNumber + 1, SequenceNumbers.wrap(this.lastAckNumber));
+        sendPacket(finAckPacket);
+        this.socket.setSoTimeout(CLOSE_TIMEOUT);
+        try {
+            int attempts = 0;
+            while (this.connectionState == TcpConnectionState.LAST_ACK && attempts < MAX_FIN_ATTEMPTS) {
+                TcpPacket packetFromClient;
+                try {
+                    packetFromClient = receivePacket();
+                } catch (SocketTimeoutException e) {
+                    attempts++;
+                    sendPacket(finAckPacket);
+                    continue;
+                }
+                if (!packetFromClient.validateChecksum()) continue;
+                if (packetFromClient.getHeader().getIsSyn() == 1) {
+                    // the final ACK was lost and a client is already opening the next connection
+                    this.pendingSynPacket = packetFromClient;
+                    break;
+                }
+                if (!isFromPeer()) continue;
+                if (packetFromClient.getHeader().getIsFin() == 1) {
+                    sendPacket(finAckPacket);
+                } else if (packetFromClient.getHeader().getIsAck() == 1) {
                     this.connectionState = TcpConnectionState.CLOSED;
-                    return true;
                 }
-                return checkCache(this.lastAckNumber);
+            }
+        } finally {
+            this.socket.setSoTimeout(0);
+        }
+        if (this.isVerbose) System.out.println("Connection closed on server");
+        dropConnectionState();
+    }
+
+    /**
+     * Sends the files named in the download request. The client's FIN is acknowledged on its own, then the files go
+     * out with the same {@link SendWindow} and threads the client uploads with, reading hot files from the segment
+     * cache. A dedup download gets the {@link BlockSignatures} of the stored files instead, one per file, sent on this
+     * thread. Ends with the server's FIN, resent until the client acknowledges it or MAX_FIN_ATTEMPTS timeouts pass.
+     * @throws IOException weird UDP stuff
+     */
+    private void serveDownload() throws IOException {
+        this.connectionState = TcpConnectionState.CLOSE_WAIT;
+        sendAckPacket(this.lastAckNumber);
+        List<Path> files = resolveDownloadRequest(this.isDedup ? this.storeDirectory : this.serveDirectory);
+        long firstSequenceNumber = this.sequenceNumber + 1L;
+        InetSocketAddress client = new InetSocketAddress(this.connectionAddress, this.connectionPort);
+        SendWindow sendWindow = new SendWindow(firstSequenceNumber, WINDOW_SCALE, this.socket);
+        StreamSender sender = new StreamSender(this.socket, client, this.maxSegmentSize, sendWindow, this.metrics, 0);
+        ClientReceiveThread ackThread = new ClientReceiveThread(this.socket, this.maxSegmentSize, sender,
+                this.metrics, client);
+        UploadSource source = new UploadSource(files, this.maxSegmentSize - 20, false, false);
+        source.setSegmentCache(this.segmentCache);
+        ClientSendThread sendThread = new ClientSendThread(source, sender);
+        this.socket.setSoTimeout(CLOSE_TIMEOUT);
+        try {
+            this.socket.start(ackThread);
+            if (this.isDedup) {
+                sendSignatures(files, sender);
+            } else {
+                this.socket.start(sendThread);
+            }
+            try {
+                this.socket.join(ackThread);
+                this.socket.join(sendThread);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while serving a download");
+            }
+            if (sendWindow.isFailed()) {
+                if (this.isVerbose) System.out.println("Client stopped acknowledging the download, resetting");
+                sendPacket(createRstPacket());
+            } else {
+                sendDownloadFin(sender.getSequenceNumber());
+            }
+        } finally {
+            this.socket.setSoTimeout(0);
+        }
+        if (this.isVerbose) {
+            System.out.println("Connection closed on server");
+            if (this.segmentCache != null) {
+                System.out.println("Hot-file cache " + this.segmentCache.getHits() + " hits, "
+                        + this.segmentCache.getMisses() + " misses, " + this.segmentCache.getCachedBytes() + " bytes");
+            }
+            System.out.print(this.metrics);
+        }
+        dropConnectionState();
+    }
+
+    /**
+     * Sends the signature of each stored file as a file of its own, under the stored file's name, and closes the
+     * window. Any failure fails the window, so the ACK thread finishes either way.
+     * @param files the stored files
+     * @param sender sends on this thread, sharing its window with the ACK thread
+     */
+    private void sendSignatures(List<Path> files, StreamSender sender) {
+        int dataPerSegment = this.maxSegmentSize - 20;
+        try {
+            for (Path path : files) {
+                BlockSignatures signatures = signaturesFor(path);
+                if (signatures == null) continue;
+                byte[] signatureBytes = signatures.serialize();
+                MessageDigest md5Digest = BlockSignatures.md5();
+                FileHeader header = new FileHeader(path.getFileName().toString(), signatureBytes.length,
+                        md5Digest.digest(signatureBytes));
+                sender.send(header.serialize());
+                for (int offset = 0; offset < signatureBytes.length; offset += dataPerSegment) {
+                    sender.send(Arrays.copyOfRange(signatureBytes, offset,
+                            Math.min(offset + dataPerSegment, signatureBytes.length)));
+                }
+            }
+            sender.finish();
+        } catch (IOException e) {
+            sender.getSendWindow().fail(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sender.getSendWindow().fail(new InterruptedIOException("Interrupted while sending signatures"));
+        }
+    }
+
+    /**
+     * Turns the download request into files under a directory. Names that leave the directory or aren't regular files
+     * are skipped, the client notices the missing files.
+     * @param directory the served directory, or the store for signatures
+     * @return the files to send, in the order asked for
+     */
+    private List<Path> resolveDownloadRequest(Path directory) {
+        Path root = directory.toAbsolutePath().normalize();
+        List<Path> files = new ArrayList<>();
+        for (String name : new String(this.downloadRequest.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+            if (name.isEmpty()) continue;
+            Path path;
+            try {
+                path = root.resolve(name).normalize();
+            } catch (InvalidPathException e) {
+                path = null;
+            }
+            if (path == null || !path.startsWith(root) || !Files.isRegularFile(path)) {
+                // a file that was never uploaded just has no signature yet
+                if (!this.isDedup) System.err.println("Not serving " + name);
+                continue;
+            }
+            files.add(path);
+        }
+        return files;
+    }
+
+    /**
+     * Sends the server's FIN after a download and waits for the client to acknowledge it
+     * @param finSequenceNumber stream offset following the last byte sent
+     * @throws IOException weird UDP stuff
+     */
+    private void sendDownloadFin(long finSequenceNumber) throws IOException {
+        this.connectionState = TcpConnectionState.LAST_ACK;
+        int finAckNumber = SequenceNumbers.wrap(finSequenceNumber + 1);
+        TcpPacket finPacket = createFinAckPacket(SequenceNumbers.wrap(finSequenceNumber),
+                SequenceNumbers.wrap(this.lastAckNumber));
+        for (int attempt = 0; attempt < MAX_FIN_ATTEMPTS; attempt++) {
+            sendPacket(finPacket);
+            try {
+                while (true) {
+                    TcpPacket packetFromClient = receivePacketFromPeer();
+                    if (packetFromClient == null) return;
+                    TcpHeader header = packetFromClient.getHeader();
+                    if (header.getIsSyn() == 1 && packetFromClient.validateChecksum()) {
+                        // the last ACK was lost and the client is already opening its next connection
+                        this.pendingSynPacket = packetFromClient;
+                        return;
+                    }
+                    if (packetFromClient.validateChecksum() && header.getIsAck() == 1
+                            && header.getAckNumber() == finAckNumber) {
+                        return;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                if (this.isVerbose) System.out.println("Timed out waiting for the download's last ACK");
             }
         }
-        return false;
     }
 
     /**
@@ -204,22 +1053,58 @@ public class Server {
      * @throws IOException bleh
      */
     private TcpPacket receivePacketForHandshake() throws IOException {
-        byte[] buf = new byte[20];
-        DatagramPacket packet = new DatagramPacket(buf, buf.length);
-        socket.receive(packet);
-        this.clientAddress = packet.getAddress();
-        this.clientPort = packet.getPort();
-        return TcpPacket.deserialize(packet.getData());
+        return receivePacket();
+    }
+
+    /**
+     * Receives the next packet from the connected client. Packets from other clients are dropped unanswered, so
+     * their data never mixes into this connection and they keep retrying their SYNs until the server is free. A SYN
+     * from another client takes over once the connected client has gone quiet for PEER_IDLE_NANOS; it's left in
+     * pendingSynPacket for the next handshake.
+     * @return the packet, or null if the connection was given up for another client
+     * @throws IOException bleh
+     */
+    private TcpPacket receivePacketFromPeer() throws IOException {
+        while (true) {
+            TcpPacket packet = receivePacket();
+            if (isFromPeer()) {
+                this.lastPeerActivity = this.socket.nanoTime();
+                return packet;
+            }
+            long quietNanos = this.socket.nanoTime() - this.lastPeerActivity;
+            if (packet.getHeader().getIsSyn() == 1 && packet.validateChecksum() && quietNanos > PEER_IDLE_NANOS) {
+                this.pendingSynPacket = packet;
+                return null;
+            }
+            // other clients' packets keep the socket from timing out, so check the idle timeout here too
+            if (this.idleTimeout > 0 && quietNanos > this.idleTimeout * 1000000L) {
+                throw new SocketTimeoutException("Client went idle");
+            }
+        }
+    }
+
+    /**
+     * @return true if the last packet received came from the client this connection belongs to
+     */
+    private boolean isFromPeer() {
+        return this.clientAddress.equals(this.connectionAddress) && this.clientPort == this.connectionPort;
     }
 
     private TcpPacket receivePacket() throws IOException {
-        // TODO: fix so it doesn't rely on padding
+        if (this.pipeline != null) {
+            ReceivePipeline.Segment segment = this.pipeline.receiveSegment();
+            this.metrics.segmentReceived(segment.getLength());
+            this.clientAddress = segment.getAddress();
+            this.clientPort = segment.getPort();
+            return segment.getPacket();
+        }
         byte[] buf = new byte[this.maxSegmentSize];
         DatagramPacket packet = new DatagramPacket(buf, buf.length);
         socket.receive(packet);
+        this.metrics.segmentReceived(packet.getLength());
         this.clientAddress = packet.getAddress();
         this.clientPort = packet.getPort();
-        return TcpPacket.deserialize(packet.getData());
+        return TcpPacket.deserialize(Arrays.copyOf(packet.getData(), packet.getLength()));
     }
 
     /**
@@ -234,11 +1119,13 @@ public class Server {
         DatagramPacket udpPacket = new DatagramPacket(tcpPacketBytes, tcpPacketBytes.length,
                 this.clientAddress, this.clientPort);
         socket.send(udpPacket);
+        this.metrics.segmentSent(tcpPacketBytes.length);
     }
 
-    private void sendAckPacket(int ackNumber) throws IOException {
+    private void sendAckPacket(long ackNumber) throws IOException {
         TcpPacket ackPacket = createAckPacket(ackNumber);
-        if (this.isVerbose) System.out.println("Sending ACK with number " + ackNumber);
+        this.log.record(LogEvent.ACK_SENT, ackNumber);
+        FlightEvents.ackSent(ackNumber, (long) ackPacket.getHeader().getWindow() << WINDOW_SCALE);
         sendPacket(ackPacket);
     }
 
@@ -256,17 +1143,44 @@ public class Server {
     }
 
     /**
-     * Creates an empty SYN-ACK packet
+     * Creates a SYN-ACK packet. Its window field carries the agreed {@link ConnectionOptions} instead of a window.
+     * @param sequenceNumber sequence number to send, the SYN cookie
+     * @param ackNumber ack number to send
+     * @param agreed options the server agreed to
+     * @param cookie fast open cookie for the client, or empty
+     * @return the packet
+     */
+    private TcpPacket createSynAckPacket(int sequenceNumber, int ackNumber, ConnectionOptions agreed, byte[] cookie) {
+        TcpHeader synAckHeader = new TcpHeader(sequenceNumber, ackNumber, 1, 0, 1, 0, agreed.toWindowField(), 0);
+        return new TcpPacket(synAckHeader, cookie);
+    }
+
+    /**
+     * Creates an empty FIN-ACK packet
      * @param sequenceNumber sequence number to send
      * @param ackNumber ack number to send
      * @return the packet
      */
-    private TcpPacket createSynAckPacket(int sequenceNumber, int ackNumber) {
-        TcpHeader synAckHeader = new TcpHeader(sequenceNumber, ackNumber, 1, 0, 1, 0, 0, 0);
-        return new TcpPacket(synAckHeader, new byte[]{});
+    private TcpPacket createFinAckPacket(int sequenceNumber, int ackNumber) {
+        return new TcpPacket(new TcpHeader(sequenceNumber, ackNumber, 1, 0, 0, 1, 0, 0), new byte[0]);
     }
 
-    private TcpPacket createAckPacket(int ackNumber) {
-        return new TcpPacket(new TcpHeader(0, ackNumber, 1, 0, 0, 0, 0, 0), new byte[0]);
+    /**
+     * Creates an empty ACK packet advertising the receive window, which on a stream connection is no more than the
+     * room the application has left unread. Echoes any ECN mark received since the last ACK, so the client shrinks its
+     * window before the congested hop has to drop anything.
+     * @param ackNumber stream offset of the next byte expected
+     * @return the packet
+     */
+    private TcpPacket createAckPacket(long ackNumber) {
+        long receiveWindow = this.reassemblyQuota;
+        if (this.stream != null) receiveWindow = Math.min(receiveWindow, this.stream.getFreeBytes());
+        int window = (int) (receiveWindow >> WINDOW_SCALE);
+        TcpHeader header = new TcpHeader(0, SequenceNumbers.wrap(ackNumber), 1, 0, 0, 0, window, 0);
+        if (this.isCongestionExperienced) {
+            header.setIsEcnEcho(1);
+            this.isCongestionExperienced = false;
+        }
+        return new TcpPacket(header, new byte[0]);
     }
 }
@@ -0,0 +1,89 @@
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters and gauges, registered as an MBean next to the per-connection {@link TransportMetrics}. They
+ * cover what a connection's own metrics can't: connections given up on, and how much of the reassembly quota the
+ * current connection is holding out of order. Gauges are plain volatiles written by the server thread.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    private static final AtomicLong serverIds = new AtomicLong();
+
+    private final LongAdder evictedConnections = new LongAdder();
+    private volatile long reassemblyBytes;
+    private volatile long reassemblyQuotaBytes;
+    private ObjectName objectName;
+
+    /**
+     * Registers the metrics with the platform MBean server as <code>fcntcp:type=Server,id=&lt;n&gt;</code>.
+     * Registration failures are reported and otherwise ignored, the counters still work without JMX.
+     */
+    public void register() {
+        if (this.objectName != null) return;
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(TransportMetrics.DOMAIN + ":type=Server,id="
+                    + serverIds.incrementAndGet());
+            mBeanServer.registerMBean(this, name);
+            this.objectName = name;
+        } catch (InstanceAlreadyExistsException e) {
+            System.err.println("Server metrics already registered");
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Removes the MBean from the platform MBean server, if it was registered
+     */
+    public void unregister() {
+        if (this.objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        this.objectName = null;
+    }
+
+    /**
+     * Records a connection evicted for going idle
+     */
+    public void connectionEvicted() {
+        this.evictedConnections.increment();
+    }
+
+    /**
+     * @param bytes payload bytes the current connection holds out of order
+     */
+    public void setReassemblyBytes(long bytes) {
+        this.reassemblyBytes = bytes;
+    }
+
+    /**
+     * @param bytes most payload bytes a connection may hold out of order
+     */
+    public void setReassemblyQuotaBytes(long bytes) {
+        this.reassemblyQuotaBytes = bytes;
+    }
+
+    @Override
+    public long getEvictedConnections() {
+        return this.evictedConnections.sum();
+    }
+
+    @Override
+    public long getReassemblyBytes() {
+        return this.reassemblyBytes;
+    }
+
+    @Override
+    public long getReassemblyQuotaBytes() {
+        return this.reassemblyQuotaBytes;
+    }
+}
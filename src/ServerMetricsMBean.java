@@ -0,0 +1,11 @@
+/**
+ * Management interface for the server-wide counters and gauges, the ones that outlive a single connection. Exposed
+ * over JMX by {@link ServerMetrics}.
+ */
+public interface ServerMetricsMBean {
+    long getEvictedConnections();
+
+    long getReassemblyBytes();
+
+    long getReassemblyQuotaBytes();
+}
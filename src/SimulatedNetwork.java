@@ -0,0 +1,570 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * In-process network for exercising the protocol without sockets or wall-clock timeouts. Endpoints exchange datagrams
+ * through the network, which applies a fixed one-way latency plus random jitter, random loss, and a per-sender
+ * bandwidth limit.
+ * <p>
+ * Time is virtual, and the network schedules the threads that use it. Threads are started with {@link #start(Thread)}
+ * or join the first time they send, receive, sleep or wait through an endpoint, and only one of them runs at a time:
+ * the running thread keeps going until it blocks on the network, the clock, a monitor it waits on through
+ * {@link DatagramTransport#await(Object, long)}, or another thread's end, and then hands over to the next runnable
+ * thread in the order they became runnable. Only when none is runnable does the clock jump straight to the next event,
+ * the next datagram arrival or the earliest timeout. A transfer that would take minutes of retransmit timeouts over
+ * UDP finishes as fast as the threads can run, and since the threads interleave the same way every time, a seed
+ * always gives the same loss and jitter decisions, the same simulated time and the same outcome.
+ * <p>
+ * A scheduled thread that blocks any other way keeps the network to itself until it returns, so such waits must be on
+ * threads outside the schedule, like worker pools.
+ */
+public class SimulatedNetwork {
+    // what a sleeping thread is blocked on, it only wakes at its deadline
+    private static final Object SLEEP = new Object();
+
+    private final Object lock = new Object();
+    private final Map<InetSocketAddress, Endpoint> endpoints = new HashMap<>();
+    private final PriorityQueue<Delivery> inFlight = new PriorityQueue<>();
+    private final Map<Thread, Participant> participants = new HashMap<>();
+    private final ArrayDeque<Participant> runnable = new ArrayDeque<>();
+    // in the order they blocked, which is the order they wake in when several wake at once
+    private final List<Participant> blocked = new ArrayList<>();
+    private final Random random;
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final double lossRate;
+    private final double bytesPerSecond;
+    private final Thread reaper;
+    private Participant running;
+    private long now;
+    private long nextDeliverySequence;
+    private int nextPort = 40000;
+    private boolean isClosed;
+
+    /**
+     * Constructs the network
+     * @param latencyMillis one-way latency in milliseconds
+     * @param jitterMillis extra latency, chosen uniformly from 0 up to this many milliseconds per datagram
+     * @param lossRate fraction of datagrams dropped
+     * @param bytesPerSecond bandwidth of each sender's link, 0 for unlimited
+     * @param seed seed for the loss and jitter decisions
+     */
+    public SimulatedNetwork(long latencyMillis, long jitterMillis, double lossRate, double bytesPerSecond, long seed) {
+        this.latencyNanos = latencyMillis * 1000000L;
+        this.jitterNanos = jitterMillis * 1000000L;
+        this.lossRate = lossRate;
+        this.bytesPerSecond = bytesPerSecond;
+        this.random = new Random(seed);
+        this.reaper = new Thread(this::reapFinished, "SimulatedReaper");
+        this.reaper.setDaemon(true);
+        this.reaper.start();
+    }
+
+    /**
+     * Creates an endpoint on the given port of the loopback address
+     * @param port port number
+     * @return the endpoint
+     * @throws SocketException if the port is already in use on this network
+     */
+    public Endpoint bind(int port) throws SocketException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        synchronized (this.lock) {
+            if (this.endpoints.containsKey(address)) {
+                throw new SocketException("Address already in use: " + address);
+            }
+            Endpoint endpoint = new Endpoint(address);
+            this.endpoints.put(address, endpoint);
+            return endpoint;
+        }
+    }
+
+    /**
+     * Creates an endpoint on an unused port, like <code>new DatagramSocket()</code>
+     * @return the endpoint
+     * @throws SocketException if no port is free
+     */
+    public Endpoint bind() throws SocketException {
+        synchronized (this.lock) {
+            while (this.endpoints.containsKey(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), this.nextPort))) {
+                this.nextPort++;
+            }
+            return bind(this.nextPort++);
+        }
+    }
+
+    /**
+     * @return the current virtual time in nanoseconds since the network was created
+     */
+    public long nanoTime() {
+        synchronized (this.lock) {
+            return this.now;
+        }
+    }
+
+    /**
+     * @return the current virtual time in milliseconds since the network was created
+     */
+    public long currentTimeMillis() {
+        return nanoTime() / 1000000L;
+    }
+
+    /**
+     * Adds a thread to the schedule and starts it once it is its turn. The calling thread joins the schedule too.
+     * @param thread the thread, not yet started
+     */
+    public void start(Thread thread) {
+        synchronized (this.lock) {
+            enter();
+            if (this.isClosed) {
+                thread.start();
+                return;
+            }
+            Participant participant = new Participant(thread, false);
+            this.participants.put(thread, participant);
+            this.runnable.add(participant);
+        }
+    }
+
+    /**
+     * Waits, in virtual time, for a thread on the schedule to finish
+     * @param thread the thread
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void join(Thread thread) throws InterruptedException {
+        while (true) {
+            synchronized (this.lock) {
+                enter();
+                if (this.isClosed || !this.participants.containsKey(thread)) break;
+            }
+            if (park(thread, Long.MAX_VALUE, null)) throw new InterruptedException();
+        }
+        thread.join();
+    }
+
+    /**
+     * Stops the clock and the schedule, every thread runs freely from now on. Blocked receivers are woken with an
+     * exception.
+     */
+    public void close() {
+        List<Object> monitors = new ArrayList<>();
+        synchronized (this.lock) {
+            this.isClosed = true;
+            for (Participant participant : this.blocked) {
+                if (participant.monitor != null) monitors.add(participant.monitor);
+            }
+            this.lock.notifyAll();
+        }
+        for (Object monitor : monitors) {
+            notifyMonitor(monitor);
+        }
+    }
+
+    /**
+     * Finds the calling thread on the schedule, adding it if it's new and waiting for its turn. Caller holds the lock.
+     * @return the calling thread's place on the schedule
+     */
+    private Participant enter() {
+        Participant self = this.participants.get(Thread.currentThread());
+        if (self != null) return self;
+        self = new Participant(Thread.currentThread(), true);
+        this.participants.put(self.thread, self);
+        if (this.running == null && this.runnable.isEmpty()) {
+            this.running = self;
+            return self;
+        }
+        this.runnable.add(self);
+        boolean isInterrupted = false;
+        while (this.running != self && !this.isClosed) {
+            try {
+                this.lock.wait();
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) Thread.currentThread().interrupt();
+        return self;
+    }
+
+    /**
+     * Blocks the running thread until it is woken through the channel or the deadline passes and it is its turn again.
+     * Caller does not hold the lock.
+     * @param channel what the thread waits on: an endpoint, a thread, a monitor or SLEEP
+     * @param deadline virtual time to wake at regardless, Long.MAX_VALUE for none
+     * @param monitor monitor the caller holds and waits on, null to wait on the lock
+     * @return true if the thread was interrupted while blocked
+     */
+    private boolean park(Object channel, long deadline, Object monitor) {
+        Participant self;
+        Object toNotify;
+        synchronized (this.lock) {
+            self = enter();
+            if (this.isClosed) return false;
+            self.blockedOn = channel;
+            self.deadline = deadline;
+            self.monitor = monitor;
+            this.blocked.add(self);
+            this.running = null;
+            toNotify = dispatch();
+        }
+        notifyMonitor(toNotify);
+        return awaitTurn(self, monitor);
+    }
+
+    /**
+     * Waits until it is the thread's turn. An interrupt stops the wait for whatever the thread was blocked on, but it
+     * still waits for its turn.
+     * @param self the thread's place on the schedule
+     * @param monitor monitor the caller holds and waits on, null to wait on the lock
+     * @return true if the thread was interrupted
+     */
+    private boolean awaitTurn(Participant self, Object monitor) {
+        boolean isInterrupted = false;
+        while (true) {
+            Object toNotify = null;
+            try {
+                if (monitor == null) {
+                    synchronized (this.lock) {
+                        while (this.running != self && !this.isClosed) {
+                            this.lock.wait();
+                        }
+                        return isInterrupted;
+                    }
+                }
+                synchronized (this.lock) {
+                    if (this.running == self || this.isClosed) return isInterrupted;
+                }
+                monitor.wait();
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+                synchronized (this.lock) {
+                    if (this.blocked.remove(self)) {
+                        makeRunnable(self);
+                        if (this.running == null) toNotify = dispatch();
+                    }
+                }
+            }
+            notifyMonitor(toNotify);
+        }
+    }
+
+    /**
+     * Hands the network to the next runnable thread. When none is runnable, advances the clock to the next event and
+     * wakes whoever it concerns first. Caller holds the lock and no thread is running.
+     * @return monitor the chosen thread waits on, for the caller to notify once it has released the lock, or null
+     */
+    private Object dispatch() {
+        while (this.running == null && !this.isClosed) {
+            Participant next = this.runnable.poll();
+            if (next != null) {
+                this.running = next;
+                if (!next.isStarted) {
+                    next.isStarted = true;
+                    next.thread.start();
+                    return null;
+                }
+                if (next.monitor != null) return next.monitor;
+                this.lock.notifyAll();
+                return null;
+            }
+            long nextEvent = this.inFlight.isEmpty() ? Long.MAX_VALUE : this.inFlight.peek().arrival;
+            for (Participant participant : this.blocked) {
+                nextEvent = Math.min(nextEvent, participant.deadline);
+            }
+            if (nextEvent == Long.MAX_VALUE) {
+                // every thread waits forever, nothing will happen until a thread outside the schedule acts
+                return null;
+            }
+            if (nextEvent > this.now) this.now = nextEvent;
+            deliverDue();
+            for (Iterator<Participant> i = this.blocked.iterator(); i.hasNext(); ) {
+                Participant participant = i.next();
+                if (participant.deadline <= this.now) {
+                    i.remove();
+                    makeRunnable(participant);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Makes every thread blocked on the channel runnable. Caller holds the lock.
+     * @param channel what they are blocked on
+     */
+    private void wake(Object channel) {
+        for (Iterator<Participant> i = this.blocked.iterator(); i.hasNext(); ) {
+            Participant participant = i.next();
+            if (participant.blockedOn == channel) {
+                i.remove();
+                makeRunnable(participant);
+            }
+        }
+    }
+
+    private void makeRunnable(Participant participant) {
+        participant.blockedOn = null;
+        participant.deadline = Long.MAX_VALUE;
+        this.runnable.add(participant);
+    }
+
+    private static void notifyMonitor(Object monitor) {
+        if (monitor == null) return;
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+    }
+
+    /**
+     * Takes threads that end while running off the schedule, waking whoever joined them and handing over to the next
+     */
+    private void reapFinished() {
+        while (true) {
+            Participant holder;
+            synchronized (this.lock) {
+                while (this.running == null && !this.isClosed) {
+                    try {
+                        this.lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (this.isClosed) return;
+                holder = this.running;
+            }
+            try {
+                holder.thread.join(1);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Object toNotify = null;
+            synchronized (this.lock) {
+                if (this.running == holder && !holder.thread.isAlive()) {
+                    this.participants.remove(holder.thread);
+                    this.running = null;
+                    wake(holder.thread);
+                    toNotify = dispatch();
+                }
+            }
+            notifyMonitor(toNotify);
+        }
+    }
+
+    /**
+     * Moves every datagram that has arrived by now into its destination's queue, waking its receivers. Caller holds
+     * the lock.
+     */
+    private void deliverDue() {
+        while (!this.inFlight.isEmpty() && this.inFlight.peek().arrival <= this.now) {
+            Delivery delivery = this.inFlight.poll();
+            Endpoint destination = this.endpoints.get(delivery.to);
+            // like UDP, datagrams to nobody vanish
+            if (destination != null && !destination.isClosed) {
+                destination.queue.add(delivery);
+                wake(destination);
+            }
+        }
+    }
+
+    /**
+     * A datagram on its way through the network
+     */
+    private static class Delivery implements Comparable<Delivery> {
+        private final long arrival;
+        private final long sequence;
+        private final InetSocketAddress from;
+        private final InetSocketAddress to;
+        private final byte[] data;
+
+        private Delivery(long arrival, long sequence, InetSocketAddress from, InetSocketAddress to, byte[] data) {
+            this.arrival = arrival;
+            this.sequence = sequence;
+            this.from = from;
+            this.to = to;
+            this.data = data;
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            if (this.arrival != other.arrival) return Long.compare(this.arrival, other.arrival);
+            return Long.compare(this.sequence, other.sequence);
+        }
+    }
+
+    /**
+     * A thread on the schedule
+     */
+    private static class Participant {
+        private final Thread thread;
+        private boolean isStarted;
+        // null while runnable or running
+        private Object blockedOn;
+        private long deadline = Long.MAX_VALUE;
+        // what the thread waits on for its turn, null for the network's lock
+        private Object monitor;
+
+        private Participant(Thread thread, boolean isStarted) {
+            this.thread = thread;
+            this.isStarted = isStarted;
+        }
+    }
+
+    /**
+     * One address on the simulated network
+     */
+    public class Endpoint implements DatagramTransport {
+        private final InetSocketAddress address;
+        private final ArrayDeque<Delivery> queue = new ArrayDeque<>();
+        private int timeout;
+        private long linkFreeAt;
+        private boolean isClosed;
+
+        private Endpoint(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        public InetSocketAddress getAddress() {
+            return this.address;
+        }
+
+        @Override
+        public void send(DatagramPacket packet) throws IOException {
+            byte[] data = new byte[packet.getLength()];
+            System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
+            InetSocketAddress to = new InetSocketAddress(packet.getAddress(), packet.getPort());
+            synchronized (lock) {
+                enter();
+                if (this.isClosed || SimulatedNetwork.this.isClosed) throw new SocketException("Socket is closed");
+                // the sender's link is busy for the serialization time even if the datagram is then lost
+                long departure = now;
+                if (bytesPerSecond > 0) {
+                    departure = Math.max(now, this.linkFreeAt) + (long) (data.length * 1e9 / bytesPerSecond);
+                    this.linkFreeAt = departure;
+                }
+                if (random.nextDouble() < lossRate) return;
+                long jitter = jitterNanos > 0 ? (long) (random.nextDouble() * jitterNanos) : 0;
+                long arrival = departure + latencyNanos + jitter;
+                inFlight.add(new Delivery(arrival, nextDeliverySequence++, this.address, to, data));
+                if (arrival <= now) deliverDue();
+            }
+        }
+
+        @Override
+        public void receive(DatagramPacket packet) throws IOException {
+            long deadline;
+            synchronized (lock) {
+                enter();
+                deadline = this.timeout > 0 ? now + this.timeout * 1000000L : Long.MAX_VALUE;
+            }
+            while (true) {
+                synchronized (lock) {
+                    Delivery delivery = this.queue.poll();
+                    if (delivery != null) {
+                        // truncate like a real socket when the buffer is too small
+                        int length = Math.min(delivery.data.length, packet.getData().length - packet.getOffset());
+                        System.arraycopy(delivery.data, 0, packet.getData(), packet.getOffset(), length);
+                        packet.setLength(length);
+                        packet.setSocketAddress(delivery.from);
+                        return;
+                    }
+                    if (this.isClosed || SimulatedNetwork.this.isClosed) throw new SocketException("Socket is closed");
+                    if (now >= deadline) throw new SocketTimeoutException("Receive timed out");
+                }
+                if (park(this, deadline, null)) {
+                    Thread.currentThread().interrupt();
+                    throw new SocketException("Interrupted");
+                }
+            }
+        }
+
+        @Override
+        public long nanoTime() {
+            return SimulatedNetwork.this.nanoTime();
+        }
+
+        /**
+         * Sleeps in virtual time, the clock can jump ahead to the wake-up time once nothing else is runnable
+         */
+        @Override
+        public void sleepNanos(long nanos) throws InterruptedException {
+            long deadline;
+            synchronized (lock) {
+                enter();
+                deadline = now + nanos;
+            }
+            while (true) {
+                synchronized (lock) {
+                    if (now >= deadline || this.isClosed || SimulatedNetwork.this.isClosed) return;
+                }
+                if (park(SLEEP, deadline, null)) throw new InterruptedException();
+            }
+        }
+
+        @Override
+        public void await(Object monitor, long timeoutNanos) throws InterruptedException {
+            long deadline;
+            boolean isScheduled;
+            synchronized (lock) {
+                enter();
+                isScheduled = !SimulatedNetwork.this.isClosed;
+                deadline = timeoutNanos > 0 ? now + timeoutNanos : Long.MAX_VALUE;
+            }
+            if (!isScheduled) {
+                // nothing is scheduled any more, wait like any other thread
+                DatagramTransport.super.await(monitor, timeoutNanos);
+            } else if (park(monitor, deadline, monitor)) {
+                throw new InterruptedException();
+            }
+        }
+
+        @Override
+        public void signalAll(Object monitor) {
+            Object toNotify = null;
+            synchronized (lock) {
+                wake(monitor);
+                if (running == null) toNotify = dispatch();
+            }
+            notifyMonitor(toNotify);
+            monitor.notifyAll();
+        }
+
+        @Override
+        public void start(Thread thread) {
+            SimulatedNetwork.this.start(thread);
+        }
+
+        @Override
+        public void join(Thread thread) throws InterruptedException {
+            SimulatedNetwork.this.join(thread);
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public void close() {
+            Object toNotify = null;
+            synchronized (lock) {
+                this.isClosed = true;
+                endpoints.remove(this.address);
+                wake(this);
+                if (running == null) toNotify = dispatch();
+            }
+            notifyMonitor(toNotify);
+        }
+    }
+}
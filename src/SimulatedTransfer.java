@@ -0,0 +1,142 @@
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+
+/**
+ * Runs client/server transfers over a {@link SimulatedNetwork} instead of real sockets. Each run gets a fresh network
+ * seeded with the next seed, so a batch of runs covers many loss and jitter patterns and any one of them can be
+ * reproduced by its seed. With --check-determinism every seed runs twice and the two simulated times must match.
+ */
+public class SimulatedTransfer {
+    @Parameter(names = {"-f", "--file"}, description = "file for the client to send")
+    private String filePath = "";
+
+    @Parameter(names = {"-t", "--timeout"}, description = "timeout in milliseconds for retransmit timer")
+    private int timeout = 1000;
+
+    @Parameter(names = {"--runs"}, description = "number of transfers to run")
+    private int runs = 1;
+
+    @Parameter(names = {"--seed"}, description = "seed for the first run, later runs use the following seeds")
+    private long seed = 1;
+
+    @Parameter(names = {"--latency"}, description = "one-way latency in milliseconds")
+    private long latency = 10;
+
+    @Parameter(names = {"--jitter"}, description = "random extra latency in milliseconds")
+    private long jitter = 0;
+
+    @Parameter(names = {"--loss"}, description = "fraction of datagrams dropped",
+            converter = DoubleConverter.class)
+    private double loss = 0.0;
+
+    @Parameter(names = {"--rate"}, description = "link bandwidth in bytes per second, 0 for unlimited",
+            converter = DoubleConverter.class)
+    private double rate = 0.0;
+
+    @Parameter(names = {"--connections"}, description = "connections made one after another to the same server per run")
+    private int connections = 1;
+
+    @Parameter(names = {"--fast-open"}, description = "send the first segment with the SYN once the server has issued a cookie")
+    private boolean isFastOpen = false;
+
+    @Parameter(names = {"--compress"}, description = "send file contents in deflate blocks if the server agrees")
+    private boolean isCompressed = false;
+
+    @Parameter(names = {"--fec"}, description = "client: send a parity segment after every N data segments (up to 15); server: accept parity segments if nonzero")
+    private int parityGroupSize = 0;
+
+    @Parameter(names = {"--pace"}, description = "client pacing rate in bytes per second, 0 to pace one window per round trip",
+            converter = DoubleConverter.class)
+    private double pacingRate = 0.0;
+
+    @Parameter(names = {"--idle-timeout"}, description = "server: milliseconds of silence before a connection is evicted, 0 to wait forever")
+    private int idleTimeout = 30000;
+
+    @Parameter(names = {"--receive-workers"}, description = "server: threads validating segments in parallel with the thread that orders and digests them, 0 for one thread")
+    private int receiveWorkers = 0;
+
+    @Parameter(names = {"--check-determinism"}, description = "run every seed twice and fail if the simulated times differ")
+    private boolean isDeterminismChecked = false;
+
+    @Parameter(names = {"-v", "--verbose"}, description = "output detailed diagnostics")
+    private boolean isVerbose = false;
+
+    /**
+     * Parses args and runs the transfers. Exits with status 1 if a seed gave two different simulated times.
+     * @param args command line args
+     * @throws GeneralSecurityException this shouldn't happen
+     */
+    public static void main(String[] args) throws GeneralSecurityException {
+        SimulatedTransfer simulation = new SimulatedTransfer();
+        new JCommander(simulation, args);
+        boolean isDeterministic = true;
+        for (int run = 0; run < simulation.runs; run++) {
+            long runSeed = simulation.seed + run;
+            long simulatedNanos = simulation.run(run, runSeed);
+            if (simulation.isDeterminismChecked && simulatedNanos >= 0) {
+                long repeatNanos = simulation.run(run, runSeed);
+                if (repeatNanos != simulatedNanos) {
+                    System.err.printf("Run %d (seed %d) is not deterministic: %d ns simulated, then %d ns%n", run,
+                            runSeed, simulatedNanos, repeatNanos);
+                    isDeterministic = false;
+                }
+            }
+        }
+        if (!isDeterministic) System.exit(1);
+    }
+
+    /**
+     * Runs the transfers for one seed over a fresh network
+     * @param run run number, for the report
+     * @param runSeed seed for the network
+     * @return simulated nanoseconds the transfers took, or -1 if they failed
+     * @throws GeneralSecurityException this shouldn't happen
+     */
+    private long run(int run, long runSeed) throws GeneralSecurityException {
+        final int maxSegmentSize = 1020;
+        final int serverPort = 5000;
+        SimulatedNetwork network = new SimulatedNetwork(this.latency, this.jitter, this.loss, this.rate, runSeed);
+        long start = System.nanoTime();
+        Server server = null;
+        EventLog log = null;
+        try {
+            log = new EventLog(1024, this.isVerbose ? EventLog.Level.DEBUG : EventLog.Level.OFF, false, System.out);
+            server = new Server(network.bind(serverPort), maxSegmentSize, this.isVerbose, log);
+            server.setFastOpen(this.isFastOpen);
+            server.setCompression(this.isCompressed);
+            server.setParity(this.parityGroupSize > 0);
+            server.setIdleTimeout(this.idleTimeout);
+            server.setReceiveWorkers(this.receiveWorkers);
+            final Server runningServer = server;
+            Thread serverThread = new Thread(runningServer::doTheThing, "Server");
+            serverThread.setDaemon(true);
+            network.start(serverThread);
+            for (int connection = 0; connection < this.connections; connection++) {
+                Client client = new Client(this.filePath, maxSegmentSize, this.timeout, this.isVerbose,
+                        InetAddress.getLoopbackAddress(), serverPort, network.bind());
+                client.setFastOpen(this.isFastOpen);
+                client.setCompression(this.isCompressed);
+                client.setParityGroupSize(this.parityGroupSize);
+                client.setPacingRate(this.pacingRate);
+                client.doTheThing();
+            }
+            long simulatedNanos = network.nanoTime();
+            System.out.printf("Run %d (seed %d): %d ms simulated, %d ms real%n", run, runSeed,
+                    simulatedNanos / 1000000L, (System.nanoTime() - start) / 1000000L);
+            return simulatedNanos;
+        } catch (IOException e) {
+            System.err.printf("Run %d (seed %d) failed%n", run, runSeed);
+            e.printStackTrace();
+            return -1;
+        } finally {
+            if (server != null) server.close();
+            network.close();
+            // stops the log's writer thread, or every run would leave one behind
+            if (log != null) log.close();
+        }
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Sending half of a connection, apart from how it's driven: builds the data segments and their parity segments,
+ * paces them, keeps them in the {@link SendWindow}, and takes the peer's ACKs, retransmitting the oldest
+ * unacknowledged segment after a retransmit timeout or three duplicate ACKs. Gives up on the connection after
+ * MAX_RETRANSMITS timeouts in a row, or when the peer resets it.
+ * <p>
+ * {@link ClientSendThread} and {@link ClientReceiveThread} drive it with a blocking thread each, for the client's
+ * uploads and streams and the server's downloads; {@link TransferClient} drives many from one I/O thread through
+ * the non-blocking {@link #trySend(UploadSource.Payload)} and {@link #tryFinish()}.
+ */
+public class StreamSender {
+    private static final int MAX_RETRANSMITS = 10;
+
+    private final DatagramSender socket;
+    private final InetSocketAddress peer;
+    private final int dataPerSegment;
+    private final SendWindow sendWindow;
+    private final TransportMetrics metrics;
+    private final Pacer pacer;
+    private ParityEncoder parityEncoder;
+    private boolean isFixedRate;
+    private long sequenceNumber;
+    private int ackNumber;
+    private int timeouts;
+    // parity segment due after the last data segment, waiting on the pacer
+    private TcpPacket pendingParity;
+    private boolean isParityFlushed;
+
+    /**
+     * Constructs the sender
+     * @param socket transport to send on
+     * @param peer address of the other end
+     * @param maxSegmentSize max segment size to send across link
+     * @param sendWindow window starting at the first byte to send
+     * @param metrics connection metrics
+     * @param parityGroupSize data segments per parity segment, 0 for none
+     */
+    public StreamSender(DatagramSender socket, InetSocketAddress peer, int maxSegmentSize, SendWindow sendWindow,
+                        TransportMetrics metrics, int parityGroupSize) {
+        this.socket = socket;
+        this.peer = peer;
+        this.dataPerSegment = maxSegmentSize - 20;
+        this.sendWindow = sendWindow;
+        this.sequenceNumber = sendWindow.getAcknowledged();
+        this.metrics = metrics;
+        this.pacer = new Pacer(socket, 0);
+        if (parityGroupSize > 0) this.parityEncoder = new ParityEncoder(parityGroupSize, this.dataPerSegment);
+    }
+
+    /**
+     * Sends the next segment of the stream once it fits in the window, waiting for the pacer, and hands it to the
+     * window for retransmission
+     * @param data segment payload, at most a segment's worth
+     * @throws IOException UDP stuff, or the connection failed
+     * @throws InterruptedException if interrupted while waiting for the window to open
+     */
+    public void send(byte[] data) throws IOException, InterruptedException {
+        send(data, Utils.sumIPChecksumWords(ByteBuffer.wrap(data), 0, data.length));
+    }
+
+    /**
+     * Sends the next segment of the stream, finishing its checksum from a known sum of the payload
+     * @param data segment payload, at most a segment's worth
+     * @param payloadSum unfolded checksum sum of the payload
+     * @throws IOException UDP stuff, or the connection failed
+     * @throws InterruptedException if interrupted while waiting for the window to open
+     */
+    public void send(byte[] data, int payloadSum) throws IOException, InterruptedException {
+        this.sendWindow.awaitSpace(data.length);
+        updatePacingRate();
+        DatagramPacket udpPacket = createDataPacket(data, payloadSum);
+        this.pacer.pace(udpPacket.getLength());
+        transmit(udpPacket, data);
+        if (this.pendingParity != null) {
+            this.pacer.pace(this.pendingParity.serialize().length);
+            sendParity();
+        }
+    }
+
+    /**
+     * Ends the stream: sends the last partial parity group, waiting for the pacer, and closes the window
+     * @throws IOException UDP stuff
+     * @throws InterruptedException if interrupted while pacing
+     */
+    public void finish() throws IOException, InterruptedException {
+        if (this.parityEncoder != null) this.pendingParity = this.parityEncoder.flush();
+        if (this.pendingParity != null) {
+            this.pacer.pace(this.pendingParity.serialize().length);
+            sendParity();
+        }
+        this.sendWindow.close();
+    }
+
+    /**
+     * Non-blocking form of {@link #send(byte[], int)}: sends the segment if the window has room and the pacer allows
+     * @param payload segment payload
+     * @return 0 if it was sent; otherwise the nanoseconds to wait for the pacer, or Long.MAX_VALUE while the window
+     * is full, until an ACK arrives
+     * @throws IOException UDP stuff
+     */
+    public long trySend(UploadSource.Payload payload) throws IOException {
+        long delay = trySendParity();
+        if (delay > 0) return delay;
+        if (!this.sendWindow.hasSpace(payload.getData().length)) return Long.MAX_VALUE;
+        updatePacingRate();
+        delay = this.pacer.getDelayNanos(this.socket.nanoTime());
+        if (delay > 0) return delay;
+        DatagramPacket udpPacket = createDataPacket(payload.getData(), payload.getPayloadSum());
+        this.pacer.book(udpPacket.getLength());
+        transmit(udpPacket, payload.getData());
+        return 0;
+    }
+
+    /**
+     * Non-blocking form of {@link #finish()}
+     * @return 0 once the window is closed, otherwise the nanoseconds to wait for the pacer
+     * @throws IOException UDP stuff
+     */
+    public long tryFinish() throws IOException {
+        long delay = trySendParity();
+        if (delay > 0) return delay;
+        if (!this.isParityFlushed && this.parityEncoder != null) {
+            this.isParityFlushed = true;
+            this.pendingParity = this.parityEncoder.flush();
+            delay = trySendParity();
+            if (delay > 0) return delay;
+        }
+        this.sendWindow.close();
+        return 0;
+    }
+
+    /**
+     * Sends the pending parity segment if the pacer allows
+     * @return 0 if none is left pending, otherwise the nanoseconds to wait for the pacer
+     * @throws IOException UDP stuff
+     */
+    private long trySendParity() throws IOException {
+        if (this.pendingParity == null) return 0;
+        long delay = this.pacer.getDelayNanos(this.socket.nanoTime());
+        if (delay > 0) return delay;
+        this.pacer.book(this.pendingParity.serialize().length);
+        sendParity();
+        return 0;
+    }
+
+    /**
+     * Takes a segment from the peer: ACKs slide the window, and the third duplicate ACK, or a partial ACK during
+     * recovery, retransmits the oldest segment
+     * @param packet the segment
+     * @return true if it was an ACK
+     * @throws IOException UDP stuff, or the peer reset the connection
+     */
+    public boolean onSegment(TcpPacket packet) throws IOException {
+        TcpHeader header = packet.getHeader();
+        if (!packet.validateChecksum()) {
+            this.metrics.checksumFailure();
+            return false;
+        }
+        if (header.getIsRst() == 1) throw new IOException("Connection reset by peer");
+        // a repeated SYN-ACK isn't about data, the data flowing tells the server the handshake finished
+        if (header.getIsAck() != 1 || header.getIsSyn() == 1) return false;
+        this.timeouts = 0;
+        long reductions = this.sendWindow.getCongestionReductions();
+        long acknowledged = this.sendWindow.getAcknowledged();
+        boolean isAwaitingAck = this.sendWindow.getBytesInFlight() > 0;
+        boolean isRetransmitNeeded = this.sendWindow.onAck(header.getAckNumber(), header.getWindow(),
+                header.getIsEcnEcho() == 1, this.socket.nanoTime());
+        if (this.sendWindow.getCongestionReductions() != reductions) this.metrics.congestionReduction();
+        recordAck(this.sendWindow.getAcknowledged() - acknowledged, isAwaitingAck);
+        FlightEvents.ackReceived(header.getAckNumber(), this.sendWindow);
+        if (isRetransmitNeeded) {
+            SendWindow.Segment oldest = this.sendWindow.nextRetransmission();
+            if (oldest != null) retransmit(oldest, "fast retransmit");
+        }
+        return true;
+    }
+
+    /**
+     * Handles a retransmit timeout: sends the oldest unacknowledged segment again
+     * @return false if nothing was in flight
+     * @throws IOException UDP stuff, or MAX_RETRANSMITS timeouts in a row passed without an ACK
+     */
+    public boolean onTimeout() throws IOException {
+        SendWindow.Segment oldest = this.sendWindow.nextRetransmission();
+        if (oldest == null) return false;
+        if (++this.timeouts > MAX_RETRANSMITS) {
+            throw new IOException("No ACK from peer after " + MAX_RETRANSMITS + " retransmits");
+        }
+        retransmit(oldest, "timeout");
+        return true;
+    }
+
+    /**
+     * Sets the ACK number carried on every data segment. A server that lost the final ACK of the handshake keeps no
+     * state to fall back on and recognizes its SYN cookie on the first data segment instead.
+     * @param ackNumber the server's initial sequence number plus one
+     */
+    public void setAckNumber(int ackNumber) {
+        this.ackNumber = ackNumber;
+    }
+
+    /**
+     * Paces segments at a fixed rate instead of one window per smoothed round trip time
+     * @param bytesPerSecond pacing rate, 0 to derive it from the window and round trip time
+     */
+    public void setPacingRate(double bytesPerSecond) {
+        this.isFixedRate = bytesPerSecond > 0;
+        this.pacer.setRate(bytesPerSecond);
+    }
+
+    /**
+     * @return the stream offset following the last byte sent
+     */
+    public long getSequenceNumber() {
+        return this.sequenceNumber;
+    }
+
+    public SendWindow getSendWindow() {
+        return this.sendWindow;
+    }
+
+    private void updatePacingRate() {
+        if (this.isFixedRate) return;
+        // unpaced for the first round trip, like the initial window burst in TCP
+        this.pacer.setRate(this.sendWindow.getPacingRate());
+        this.metrics.setRoundTripTimes(this.sendWindow.getSmoothedRttNanos() / 1000000L,
+                this.metrics.getRetransmitTimeoutMillis());
+    }
+
+    private DatagramPacket createDataPacket(byte[] data, int payloadSum) {
+        TcpHeader header = new TcpHeader(SequenceNumbers.wrap(this.sequenceNumber), this.ackNumber, 0, 0, 0, 0, 0, 0);
+        // a congested hop may mark it rather than drop it, the window shrinks when the mark is echoed
+        header.setIsEcnCapable(1);
+        TcpPacket tcpPacket = new TcpPacket(header, data);
+        // SETS THE CHECKSUM FIELD IN THE HEADER
+        tcpPacket.calculateChecksum(payloadSum);
+        byte[] tcpPacketBytes = tcpPacket.serialize();
+        return new DatagramPacket(tcpPacketBytes, tcpPacketBytes.length, this.peer);
+    }
+
+    /**
+     * Sends a data segment and books it in the window. Leaves the parity segment it completes, if any, pending.
+     * @param udpPacket the segment
+     * @param data its payload
+     * @throws IOException UDP stuff
+     */
+    private void transmit(DatagramPacket udpPacket, byte[] data) throws IOException {
+        this.sendWindow.add(this.sequenceNumber, data.length, udpPacket, this.socket.nanoTime());
+        long segmentSequenceNumber = this.sequenceNumber;
+        FlightEvents.segmentSent(segmentSequenceNumber, data.length);
+        this.sequenceNumber += data.length;
+        this.metrics.setCongestionWindow((int) Math.min(this.sendWindow.getWindow() / this.dataPerSegment,
+                Integer.MAX_VALUE));
+        this.socket.send(udpPacket);
+        this.metrics.segmentSent(udpPacket.getLength());
+        if (this.parityEncoder != null) this.pendingParity = this.parityEncoder.add(segmentSequenceNumber, data);
+    }
+
+    /**
+     * Sends the pending parity segment. Parity segments take no sequence space and are never retransmitted.
+     * @throws IOException UDP stuff
+     */
+    private void sendParity() throws IOException {
+        this.pendingParity.calculateChecksum();
+        byte[] tcpPacketBytes = this.pendingParity.serialize();
+        this.pendingParity = null;
+        this.socket.send(new DatagramPacket(tcpPacketBytes, tcpPacketBytes.length, this.peer));
+        this.metrics.segmentSent(tcpPacketBytes.length);
+    }
+
+    /**
+     * Feeds an ACK into the metrics: bytes it newly acknowledged count towards goodput, and an ACK that didn't move
+     * the window while data was in flight is a duplicate
+     * @param newlyAcknowledged bytes the ACK acknowledged for the first time
+     * @param isAwaitingAck data was in flight when it arrived
+     */
+    private void recordAck(long newlyAcknowledged, boolean isAwaitingAck) {
+        if (newlyAcknowledged > 0) {
+            this.metrics.delivered((int) Math.min(newlyAcknowledged, Integer.MAX_VALUE));
+        } else if (isAwaitingAck) {
+            this.metrics.duplicateAck();
+        }
+    }
+
+    /**
+     * Sends a segment again
+     * @param segment the segment
+     * @param cause what triggered it, for the flight recorder
+     * @throws IOException UDP trouble
+     */
+    private void retransmit(SendWindow.Segment segment, String cause) throws IOException {
+        FlightEvents.retransmit(segment, cause, this.socket.nanoTime());
+        this.socket.send(segment.getPacket());
+        this.metrics.segmentSent(segment.getPacket().getLength());
+        this.metrics.retransmit();
+    }
+}
@@ -6,5 +6,8 @@ public enum TcpConnectionState {
     SYN_SENT,
     LISTEN,
     SYN_RECEIVED,
-    ESTABLISHED
+    ESTABLISHED,
+    FIN_WAIT_1,
+    CLOSE_WAIT,
+    LAST_ACK
 }
@@ -12,6 +12,11 @@ public class TcpHeader {
     private int isRst;
     private int isSyn;
     private int isFin;
+    private int isParity = 0;           // reserved bit, forward error correction
+    // reserved bits standing in for the ECN field of the IP header: ECT set by the sender, CE set by a congested hop
+    private int isEcnCapable = 0;
+    private int isCongestionExperienced = 0;
+    private int isEcnEcho = 0;          // ECE, in TCP's position: the ACK reports a CE mark
     private int window;
     private int checksum;
     private int urgentPointer = 0;      // ALWAYS ZERO
@@ -24,7 +29,7 @@ public class TcpHeader {
      * @param isRst 1 if is rst
      * @param isSyn 1 if is syn
      * @param isFin 1 if is fin
-     * @param window congestion window
+     * @param window receive window, scaled down by the window scale agreed on in the handshake
      * @param checksum checksum of the packet
      */
     public TcpHeader(int sequenceNumber, int ackNumber, int isAck, int isRst,
@@ -47,8 +52,9 @@ public class TcpHeader {
         int headerRowOne = (this.sourcePort << 16) | this.destinationPort;
         int headerRowTwo = this.sequenceNumber;
         int headerRowThree = this.ackNumber;
-        int headerRowFour = (this.dataOffset << 28) | (this.isUrgent << 21) | (this.isAck << 20) |
-                (this.isPush << 19) | (this.isRst << 18) | (this.isSyn << 17) | (this.isFin << 16) | this.window;
+        int headerRowFour = (this.dataOffset << 28) | (this.isCongestionExperienced << 27) | (this.isEcnCapable << 26) |
+                (this.isParity << 25) | (this.isEcnEcho << 22) | (this.isUrgent << 21) | (this.isAck << 20) |
+                (this.isPush << 19) | (this.isRst << 18) | (this.isSyn << 17) | (this.isFin << 16) | (this.window & 0xFFFF);
         int headerRowFive = (this.checksum << 16) | this.urgentPointer;
         byte[] firstRowBytes = Utils.intToByteArrayBigEndian(headerRowOne);
         byte[] secondRowBytes = Utils.intToByteArrayBigEndian(headerRowTwo);
@@ -83,8 +89,14 @@ public class TcpHeader {
         int isRst = (flags >>> 2) & 0x1;
         int isSyn = (flags >>> 1) & 0x1;
         int isFin = flags & 0x1;
+        int isParity = (rowFour >>> 25) & 0x1;
 
-        return new TcpHeader(sequenceNum, ackNum, isAck, isRst, isSyn, isFin, congestionWindow, checksum);
+        TcpHeader header = new TcpHeader(sequenceNum, ackNum, isAck, isRst, isSyn, isFin, congestionWindow, checksum);
+        header.setIsParity(isParity);
+        header.setIsEcnEcho((rowFour >>> 22) & 0x1);
+        header.setIsEcnCapable((rowFour >>> 26) & 0x1);
+        header.isCongestionExperienced = (rowFour >>> 27) & 0x1;
+        return header;
     }
 
     @Override
@@ -123,6 +135,18 @@ public class TcpHeader {
                 "," +
                 "FIN:" +
                 this.isFin +
+                "," +
+                "PAR:" +
+                this.isParity +
+                "," +
+                "ECE:" +
+                this.isEcnEcho +
+                "," +
+                "ECT:" +
+                this.isEcnCapable +
+                "," +
+                "CE:" +
+                this.isCongestionExperienced +
                 "\n" +
                 "Window: " +
                 this.window +
@@ -165,4 +189,51 @@ public class TcpHeader {
     public int getAckNumber() {
         return ackNumber;
     }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public int getIsParity() {
+        return isParity;
+    }
+
+    /**
+     * Marks the segment as a parity segment for forward error correction
+     * @param isParity 1 if is parity
+     */
+    public void setIsParity(int isParity) {
+        this.isParity = isParity;
+    }
+
+    public int getIsEcnCapable() {
+        return isEcnCapable;
+    }
+
+    /**
+     * Lets a congested hop mark the segment instead of dropping it
+     * @param isEcnCapable 1 if the sender reacts to congestion echoed back to it
+     */
+    public void setIsEcnCapable(int isEcnCapable) {
+        this.isEcnCapable = isEcnCapable;
+    }
+
+    /**
+     * @return 1 if a hop on the way was congested and marked the segment, only ever set by the network
+     */
+    public int getIsCongestionExperienced() {
+        return isCongestionExperienced;
+    }
+
+    public int getIsEcnEcho() {
+        return isEcnEcho;
+    }
+
+    /**
+     * Reports on an ACK that a segment arrived marked congestion experienced
+     * @param isEcnEcho 1 if is ECN echo
+     */
+    public void setIsEcnEcho(int isEcnEcho) {
+        this.isEcnEcho = isEcnEcho;
+    }
 }
@@ -1,11 +1,17 @@
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
  * Model for TCP packet object
  */
 public class TcpPacket {
+    public static final int HEADER_LENGTH = 20;
+
     private TcpHeader header;
     private byte[] data;
+    // remembered by validateChecksum(), received packets are never modified
+    private boolean isValidated;
+    private boolean isValid;
 
     /**
      * Constructs the model
@@ -18,26 +24,48 @@ public class TcpPacket {
     }
 
     /**
-     * Calculates and sets the IP checksum of the packet
+     * Calculates and sets the IP checksum of the packet. The checksum field is zeroed first so a packet can be
+     * resent.
      * @return the checksum
      */
     public int calculateChecksum() {
+        this.isValidated = false;
+        this.header.setChecksum(0);
         int checksum = Utils.calculateIPChecksum(this.serialize());
         this.header.setChecksum(checksum);
         return checksum;
     }
 
+    /**
+     * Sets the checksum field from the header and an already known sum of the payload
+     * @param payloadSum unfolded sum of the payload, from {@link Utils#sumIPChecksumWords}
+     * @return the checksum
+     */
+    public int calculateChecksum(int payloadSum) {
+        this.isValidated = false;
+        this.header.setChecksum(0);
+        byte[] headerBytes = this.header.serialize();
+        int checksum = Utils.foldIPChecksum(
+                Utils.sumIPChecksumWords(ByteBuffer.wrap(headerBytes), 0, headerBytes.length) + payloadSum);
+        this.header.setChecksum(checksum);
+        return checksum;
+    }
+
     /**
      * validates the checksum of the packet. Stores the set value, zeroes it out, recalculates the checksum, compares,
-     * and resets the checksum field of the header to the original value.
+     * and resets the checksum field of the header to the original value. The result is remembered, so a packet
+     * validated by a {@link ReceivePipeline} worker isn't checksummed again by the server thread.
      * @return true if the calculated checksum matches the stored one, else false
      */
     public boolean validateChecksum() {
+        if (this.isValidated) return this.isValid;
         int checksumFromHeader = this.header.getChecksum();
         this.header.setChecksum(0);
         int calculatedChecksum = Utils.calculateIPChecksum(this.serialize());
         this.header.setChecksum(checksumFromHeader);
-        return checksumFromHeader == calculatedChecksum;
+        this.isValid = checksumFromHeader == calculatedChecksum;
+        this.isValidated = true;
+        return this.isValid;
     }
 
     /**
@@ -49,13 +77,20 @@ public class TcpPacket {
     }
 
     /**
-     * Deserializes a byte array into a TcpPacket object
+     * Deserializes a byte array into a TcpPacket object. A datagram too short to hold a header comes back as an empty
+     * packet that never passes {@link #validateChecksum()}, so receive loops drop it as a corrupt segment.
      * @param bytes the serialized packet
      * @return the TcpPacket object
      */
     public static TcpPacket deserialize(byte[] bytes) {
-        TcpHeader header = TcpHeader.deserialize(Arrays.copyOfRange(bytes, 0, 20));
-        return new TcpPacket(header, Arrays.copyOfRange(bytes, 20, bytes.length));
+        if (bytes.length < HEADER_LENGTH) {
+            TcpPacket runt = new TcpPacket(TcpHeader.deserialize(new byte[HEADER_LENGTH]), new byte[0]);
+            runt.isValidated = true;
+            runt.isValid = false;
+            return runt;
+        }
+        TcpHeader header = TcpHeader.deserialize(Arrays.copyOfRange(bytes, 0, HEADER_LENGTH));
+        return new TcpPacket(header, Arrays.copyOfRange(bytes, HEADER_LENGTH, bytes.length));
     }
 
     public byte[] getData() {
@@ -0,0 +1,782 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Programmatic client for uploading files, many at once, from one JVM. Each {@link #submit} starts an upload and
+ * returns a future for its {@link TransferResult}; cancelling the future resets the connection, or takes the transfer
+ * out of its queue if it hasn't started. Transfers to the same server address queue up and run one connection at a
+ * time, in the order they were submitted, so however many are waiting none of them times out its handshake behind
+ * the others; transfers to different servers run at once. Every connection has a socket of its own, but they all
+ * share one I/O thread, which drives the same {@link ClientConnection}, {@link StreamSender} and
+ * {@link UploadSource} as {@link Client} does with a thread pair per connection, so fast open, compression, parity
+ * segments, pacing and deduplication work the same way.
+ * <p>
+ * Progress callbacks, and any stage chained onto a returned future without an executor, run on the I/O thread, so
+ * they must return quickly and never block. Files are read on the I/O thread as their segments go out, or by a
+ * compressor or delta worker ahead of it; their MD5 is computed beforehand on a thread of their own, and so are the
+ * server's signatures for a deduplicated upload, once it reaches the front of its queue.
+ */
+public class TransferClient implements Closeable {
+    private static final int DEFAULT_MAX_SEGMENT_SIZE = 1020;
+    private static final int DEFAULT_TIMEOUT = 1000;
+    // segments one transfer sends per turn of the loop, so a wide open window can't starve the other transfers
+    private static final int MAX_BURST = 16;
+    // datagrams one transfer reads per turn of the loop
+    private static final int MAX_RECEIVES = 64;
+    private static final long PROGRESS_INTERVAL_NANOS = 100000000L;
+    private static final int DIGEST_THREADS = 2;
+
+    /**
+     * Told how far a transfer has got, on the I/O thread
+     */
+    public interface ProgressListener {
+        /**
+         * @param bytesAcknowledged file bytes the server has acknowledged so far; on a compressed or deduplicated
+         *                          transfer, bytes of the encoded contents, so it can stop short of totalBytes until
+         *                          the last report
+         * @param totalBytes size of the file
+         */
+        void onProgress(long bytesAcknowledged, long totalBytes);
+    }
+
+    /**
+     * What a transfer asks of its connection, fixed when it's submitted
+     */
+    private static class Settings {
+        private final ConnectionOptions requested;
+        private final boolean isFastOpen;
+        private final double pacingRate;
+
+        private Settings(ConnectionOptions requested, boolean isFastOpen, double pacingRate) {
+            this.requested = requested;
+            this.isFastOpen = isFastOpen;
+            this.pacingRate = pacingRate;
+        }
+    }
+
+    private final int maxSegmentSize;
+    private final int timeout;
+    private final Selector selector;
+    private final ExecutorService digesters;
+    private final Thread loop;
+    // work handed to the I/O thread, guarded by itself along with isClosed
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    // transfers with a connection open
+    private final List<Transfer> transfers = new ArrayList<>();
+    // transfers by server address, in the order they were submitted; the first of each is the one under way
+    private final Map<InetSocketAddress, ArrayDeque<Transfer>> queues = new HashMap<>();
+    private final ByteBuffer receiveBuffer;
+    private boolean isClosed;
+    private volatile boolean isFastOpen;
+    private volatile boolean isCompressionRequested;
+    private volatile int parityGroupSizeRequested;
+    private volatile double pacingRate;
+    private volatile boolean isDedupRequested;
+
+    /**
+     * Constructs the client with the command line's defaults: 1020 byte segments and a one second retransmit timeout
+     * @throws IOException if the selector can't be opened
+     */
+    public TransferClient() throws IOException {
+        this(DEFAULT_MAX_SEGMENT_SIZE, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Constructs the client and starts its I/O thread
+     * @param maxSegmentSize max segment size to send across link
+     * @param timeout retransmit timeout in milliseconds
+     * @throws IOException if the selector can't be opened
+     */
+    public TransferClient(int maxSegmentSize, int timeout) throws IOException {
+        this.maxSegmentSize = maxSegmentSize;
+        this.timeout = timeout;
+        this.selector = Selector.open();
+        this.receiveBuffer = ByteBuffer.allocate(maxSegmentSize);
+        this.digesters = Executors.newFixedThreadPool(DIGEST_THREADS, task -> {
+            Thread thread = new Thread(task, "TransferDigest");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.loop = new Thread(this::run, "TransferClient");
+        this.loop.setDaemon(true);
+        this.loop.start();
+    }
+
+    /**
+     * Uploads a file
+     * @param file the file
+     * @param server address and port of the server
+     * @return completes with the result once the server has acknowledged every byte and the connection is closed, or
+     * exceptionally with an IOException
+     * @see #submit(Path, InetSocketAddress, ProgressListener)
+     */
+    public CompletableFuture<TransferResult> submit(Path file, InetSocketAddress server) {
+        return submit(file, server, null);
+    }
+
+    /**
+     * Uploads a file, reporting progress at most every 100 ms and once more at the end. The transfer waits for any
+     * submitted earlier to the same server to end first; its duration counts from when its own connection opens.
+     * @param file the file
+     * @param server address and port of the server
+     * @param listener told how far the transfer has got, or null
+     * @return completes with the result once the server has acknowledged every byte and the connection is closed, or
+     * exceptionally with an IOException
+     */
+    public CompletableFuture<TransferResult> submit(Path file, InetSocketAddress server, ProgressListener listener) {
+        CompletableFuture<TransferResult> result = new CompletableFuture<>();
+        // wake the loop to reset the connection, or to drop the transfer from its queue, without waiting for a timer
+        result.whenComplete((value, failure) -> {
+            if (result.isCancelled()) execute(this::dropCancelled);
+        });
+        boolean isDedup = this.isDedupRequested;
+        ConnectionOptions requested = new ConnectionOptions(0)
+                .withCompression(this.isCompressionRequested && !isDedup)
+                .withParityGroupSize(this.parityGroupSizeRequested)
+                .withDedup(isDedup);
+        Settings settings = new Settings(requested, this.isFastOpen, this.pacingRate);
+        Runnable digest = () -> {
+            if (isClosed()) {
+                result.completeExceptionally(new IOException("Transfer client is closed"));
+                return;
+            }
+            FileHeader header;
+            try {
+                header = FileHeader.of(file);
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            Transfer transfer = new Transfer(file, header, server, listener, result, settings);
+            if (!execute(() -> enqueue(transfer))) {
+                result.completeExceptionally(new IOException("Transfer client is closed"));
+            }
+        };
+        synchronized (this.tasks) {
+            if (this.isClosed) {
+                result.completeExceptionally(new IOException("Transfer client is closed"));
+                return result;
+            }
+            this.digesters.execute(digest);
+        }
+        return result;
+    }
+
+    /**
+     * Turns on fast open for transfers submitted from now on: keep the cookie each server hands out, and send the
+     * file's header with the SYN on later connections to the same server
+     * @param isFastOpen true to use fast open
+     */
+    public void setFastOpen(boolean isFastOpen) {
+        this.isFastOpen = isFastOpen;
+    }
+
+    /**
+     * Asks the server to take file contents in deflate blocks, for transfers submitted from now on. Used only if the
+     * server agrees in the handshake.
+     * @param isCompressed true to ask for compression
+     */
+    public void setCompression(boolean isCompressed) {
+        this.isCompressionRequested = isCompressed;
+    }
+
+    /**
+     * Asks the server to take a parity segment after every group of data segments, for transfers submitted from now
+     * on. Used only if the server agrees in the handshake.
+     * @param groupSize data segments per parity segment, up to {@link ConnectionOptions#MAX_PARITY_GROUP_SIZE}, or 0
+     *                  for none
+     */
+    public void setParityGroupSize(int groupSize) {
+        this.parityGroupSizeRequested = Math.min(Math.max(groupSize, 0), ConnectionOptions.MAX_PARITY_GROUP_SIZE);
+    }
+
+    /**
+     * Paces data at a fixed rate, for transfers submitted from now on. By default the rate spreads the server's window
+     * evenly over the smoothed round trip time.
+     * @param bytesPerSecond pacing rate per transfer, 0 for the default
+     */
+    public void setPacingRate(double bytesPerSecond) {
+        this.pacingRate = bytesPerSecond;
+    }
+
+    /**
+     * Deduplicates transfers submitted from now on against the copies a server that stores files already holds:
+     * fetches the file's signature first, then sends only the blocks the server lacks. Used only if the server agrees
+     * in the handshake; compression isn't used with it.
+     * @param isDedup true to deduplicate
+     */
+    public void setDedup(boolean isDedup) {
+        this.isDedupRequested = isDedup;
+    }
+
+    /**
+     * Stops the I/O thread, resetting every transfer still under way and failing its future
+     */
+    @Override
+    public void close() {
+        synchronized (this.tasks) {
+            if (this.isClosed) return;
+            this.isClosed = true;
+        }
+        // digests still queued fail their transfers without reading the file
+        this.digesters.shutdown();
+        this.selector.wakeup();
+        try {
+            this.loop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hands a task to the I/O thread
+     * @param task the task
+     * @return false if the client is closed and the task will never run
+     */
+    private boolean execute(Runnable task) {
+        synchronized (this.tasks) {
+            if (this.isClosed) return false;
+            this.tasks.add(task);
+        }
+        this.selector.wakeup();
+        return true;
+    }
+
+    /**
+     * The I/O thread: waits for datagrams or the next timer, then gives every transfer a turn
+     */
+    private void run() {
+        long wakeAt = Long.MAX_VALUE;
+        while (!isClosed()) {
+            try {
+                long waitNanos = wakeAt - System.nanoTime();
+                if (wakeAt == Long.MAX_VALUE) {
+                    this.selector.select();
+                } else if (waitNanos <= 0) {
+                    this.selector.selectNow();
+                } else {
+                    this.selector.select(Math.max(waitNanos / 1000000L, 1));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            runTasks();
+            long now = System.nanoTime();
+            for (SelectionKey key : this.selector.selectedKeys()) {
+                Transfer transfer = (Transfer) key.attachment();
+                if (key.isValid()) transfer.onReady(key, now);
+            }
+            this.selector.selectedKeys().clear();
+            wakeAt = Long.MAX_VALUE;
+            for (Transfer transfer : new ArrayList<>(this.transfers)) {
+                wakeAt = Math.min(wakeAt, transfer.service(now));
+            }
+        }
+        synchronized (this.tasks) {
+            this.isClosed = true;
+        }
+        // transfers submitted just before the close start only to be failed
+        runTasks();
+        List<Transfer> remaining = new ArrayList<>();
+        for (ArrayDeque<Transfer> queue : this.queues.values()) remaining.addAll(queue);
+        for (Transfer transfer : remaining) {
+            transfer.abort(new IOException("Transfer client is closed"));
+        }
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean isClosed() {
+        synchronized (this.tasks) {
+            return this.isClosed;
+        }
+    }
+
+    private void runTasks() {
+        while (true) {
+            Runnable task;
+            synchronized (this.tasks) {
+                task = this.tasks.poll();
+            }
+            if (task == null) return;
+            task.run();
+        }
+    }
+
+    /**
+     * Fetches the server's signature for its stored copy of a file, over a connection of its own run by a blocking
+     * {@link Client} on the caller's thread
+     * @param file the file about to be sent
+     * @param server address and port of the server
+     * @return the signature by file name, empty if the server holds no copy, or null if it doesn't deduplicate
+     * @throws IOException UDP stuff
+     */
+    private Map<String, BlockSignatures> fetchSignatures(Path file, InetSocketAddress server) throws IOException {
+        DatagramTransport socket = new UdpTransport(new DatagramSocket());
+        try {
+            Client client = new Client(file.toString(), this.maxSegmentSize, this.timeout, false, server.getAddress(),
+                    server.getPort(), socket);
+            client.setDedup(true);
+            return client.fetchSignatures(Collections.singletonList(file));
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Puts a transfer at the back of its server's queue, starting it if nothing is ahead of it, on the I/O thread
+     * @param transfer the transfer
+     */
+    private void enqueue(Transfer transfer) {
+        if (transfer.result.isDone()) return;
+        ArrayDeque<Transfer> queue = this.queues.computeIfAbsent(transfer.server, server -> new ArrayDeque<>());
+        queue.add(transfer);
+        if (queue.size() == 1) activate(transfer);
+    }
+
+    /**
+     * Takes a transfer that has ended out of its server's queue, starting the next one if it was under way
+     * @param transfer the transfer
+     */
+    private void dequeue(Transfer transfer) {
+        ArrayDeque<Transfer> queue = this.queues.get(transfer.server);
+        if (queue == null) return;
+        boolean wasActive = queue.peekFirst() == transfer;
+        queue.remove(transfer);
+        if (queue.isEmpty()) {
+            this.queues.remove(transfer.server);
+        } else if (wasActive && !isClosed()) {
+            activate(queue.peekFirst());
+        }
+    }
+
+    /**
+     * Drops transfers cancelled while waiting in a queue; one under way is reset on its next turn
+     */
+    private void dropCancelled() {
+        List<Transfer> cancelled = new ArrayList<>();
+        for (ArrayDeque<Transfer> queue : this.queues.values()) {
+            for (Transfer transfer : queue) {
+                if (transfer != queue.peekFirst() && transfer.result.isDone()) cancelled.add(transfer);
+            }
+        }
+        for (Transfer transfer : cancelled) transfer.release();
+    }
+
+    /**
+     * Starts the transfer at the front of its server's queue, fetching the server's signatures first for a
+     * deduplicated upload
+     * @param transfer the transfer
+     */
+    private void activate(Transfer transfer) {
+        if (transfer.result.isDone() || !transfer.settings.requested.getIsDedup()) {
+            start(transfer);
+            return;
+        }
+        try {
+            this.digesters.execute(() -> fetchAndStart(transfer));
+        } catch (RejectedExecutionException e) {
+            transfer.abort(new IOException("Transfer client is closed"));
+        }
+    }
+
+    /**
+     * Fetches the server's signatures for a deduplicated upload, on a digest thread, then starts it on the I/O thread
+     * @param transfer the transfer
+     */
+    private void fetchAndStart(Transfer transfer) {
+        if (isClosed()) {
+            transfer.result.completeExceptionally(new IOException("Transfer client is closed"));
+            return;
+        }
+        IOException failure = null;
+        try {
+            transfer.signatures = fetchSignatures(transfer.file, transfer.server);
+        } catch (IOException e) {
+            failure = e;
+        }
+        IOException fetchFailure = failure;
+        boolean isQueued = execute(() -> {
+            if (fetchFailure != null) {
+                transfer.abort(fetchFailure);
+            } else {
+                start(transfer);
+            }
+        });
+        if (!isQueued) transfer.result.completeExceptionally(new IOException("Transfer client is closed"));
+    }
+
+    /**
+     * Opens a transfer's socket and sends its first SYN, on the I/O thread
+     * @param transfer the transfer
+     */
+    private void start(Transfer transfer) {
+        if (isClosed()) {
+            transfer.abort(new IOException("Transfer client is closed"));
+            return;
+        }
+        if (transfer.result.isDone()) {
+            // cancelled while waiting
+            transfer.release();
+            return;
+        }
+        try {
+            transfer.open();
+            this.transfers.add(transfer);
+        } catch (IOException e) {
+            transfer.abort(e);
+        }
+    }
+
+    /**
+     * A transfer's non-blocking channel as a {@link DatagramSender}, so the connection code shared with {@link Client}
+     * can send on it. A datagram the socket buffer can't take waits in a backlog, and the transfer sends nothing new
+     * until the channel turns writable and the backlog has gone out. The I/O thread reads the channel itself.
+     */
+    private class ChannelSender implements DatagramSender {
+        private final DatagramChannel channel;
+        private final ArrayDeque<DatagramPacket> backlog = new ArrayDeque<>();
+
+        private ChannelSender(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void send(DatagramPacket packet) throws IOException {
+            if (this.backlog.isEmpty() && trySend(packet)) return;
+            this.backlog.add(packet);
+            this.channel.keyFor(TransferClient.this.selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Sends what the backlog holds, once the channel is writable
+         * @throws IOException UDP stuff
+         */
+        private void flush() throws IOException {
+            while (!this.backlog.isEmpty()) {
+                if (!trySend(this.backlog.peekFirst())) return;
+                this.backlog.pollFirst();
+            }
+            this.channel.keyFor(TransferClient.this.selector).interestOps(SelectionKey.OP_READ);
+        }
+
+        private boolean isBlocked() {
+            return !this.backlog.isEmpty();
+        }
+
+        private boolean trySend(DatagramPacket packet) throws IOException {
+            ByteBuffer data = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+            return this.channel.send(data, packet.getSocketAddress()) > 0;
+        }
+    }
+
+    /**
+     * One upload: the I/O thread's driver for its connection, through the same {@link ClientConnection},
+     * {@link StreamSender} and {@link UploadSource} as {@link Client}
+     */
+    private class Transfer {
+        private final Path file;
+        private final FileHeader header;
+        private final InetSocketAddress server;
+        private final ProgressListener listener;
+        private final CompletableFuture<TransferResult> result;
+        private final Settings settings;
+        // the server's signatures for a deduplicated upload, fetched once it reaches the front of its queue
+        private Map<String, BlockSignatures> signatures;
+        private DatagramChannel channel;
+        private ChannelSender transport;
+        private TransportMetrics metrics;
+        private ClientConnection connection;
+        private StreamSender sender;
+        private UploadSource source;
+        // next segment, taken from the source but not yet let through by the window or the pacer
+        private UploadSource.Payload pending;
+        private long startedAt;
+        // stream offset of the file's first byte
+        private long contentStart;
+        private long lastHeard;
+        private long lastProgressAt;
+        private long lastProgress = -1;
+        // socket, file and metrics closed
+        private boolean isReleased;
+
+        private Transfer(Path file, FileHeader header, InetSocketAddress server, ProgressListener listener,
+                         CompletableFuture<TransferResult> result, Settings settings) {
+            this.file = file;
+            this.header = header;
+            this.server = server;
+            this.listener = listener;
+            this.result = result;
+            this.settings = settings;
+        }
+
+        /**
+         * Opens the socket and sends the first SYN, with the file's header on it if fast open has a cookie
+         * @throws IOException if the socket can't be opened or the file name doesn't fit in a segment
+         */
+        private void open() throws IOException {
+            byte[] headerBytes = this.header.serialize();
+            if (headerBytes.length > TransferClient.this.maxSegmentSize - 20) {
+                throw new IOException("File name too long: " + this.file.getFileName());
+            }
+            this.channel = DatagramChannel.open();
+            this.channel.configureBlocking(false);
+            this.channel.bind(null);
+            this.channel.register(TransferClient.this.selector, SelectionKey.OP_READ, this);
+            this.transport = new ChannelSender(this.channel);
+            this.metrics = TransportMetrics.register("client");
+            this.metrics.setRoundTripTimes(0, TransferClient.this.timeout);
+            this.connection = new ClientConnection(this.transport, this.server, TransferClient.this.timeout,
+                    this.metrics, false);
+            this.connection.setFastOpen(this.settings.isFastOpen);
+            byte[] synData = new byte[0];
+            if (this.settings.isFastOpen && ClientConnection.hasFastOpenCookie(this.server)) synData = headerBytes;
+            this.startedAt = System.nanoTime();
+            this.connection.open(this.settings.requested, synData);
+        }
+
+        /**
+         * Handles the socket becoming readable or writable
+         * @param key the transfer's selection key
+         * @param now current time in nanoseconds
+         */
+        private void onReady(SelectionKey key, long now) {
+            try {
+                if (key.isWritable()) this.transport.flush();
+                if (key.isValid() && key.isReadable()) receive(now);
+            } catch (IOException | RuntimeException e) {
+                abort(e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+        }
+
+        /**
+         * Gives the transfer its turn: resets it if cancelled, runs its timers and sends what the window allows
+         * @param now current time in nanoseconds
+         * @return when the transfer next needs a turn, in nanoseconds, or Long.MAX_VALUE if it's finished
+         */
+        private long service(long now) {
+            if (this.isReleased) return Long.MAX_VALUE;
+            if (this.result.isDone()) {
+                // cancelled by the caller
+                abort(null);
+                return Long.MAX_VALUE;
+            }
+            try {
+                switch (this.connection.getState()) {
+                    case SYN_SENT:
+                        if (now - this.connection.getDeadline() >= 0) this.connection.onTimeout();
+                        return this.connection.getDeadline();
+                    case ESTABLISHED:
+                        return serviceEstablished(now);
+                    case FIN_WAIT_1:
+                        if (now - this.connection.getDeadline() >= 0 && !this.connection.onTimeout()) {
+                            // every byte was acknowledged, the server times out its half of the close on its own
+                            finish(now);
+                            return Long.MAX_VALUE;
+                        }
+                        return this.connection.getDeadline();
+                    default:
+                        return Long.MAX_VALUE;
+                }
+            } catch (IOException | RuntimeException e) {
+                abort(e instanceof IOException ? (IOException) e : new IOException(e));
+                return Long.MAX_VALUE;
+            }
+        }
+
+        private long serviceEstablished(long now) throws IOException {
+            SendWindow sendWindow = this.sender.getSendWindow();
+            if (sendWindow.getBytesInFlight() > 0 && now - this.lastHeard >= timeoutNanos()) {
+                this.sender.onTimeout();
+                this.lastHeard = now;
+            }
+            long delay = sendData();
+            reportProgress(now, false);
+            if (sendWindow.isComplete()) {
+                this.connection.close(this.sender.getSequenceNumber());
+                return this.connection.getDeadline();
+            }
+            long wakeAt = this.lastHeard + timeoutNanos();
+            // cut short by the burst limit, or waiting on the pacer
+            if (delay == 0) return now;
+            if (delay != Long.MAX_VALUE) wakeAt = Math.min(wakeAt, now + delay);
+            return wakeAt;
+        }
+
+        /**
+         * Sends segments while the window, the pacer and the socket buffer allow, up to MAX_BURST
+         * @return 0 if the burst limit stopped it, otherwise how long until it's worth trying again: the pacer's delay,
+         * or Long.MAX_VALUE until an ACK, the compressor or the socket wakes the loop
+         * @throws IOException UDP stuff, or the file couldn't be read
+         */
+        private long sendData() throws IOException {
+            for (int burst = 0; burst < MAX_BURST; burst++) {
+                if (this.transport.isBlocked()) return Long.MAX_VALUE;
+                if (this.pending == null) this.pending = this.source.poll();
+                if (this.pending == null) {
+                    if (!this.source.isFinished()) return Long.MAX_VALUE;
+                    long delay = this.sender.tryFinish();
+                    return delay > 0 ? delay : Long.MAX_VALUE;
+                }
+                long delay = this.sender.trySend(this.pending);
+                if (delay > 0) return delay;
+                this.pending = null;
+            }
+            return 0;
+        }
+
+        /**
+         * Reads every datagram waiting on the socket, up to MAX_RECEIVES
+         * @param now current time in nanoseconds
+         * @throws IOException UDP stuff
+         */
+        private void receive(long now) throws IOException {
+            ByteBuffer buffer = TransferClient.this.receiveBuffer;
+            for (int i = 0; i < MAX_RECEIVES && !this.isReleased; i++) {
+                buffer.clear();
+                SocketAddress from = this.channel.receive(buffer);
+                if (from == null) return;
+                if (!this.server.equals(from)) continue;
+                this.metrics.segmentReceived(buffer.position());
+                if (buffer.position() < TcpPacket.HEADER_LENGTH) {
+                    // too short to be a segment
+                    this.metrics.checksumFailure();
+                    continue;
+                }
+                onPacket(TcpPacket.deserialize(Arrays.copyOf(buffer.array(), buffer.position())), now);
+            }
+        }
+
+        private void onPacket(TcpPacket packet, long now) throws IOException {
+            switch (this.connection.getState()) {
+                case SYN_SENT:
+                    if (this.connection.onHandshakeSegment(packet)) established(now);
+                    return;
+                case ESTABLISHED:
+                    if (this.sender.onSegment(packet)) this.lastHeard = now;
+                    return;
+                case FIN_WAIT_1:
+                    if (this.connection.onCloseSegment(packet)) finish(now);
+                    return;
+                default:
+            }
+        }
+
+        /**
+         * Starts the data once the SYN-ACK has come, with the options the server agreed to
+         * @param now current time in nanoseconds
+         */
+        private void established(long now) {
+            ConnectionOptions options = this.connection.getOptions();
+            SendWindow sendWindow = new SendWindow(this.connection.getSequenceNumber(), options.getWindowScale());
+            this.sender = new StreamSender(this.transport, this.server, TransferClient.this.maxSegmentSize, sendWindow,
+                    this.metrics, options.getParityGroupSize());
+            this.sender.setPacingRate(this.settings.pacingRate);
+            this.sender.setAckNumber(SequenceNumbers.wrap(this.connection.getServerSequenceNumber()));
+            this.source = new UploadSource(Collections.singletonList(this.file),
+                    TransferClient.this.maxSegmentSize - 20, this.connection.isSynDataAcked(),
+                    options.getIsCompressed());
+            this.source.setHeader(this.file, this.header);
+            // the header went with the SYN, or goes ahead of the contents
+            this.contentStart = this.connection.getSequenceNumber()
+                    + (this.connection.isSynDataAcked() ? 0 : this.header.serialize().length);
+            this.source.setPrintingDigests(false);
+            this.source.setReadyListener(TransferClient.this.selector::wakeup);
+            if (options.getIsDedup()) {
+                this.source.setSignatures(this.signatures != null ? this.signatures : Collections.emptyMap());
+            }
+            this.lastHeard = now;
+            this.lastProgressAt = now;
+        }
+
+        /**
+         * Tells the listener how far the transfer has got, if it changed and the last report is at least
+         * PROGRESS_INTERVAL_NANOS old or this is the last one
+         * @param now current time in nanoseconds
+         * @param isFinal the transfer is done
+         */
+        private void reportProgress(long now, boolean isFinal) {
+            if (this.listener == null || this.sender == null) return;
+            if (!isFinal && now - this.lastProgressAt < PROGRESS_INTERVAL_NANOS) return;
+            long acknowledged = this.header.getLength();
+            if (!isFinal) {
+                acknowledged = this.sender.getSendWindow().getAcknowledged() - this.contentStart;
+                acknowledged = Math.max(0, Math.min(acknowledged, this.header.getLength()));
+            }
+            if (acknowledged == this.lastProgress) return;
+            this.lastProgressAt = now;
+            this.lastProgress = acknowledged;
+            this.listener.onProgress(acknowledged, this.header.getLength());
+        }
+
+        /**
+         * Ends a transfer whose every byte was acknowledged
+         * @param now current time in nanoseconds
+         */
+        private void finish(long now) {
+            reportProgress(now, true);
+            release();
+            this.result.complete(new TransferResult(this.header.getLength(), now - this.startedAt,
+                    this.header.getMd5(), this.metrics.getRetransmits()));
+        }
+
+        /**
+         * Ends a transfer early, resetting the connection
+         * @param failure why, or null if the caller cancelled it
+         */
+        private void abort(IOException failure) {
+            if (this.connection != null && this.connection.getState() != TcpConnectionState.CLOSED) {
+                try {
+                    this.connection.reset();
+                } catch (IOException e) {
+                    // the connection is being torn down anyway, the server times it out
+                }
+            }
+            release();
+            if (failure != null) this.result.completeExceptionally(failure);
+        }
+
+        private void release() {
+            if (this.isReleased) return;
+            this.isReleased = true;
+            TransferClient.this.transfers.remove(this);
+            TransferClient.this.dequeue(this);
+            if (this.source != null) this.source.close();
+            if (this.metrics != null) this.metrics.unregister();
+            if (this.channel == null) return;
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private long timeoutNanos() {
+            return TransferClient.this.timeout * 1000000L;
+        }
+    }
+}
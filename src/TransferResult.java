@@ -0,0 +1,47 @@
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Outcome of one transfer submitted to a {@link TransferClient}
+ */
+public class TransferResult {
+    private final long bytes;
+    private final long durationNanos;
+    private final byte[] md5;
+    private final long retransmits;
+
+    /**
+     * Constructs the result
+     * @param bytes file bytes delivered
+     * @param durationNanos time from the first SYN to the end of the close
+     * @param md5 MD5 digest of the file, sent in its header for the server to check against
+     * @param retransmits segments sent more than once, SYNs included
+     */
+    public TransferResult(long bytes, long durationNanos, byte[] md5, long retransmits) {
+        this.bytes = bytes;
+        this.durationNanos = durationNanos;
+        this.md5 = md5;
+        this.retransmits = retransmits;
+    }
+
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    public long getDurationNanos() {
+        return this.durationNanos;
+    }
+
+    public byte[] getMd5() {
+        return this.md5.clone();
+    }
+
+    public long getRetransmits() {
+        return this.retransmits;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d bytes in %.1f ms, %d retransmits, MD5 %s", this.bytes, this.durationNanos / 1e6,
+                this.retransmits, DatatypeConverter.printHexBinary(this.md5));
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+/**
+ * Server side of a stream connection: the bytes a client writes to its {@link TransportOutputStream}, in order, for
+ * the application to read in-process. Get one from {@link Server#acceptStream()}.
+ * <p>
+ * The server thread hands over each in-order segment as it's delivered, and the stream holds up to a fixed number of
+ * bytes the application hasn't read yet. The space left is what the server advertises as its window, so a slow reader
+ * slows the client down instead of the bytes piling up on the heap. The stream ends at the client's FIN; if the
+ * connection is reset or evicted first, reads fail once the bytes that did arrive have been read.
+ */
+public class TransportInputStream extends InputStream {
+    private final long capacityBytes;
+    private final ArrayDeque<byte[]> segments = new ArrayDeque<>();
+    private long bufferedBytes;
+    // bytes of the first segment already read
+    private int position;
+    private boolean isEnded;
+    private boolean isClosed;
+    private IOException failure;
+
+    /**
+     * Constructs an empty stream
+     * @param capacityBytes most bytes held for the application before the server stops taking more
+     */
+    public TransportInputStream(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * Appends the next in-order bytes, waiting for the application to read if the stream is full. Bytes written
+     * after the application closed the stream are thrown away.
+     * @param data segment payload
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    synchronized void write(byte[] data) throws InterruptedException {
+        if (data.length == 0) return;
+        // an empty stream takes any segment, so one bigger than the capacity can't wedge it
+        while (!this.isClosed && this.bufferedBytes > 0 && this.bufferedBytes + data.length > this.capacityBytes) {
+            wait();
+        }
+        if (this.isClosed) return;
+        this.segments.add(data);
+        this.bufferedBytes += data.length;
+        notifyAll();
+    }
+
+    /**
+     * Ends the stream once the client's FIN is delivered
+     */
+    synchronized void end() {
+        this.isEnded = true;
+        notifyAll();
+    }
+
+    /**
+     * Ends the stream early. Reads fail once the bytes already held are read. Does nothing after {@link #end()}.
+     * @param failure why the connection went away
+     */
+    synchronized void fail(IOException failure) {
+        if (this.isEnded) return;
+        this.failure = failure;
+        this.isEnded = true;
+        notifyAll();
+    }
+
+    /**
+     * @return room left for bytes the application hasn't read, the window the server can advertise
+     */
+    synchronized long getFreeBytes() {
+        return Math.max(this.capacityBytes - this.bufferedBytes, 0);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    /**
+     * Reads the bytes available, waiting until at least one arrives or the stream ends
+     * @param buffer where to put the bytes
+     * @param offset where in the buffer to start
+     * @param length most bytes to read
+     * @return number of bytes read, or -1 at the end of the stream
+     * @throws IOException if the connection went away before the client's FIN, or the stream is closed
+     */
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || length > buffer.length - offset) throw new IndexOutOfBoundsException();
+        if (length == 0) return 0;
+        try {
+            while (this.segments.isEmpty() && !this.isEnded && !this.isClosed) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the stream");
+        }
+        if (this.isClosed) throw new IOException("Stream closed");
+        if (this.segments.isEmpty()) {
+            if (this.failure != null) throw this.failure;
+            return -1;
+        }
+        byte[] segment = this.segments.peekFirst();
+        int count = Math.min(length, segment.length - this.position);
+        System.arraycopy(segment, this.position, buffer, offset, count);
+        this.position += count;
+        if (this.position == segment.length) {
+            this.segments.removeFirst();
+            this.position = 0;
+        }
+        this.bufferedBytes -= count;
+        notifyAll();
+        return count;
+    }
+
+    @Override
+    public synchronized int available() {
+        return (int) Math.min(this.bufferedBytes, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Stops reading. Bytes still arriving are acknowledged and thrown away, so the client can finish and close.
+     */
+    @Override
+    public synchronized void close() {
+        this.isClosed = true;
+        this.segments.clear();
+        this.bufferedBytes = 0;
+        this.position = 0;
+        notifyAll();
+    }
+}
@@ -0,0 +1,255 @@
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-connection transport counters and gauges, registered as an MBean so a running transfer can be inspected with
+ * jconsole/VisualVM without turning on verbose mode. Counters are {@link LongAdder}s so the send and receive paths
+ * never contend on a single cache line; gauges are plain volatiles written by the thread that owns the value.
+ */
+public class TransportMetrics implements TransportMetricsMBean {
+    static final String DOMAIN = "fcntcp";
+    private static final AtomicLong connectionIds = new AtomicLong();
+
+    private final LongAdder segmentsSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder segmentsReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder duplicateAcks = new LongAdder();
+    private final LongAdder checksumFailures = new LongAdder();
+    private final LongAdder segmentsRecovered = new LongAdder();
+    private final LongAdder segmentsDropped = new LongAdder();
+    private final LongAdder congestionReductions = new LongAdder();
+    private final LongAdder bytesDelivered = new LongAdder();
+    private volatile int outOfOrderCacheDepth;
+    private volatile int congestionWindow;
+    private volatile long smoothedRttMillis;
+    private volatile long retransmitTimeoutMillis;
+    private final long startNanos;
+    private ObjectName objectName;
+
+    /**
+     * Constructs an unregistered set of metrics. The goodput clock starts now.
+     */
+    public TransportMetrics() {
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Creates a set of metrics and registers it with the platform MBean server as
+     * <code>fcntcp:type=Connection,role=&lt;role&gt;,id=&lt;n&gt;</code>. Registration failures are reported and
+     * otherwise ignored, the counters still work without JMX.
+     * @param role "client" or "server"
+     * @return the metrics
+     */
+    public static TransportMetrics register(String role) {
+        TransportMetrics metrics = new TransportMetrics();
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=Connection,role=" + role + ",id="
+                    + connectionIds.incrementAndGet());
+            mBeanServer.registerMBean(metrics, name);
+            metrics.objectName = name;
+        } catch (InstanceAlreadyExistsException e) {
+            System.err.println("Transport metrics already registered for " + role);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        return metrics;
+    }
+
+    /**
+     * Removes this connection's MBean from the platform MBean server, if it was registered
+     */
+    public void unregister() {
+        if (this.objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        this.objectName = null;
+    }
+
+    /**
+     * Records a segment handed to the socket
+     * @param length size of the segment on the wire, header included
+     */
+    public void segmentSent(int length) {
+        this.segmentsSent.increment();
+        this.bytesSent.add(length);
+    }
+
+    /**
+     * Records a segment pulled off the socket
+     * @param length size of the segment on the wire, header included
+     */
+    public void segmentReceived(int length) {
+        this.segmentsReceived.increment();
+        this.bytesReceived.add(length);
+    }
+
+    public void retransmit() {
+        this.retransmits.increment();
+    }
+
+    public void duplicateAck() {
+        this.duplicateAcks.increment();
+    }
+
+    public void checksumFailure() {
+        this.checksumFailures.increment();
+    }
+
+    /**
+     * Records a lost segment rebuilt from parity instead of retransmitted
+     */
+    public void segmentRecovered() {
+        this.segmentsRecovered.increment();
+    }
+
+    /**
+     * Records a segment dropped for landing beyond the receive window or the reassembly quota
+     */
+    public void segmentDropped() {
+        this.segmentsDropped.increment();
+    }
+
+    /**
+     * Records the congestion window being cut because the receiver echoed an ECN mark
+     */
+    public void congestionReduction() {
+        this.congestionReductions.increment();
+    }
+
+    /**
+     * Records payload bytes accepted in order (receiver) or acknowledged (sender)
+     * @param length number of payload bytes
+     */
+    public void delivered(int length) {
+        this.bytesDelivered.add(length);
+    }
+
+    public void setOutOfOrderCacheDepth(int depth) {
+        this.outOfOrderCacheDepth = depth;
+    }
+
+    public void setCongestionWindow(int congestionWindow) {
+        this.congestionWindow = congestionWindow;
+    }
+
+    /**
+     * Updates the round trip estimates
+     * @param smoothedRttMillis smoothed round trip time
+     * @param retransmitTimeoutMillis current retransmit timeout
+     */
+    public void setRoundTripTimes(long smoothedRttMillis, long retransmitTimeoutMillis) {
+        this.smoothedRttMillis = smoothedRttMillis;
+        this.retransmitTimeoutMillis = retransmitTimeoutMillis;
+    }
+
+    @Override
+    public long getSegmentsSent() {
+        return this.segmentsSent.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return this.bytesSent.sum();
+    }
+
+    @Override
+    public long getSegmentsReceived() {
+        return this.segmentsReceived.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return this.bytesReceived.sum();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return this.retransmits.sum();
+    }
+
+    @Override
+    public long getDuplicateAcks() {
+        return this.duplicateAcks.sum();
+    }
+
+    @Override
+    public long getChecksumFailures() {
+        return this.checksumFailures.sum();
+    }
+
+    @Override
+    public long getSegmentsRecovered() {
+        return this.segmentsRecovered.sum();
+    }
+
+    @Override
+    public long getSegmentsDropped() {
+        return this.segmentsDropped.sum();
+    }
+
+    @Override
+    public long getCongestionReductions() {
+        return this.congestionReductions.sum();
+    }
+
+    @Override
+    public int getOutOfOrderCacheDepth() {
+        return this.outOfOrderCacheDepth;
+    }
+
+    @Override
+    public int getCongestionWindow() {
+        return this.congestionWindow;
+    }
+
+    @Override
+    public long getSmoothedRttMillis() {
+        return this.smoothedRttMillis;
+    }
+
+    @Override
+    public long getRetransmitTimeoutMillis() {
+        return this.retransmitTimeoutMillis;
+    }
+
+    @Override
+    public long getBytesDelivered() {
+        return this.bytesDelivered.sum();
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return (System.nanoTime() - this.startNanos) / 1000000L;
+    }
+
+    @Override
+    public double getGoodputBytesPerSecond() {
+        long elapsedMillis = getElapsedMillis();
+        if (elapsedMillis == 0) return 0.0;
+        return getBytesDelivered() * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "Segments sent: " + getSegmentsSent() + " (" + getBytesSent() + " bytes)\n" +
+                "Segments received: " + getSegmentsReceived() + " (" + getBytesReceived() + " bytes)\n" +
+                "Retransmits: " + getRetransmits() + "\n" +
+                "Duplicate ACKs: " + getDuplicateAcks() + "\n" +
+                "Checksum failures: " + getChecksumFailures() + "\n" +
+                "Segments recovered: " + getSegmentsRecovered() + "\n" +
+                "Segments dropped: " + getSegmentsDropped() + "\n" +
+                "Congestion window cuts (ECN): " + getCongestionReductions() + "\n" +
+                "Goodput: " + String.format("%.1f", getGoodputBytesPerSecond()) + " bytes/s\n";
+    }
+}
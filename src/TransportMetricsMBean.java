@@ -0,0 +1,39 @@
+/**
+ * Management interface for the per-connection transport counters and gauges. Exposed over JMX by
+ * {@link TransportMetrics}.
+ */
+public interface TransportMetricsMBean {
+    long getSegmentsSent();
+
+    long getBytesSent();
+
+    long getSegmentsReceived();
+
+    long getBytesReceived();
+
+    long getRetransmits();
+
+    long getDuplicateAcks();
+
+    long getChecksumFailures();
+
+    long getSegmentsRecovered();
+
+    long getSegmentsDropped();
+
+    long getCongestionReductions();
+
+    int getOutOfOrderCacheDepth();
+
+    int getCongestionWindow();
+
+    long getSmoothedRttMillis();
+
+    long getRetransmitTimeoutMillis();
+
+    long getBytesDelivered();
+
+    long getElapsedMillis();
+
+    double getGoodputBytesPerSecond();
+}
@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Client side of a stream connection: whatever the application writes goes to the server as one reliable, ordered
+ * byte stream, with no file headers and no temporary files. Get one from {@link Client#openStream()}.
+ * <p>
+ * Writes are coalesced into full segments, so many small writes don't each cost a datagram; {@link #flush()} sends a
+ * partly filled segment right away. A write that fills a segment waits until it fits in the server's window, which
+ * shrinks when the application reading on the server falls behind, so a fast producer is held back rather than
+ * buffering without bound. {@link #close()} sends what's left, waits for it all to be acknowledged and closes the
+ * connection.
+ */
+public class TransportOutputStream extends OutputStream {
+    private final Client client;
+    private final DatagramTransport socket;
+    private final StreamSender sender;
+    private final ClientReceiveThread receiveThread;
+    private final SendWindow sendWindow;
+    private final byte[] segment;
+    private int segmentLength;
+    private boolean isClosed;
+
+    /**
+     * Constructs the stream over an established connection
+     * @param client the client that made the connection, which closes it
+     * @param socket transport the connection runs on
+     * @param sender sends segments and parity on the caller's thread
+     * @param receiveThread started thread taking the server's ACKs for the sender
+     * @param dataPerSegment payload bytes per segment
+     */
+    TransportOutputStream(Client client, DatagramTransport socket, StreamSender sender,
+                          ClientReceiveThread receiveThread, int dataPerSegment) {
+        this.client = client;
+        this.socket = socket;
+        this.sender = sender;
+        this.receiveThread = receiveThread;
+        this.sendWindow = sender.getSendWindow();
+        this.segment = new byte[dataPerSegment];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    /**
+     * Adds bytes to the stream, sending every segment they fill
+     * @param buffer the bytes
+     * @param offset where in the buffer they start
+     * @param length number of bytes
+     * @throws IOException if the connection failed or the stream is closed
+     */
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || length > buffer.length - offset) throw new IndexOutOfBoundsException();
+        if (this.isClosed) throw new IOException("Stream closed");
+        while (length > 0) {
+            int count = Math.min(length, this.segment.length - this.segmentLength);
+            System.arraycopy(buffer, offset, this.segment, this.segmentLength, count);
+            this.segmentLength += count;
+            offset += count;
+            length -= count;
+            if (this.segmentLength == this.segment.length) sendSegment();
+        }
+    }
+
+    /**
+     * Sends the partly filled segment now instead of waiting for more bytes to fill it
+     * @throws IOException if the connection failed or the stream is closed
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (this.isClosed) throw new IOException("Stream closed");
+        if (this.segmentLength > 0) sendSegment();
+    }
+
+    /**
+     * Sends what's left, waits until the server has acknowledged every byte and closes the connection
+     * @throws IOException if the connection failed before everything was acknowledged
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.isClosed) return;
+        try {
+            if (this.segmentLength > 0) sendSegment();
+            this.sender.finish();
+        } catch (IOException e) {
+            this.sendWindow.fail(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.sendWindow.fail(new InterruptedIOException("Interrupted while closing the stream"));
+        } finally {
+            this.isClosed = true;
+        }
+        try {
+            this.socket.join(this.receiveThread);
+        } catch (InterruptedException e) {
+            this.sendWindow.fail(new InterruptedIOException("Interrupted while closing the stream"));
+            Thread.currentThread().interrupt();
+        }
+        this.client.finishUpload(this.sender);
+    }
+
+    private void sendSegment() throws IOException {
+        try {
+            this.sender.send(Arrays.copyOf(this.segment, this.segmentLength));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the window to open");
+        }
+        this.segmentLength = 0;
+    }
+}
@@ -24,13 +24,26 @@
 //******************************************************************************
 
 import edu.rit.util.Random;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Class UdpDisrupter is a main program that disrupts a series of UDP messages.
@@ -41,15 +54,73 @@ import java.util.concurrent.TimeUnit;
  * Before forwarding, each datagram is delayed from 0 to <I>delay</I>
  * milliseconds chosen at random. In addition, a fraction <I>drop</I> of the
  * datagrams chosen at random are dropped. The contents of the datagrams are not
- * altered.
+ * altered unless corruption is requested.
+ * <P>
+ * Further impairments may be enabled with options, applied in this order to
+ * each direction of each link: Gilbert-Elliott burst loss, a token bucket
+ * bandwidth limit with a bounded queue that tail-drops and may mark
+ * datagrams congestion experienced before it fills, single bit-flip
+ * corruption, duplication, and reordering.
+ * <P>
+ * More than one pair of mailboxes may be given; each group of eight addresses
+ * after the options sets up another independent A/B link, all sharing the same
+ * delay and drop settings.
  * <P>
  * <I>Note:</I> The recipient at <I>outhost_A:outport_A</I> and the recipient at
  * <I>outhost_B:outport_B</I> will see datagrams coming from the UDP Disrupter,
  * not from the original sender.
  * <P>
- * Usage: <TT>java UdpDisrupter <I>inhost_A</I> <I>inport_A</I> <I>outhost_A</I>
- * <I>outport_A</I> <I>inhost_B</I> <I>inport_B</I> <I>outhost_B</I>
- * <I>outport_B</I> <I>delay</I> <I>drop</I></TT>
+ * Delayed datagrams are held in a hashed timer wheel with 1 millisecond ticks,
+ * one wheel per forwarding thread. Datagram buffers are pooled and reused, so
+ * the receive and forward paths do not allocate.
+ * <P>
+ * Usage: <TT>java UdpDisrupter [<I>options</I>] <I>inhost_A</I> <I>inport_A</I>
+ * <I>outhost_A</I> <I>outport_A</I> <I>inhost_B</I> <I>inport_B</I>
+ * <I>outhost_B</I> <I>outport_B</I> [...] <I>delay</I> <I>drop</I></TT>
+ * <P>
+ * Options:
+ * <UL>
+ * <LI><TT>-quiet</TT> &mdash; Do not print each datagram; print totals once a
+ * second instead.
+ * <LI><TT>-threads=<I>n</I></TT> &mdash; Number of forwarding threads (default
+ * 1). Each direction of each link uses one of them.
+ * <LI><TT>-size=<I>n</I></TT> &mdash; Largest datagram accepted, in bytes
+ * (default 1024).
+ * <LI><TT>-burst=<I>p</I>,<I>r</I>[,<I>h</I>]</TT> &mdash; Gilbert-Elliott
+ * burst loss. Each packet the channel goes from good to bad with probability
+ * <I>p</I> and from bad to good with probability <I>r</I>. Packets are lost
+ * with probability <I>drop</I> in the good state and <I>h</I> (default 1) in
+ * the bad state.
+ * <LI><TT>-reorder=<I>prob</I>[,<I>depth</I>]</TT> &mdash; Hold back a
+ * fraction <I>prob</I> of the datagrams until <I>depth</I> (default 3) later
+ * datagrams have been forwarded.
+ * <LI><TT>-duplicate=<I>prob</I></TT> &mdash; Forward a second copy of a
+ * fraction <I>prob</I> of the datagrams.
+ * <LI><TT>-corrupt=<I>prob</I></TT> &mdash; Flip one random bit in a fraction
+ * <I>prob</I> of the datagrams.
+ * <LI><TT>-rate=<I>r</I></TT> &mdash; Limit each direction to <I>r</I>
+ * bytes per second with a token bucket. The bucket's queue is first in,
+ * first out: without a random delay, datagrams leave in the order they
+ * arrived.
+ * <LI><TT>-bucket=<I>b</I></TT> &mdash; Token bucket depth in bytes
+ * (default: the <TT>-size</TT> value).
+ * <LI><TT>-queue=<I>n</I></TT> &mdash; Datagrams that may wait for tokens
+ * before further datagrams are tail-dropped (default 64).
+ * <LI><TT>-mark=<I>n</I></TT> &mdash; Once <I>n</I> datagrams are waiting
+ * for tokens, mark each further datagram that is ECN capable congestion
+ * experienced instead of letting the queue grow until it drops (default: never
+ * mark). Datagrams must be transport segments; a marked segment has its CE bit
+ * set and its checksum recomputed.
+ * <LI><TT>-seed=<I>n</I></TT> &mdash; Seed the random number generators so
+ * each direction makes the same sequence of decisions on every run (default:
+ * the current time).
+ * <LI><TT>-record=<I>file</I></TT> &mdash; Record every disruption decision
+ * to a binary trace file.
+ * <LI><TT>-replay=<I>file</I></TT> &mdash; Replay the decisions in a recorded
+ * trace instead of drawing them at random. Each direction of each link
+ * replays its own decisions in order; when a direction's trace runs out, it
+ * falls back to the impairment options.
+ * </UL>
  *
  * @author  Alan Kaminsky
  * @version 15-Mar-2016
@@ -62,15 +133,47 @@ public class UdpDisrupter
      */
     private static int delay;
     private static double drop;
-    private static ScheduledExecutorService pool;
-    private static long packetNum;
+    private static boolean quiet = false;
+    private static int threads = 1;
+    private static int size = 1024;
+    private static double burstP = 0.0;
+    private static double burstR = 1.0;
+    private static double burstLoss = 1.0;
+    private static double reorder = 0.0;
+    private static int reorderDepth = 3;
+    private static double duplicate = 0.0;
+    private static double corrupt = 0.0;
+    private static double rate = 0.0;
+    private static int queueLimit = 64;
+    private static int markThreshold = 0;
+    private static double bucket = -1.0;
+    private static long seed = System.currentTimeMillis();
+    private static TraceWriter record;
+    private static TraceReader replay;
+    private static final int HOLD_TIMEOUT = 50;
+    private static final int TRACE_MAGIC = 0x55445452;
+    private static final int TRACE_VERSION = 1;
+    private static DatagramPool datagramPool;
+    private static Forwarder[] forwarders;
+    private static final int SOCKET_BUFFER = 4 << 20;
+    private static final int SEGMENT_HEADER = 20;
+    private static final int ECT = 0x04;
+    private static final int CE = 0x08;
+    private static final AtomicLong packetNum = new AtomicLong();
+    private static final AtomicLong sentCount = new AtomicLong();
+    private static final AtomicLong dropCount = new AtomicLong();
+    private static final AtomicLong queueDropCount = new AtomicLong();
+    private static final AtomicLong markCount = new AtomicLong();
+    private static final AtomicLong corruptCount = new AtomicLong();
+    private static final AtomicLong duplicateCount = new AtomicLong();
+    private static final AtomicLong reorderCount = new AtomicLong();
 
     /**
      * Returns the next packet number.
      */
-    private static synchronized long nextPacketNum()
+    private static long nextPacketNum()
     {
-        return ++ packetNum;
+        return packetNum.incrementAndGet();
     }
 
     /**
@@ -80,35 +183,110 @@ public class UdpDisrupter
     (String[] args)
             throws Exception
     {
+        // Parse command line options.
+        int argi = 0;
+        while (argi < args.length && args[argi].startsWith ("-"))
+        {
+            String opt = args[argi++];
+            if (opt.equals ("-quiet"))
+                quiet = true;
+            else if (opt.startsWith ("-threads="))
+                threads = Integer.parseInt (opt.substring (9));
+            else if (opt.startsWith ("-size="))
+                size = Integer.parseInt (opt.substring (6));
+            else if (opt.startsWith ("-burst="))
+            {
+                String[] v = opt.substring (7) .split (",");
+                if (v.length < 2 || v.length > 3) usage();
+                burstP = Double.parseDouble (v[0]);
+                burstR = Double.parseDouble (v[1]);
+                if (v.length == 3) burstLoss = Double.parseDouble (v[2]);
+            }
+            else if (opt.startsWith ("-reorder="))
+            {
+                String[] v = opt.substring (9) .split (",");
+                if (v.length < 1 || v.length > 2) usage();
+                reorder = Double.parseDouble (v[0]);
+                if (v.length == 2) reorderDepth = Integer.parseInt (v[1]);
+            }
+            else if (opt.startsWith ("-duplicate="))
+                duplicate = Double.parseDouble (opt.substring (11));
+            else if (opt.startsWith ("-corrupt="))
+                corrupt = Double.parseDouble (opt.substring (9));
+            else if (opt.startsWith ("-rate="))
+                rate = Double.parseDouble (opt.substring (6));
+            else if (opt.startsWith ("-queue="))
+                queueLimit = Integer.parseInt (opt.substring (7));
+            else if (opt.startsWith ("-mark="))
+                markThreshold = Integer.parseInt (opt.substring (6));
+            else if (opt.startsWith ("-bucket="))
+                bucket = Double.parseDouble (opt.substring (8));
+            else if (opt.startsWith ("-seed="))
+                seed = Long.parseLong (opt.substring (6));
+            else if (opt.startsWith ("-record="))
+                record = new TraceWriter (opt.substring (8));
+            else if (opt.startsWith ("-replay="))
+                replay = new TraceReader (opt.substring (8));
+            else
+                usage();
+        }
+
         // Parse command line arguments.
-        if (args.length != 10) usage();
-        String inhost_A = args[0];
-        int inport_A = Integer.parseInt (args[1]);
-        String outhost_A = args[2];
-        int outport_A = Integer.parseInt (args[3]);
-        String inhost_B = args[4];
-        int inport_B = Integer.parseInt (args[5]);
-        String outhost_B = args[6];
-        int outport_B = Integer.parseInt (args[7]);
-        delay = Integer.parseInt (args[8]);
-        drop = Double.parseDouble (args[9]);
-
-        // Set up addresses.
-        InetSocketAddress in_A = new InetSocketAddress (inhost_A, inport_A);
-        InetSocketAddress out_A = new InetSocketAddress (outhost_A, outport_A);
-        InetSocketAddress in_B = new InetSocketAddress (inhost_B, inport_B);
-        InetSocketAddress out_B = new InetSocketAddress (outhost_B, outport_B);
-
-        // Set up mailboxes.
-        DatagramSocket mailbox_A = new DatagramSocket (in_A);
-        DatagramSocket mailbox_B = new DatagramSocket (in_B);
-
-        // Set up thread pool.
-        pool = Executors.newScheduledThreadPool (1);
-
-        // Process incoming datagrams.
-        new Handler (mailbox_A, mailbox_B, out_A) .start();
-        new Handler (mailbox_B, mailbox_A, out_B) .start();
+        int nargs = args.length - argi;
+        if (nargs < 10 || (nargs - 2) % 8 != 0 || threads < 1) usage();
+        if (bucket < 0.0) bucket = size;
+        delay = Integer.parseInt (args[args.length - 2]);
+        drop = Double.parseDouble (args[args.length - 1]);
+
+        // Set up datagram pool and forwarding threads.
+        datagramPool = new DatagramPool (size);
+        forwarders = new Forwarder [threads];
+        for (int i = 0; i < threads; ++ i)
+        {
+            forwarders[i] = new Forwarder (i);
+            forwarders[i].start();
+        }
+
+        // Make sure the trace reaches the disk when the disrupter is stopped.
+        if (record != null)
+        {
+            final TraceWriter writer = record;
+            Runtime.getRuntime().addShutdownHook (new Thread()
+            {
+                public void run()
+                {
+                    writer.close();
+                }
+            });
+        }
+
+        // Set up each A/B link.
+        int direction = 0;
+        for (; argi < args.length - 2; argi += 8)
+        {
+            // Set up addresses.
+            InetSocketAddress in_A = new InetSocketAddress
+                    (args[argi], Integer.parseInt (args[argi + 1]));
+            InetSocketAddress out_A = new InetSocketAddress
+                    (args[argi + 2], Integer.parseInt (args[argi + 3]));
+            InetSocketAddress in_B = new InetSocketAddress
+                    (args[argi + 4], Integer.parseInt (args[argi + 5]));
+            InetSocketAddress out_B = new InetSocketAddress
+                    (args[argi + 6], Integer.parseInt (args[argi + 7]));
+
+            // Set up mailboxes.
+            DatagramSocket mailbox_A = new DatagramSocket (in_A);
+            DatagramSocket mailbox_B = new DatagramSocket (in_B);
+            mailbox_A.setReceiveBufferSize (SOCKET_BUFFER);
+            mailbox_B.setReceiveBufferSize (SOCKET_BUFFER);
+
+            // Process incoming datagrams.
+            new Handler (mailbox_A, mailbox_B, out_A, direction ++) .start();
+            new Handler (mailbox_B, mailbox_A, out_B, direction ++) .start();
+        }
+
+        // In quiet mode, report totals periodically.
+        if (quiet) new Reporter() .start();
     }
 
     /**
@@ -116,12 +294,149 @@ public class UdpDisrupter
      */
     private static void usage()
     {
-        System.err.println ("Usage: java UdpDisrupter <inhost_A> <inport_A> <outhost_A> <outport_A> <inhost_B> <inport_B> <outhost_B> <outport_B> <delay> <drop>");
+        System.err.println ("Usage: java UdpDisrupter [-quiet] [-threads=<n>] [-size=<n>] [-burst=<p>,<r>[,<h>]] [-reorder=<prob>[,<depth>]] [-duplicate=<prob>] [-corrupt=<prob>] [-rate=<bytes/s>] [-queue=<n>] [-mark=<n>] [-bucket=<bytes>] [-seed=<n>] [-record=<file>] [-replay=<file>] <inhost_A> <inport_A> <outhost_A> <outport_A> <inhost_B> <inport_B> <outhost_B> <outport_B> [...] <delay> <drop>");
         System.exit (1);
     }
 
     /**
-     * Thread for receiving packets from a mailbox.
+     * Send a datagram and return it to the pool.
+     */
+    private static void forward
+            (Datagram datagram)
+    {
+        try
+        {
+            datagram.outMailbox.send (datagram.packet);
+            sentCount.incrementAndGet();
+            if (! quiet)
+            {
+                synchronized (System.out)
+                {
+                    System.out.printf ("\t\t\t\t\tSend [%d] to %s%n",
+                            datagram.packetNum, datagram.outAddress);
+                }
+            }
+        }
+        catch (IOException exc)
+        {
+            exc.printStackTrace (System.err);
+            System.exit (1);
+        }
+        datagramPool.release (datagram);
+    }
+
+    /**
+     * A datagram in flight through the disrupter. Instances are pooled; the
+     * receive buffer is reused from one datagram to the next.
+     */
+    private static class Datagram
+    {
+        public final byte[] payload;
+        public final DatagramPacket packet;
+        public DatagramSocket outMailbox;
+        public InetSocketAddress outAddress;
+        public long packetNum;
+        // forwarder tick the datagram is due in
+        public long deadline;
+        // nanoseconds to wait once released from reordering
+        public long wait;
+        public Datagram next;
+
+        public Datagram
+                (int size)
+        {
+            this.payload = new byte [size];
+            this.packet = new DatagramPacket (payload, size);
+        }
+
+        /**
+         * Prepare to receive into this datagram.
+         */
+        public void reset()
+        {
+            packet.setData (payload, 0, payload.length);
+            outMailbox = null;
+            outAddress = null;
+            wait = 0;
+            next = null;
+        }
+    }
+
+    /**
+     * Pool of reusable datagrams.
+     */
+    private static class DatagramPool
+    {
+        private final int size;
+        private final ConcurrentLinkedQueue<Datagram> free =
+                new ConcurrentLinkedQueue<Datagram>();
+
+        public DatagramPool
+                (int size)
+        {
+            this.size = size;
+        }
+
+        public Datagram acquire()
+        {
+            Datagram datagram = free.poll();
+            if (datagram == null) datagram = new Datagram (size);
+            datagram.reset();
+            return datagram;
+        }
+
+        public void release
+                (Datagram datagram)
+        {
+            free.offer (datagram);
+        }
+    }
+
+    /**
+     * Set the congestion experienced bit of a transport segment that is ECN
+     * capable, and recompute its checksum the way the transport does so the
+     * mark survives the receiver's checksum test. The ECT and CE bits are
+     * reserved bits of the fourth header word (see TcpHeader), the checksum is
+     * the top half of the fifth. Returns false, leaving the segment alone, if
+     * it is too short or not ECN capable.
+     */
+    private static boolean mark
+            (byte[] payload,
+             int length)
+    {
+        if (length < SEGMENT_HEADER || (payload[12] & ECT) == 0) return false;
+        payload[12] |= CE;
+        payload[16] = 0;
+        payload[17] = 0;
+        int checksum = Utils.foldIPChecksum
+                (Utils.sumIPChecksumWords (ByteBuffer.wrap (payload), 0, length));
+        payload[16] = (byte) (checksum >>> 8);
+        payload[17] = (byte) checksum;
+        return true;
+    }
+
+    /**
+     * Print one per-packet line unless in quiet mode.
+     */
+    private static void trace
+            (String format,
+             long packetNum)
+    {
+        if (quiet) return;
+        synchronized (System.out)
+        {
+            System.out.printf (format, packetNum);
+        }
+    }
+
+    /**
+     * Thread for receiving packets from a mailbox. Each handler applies the
+     * impairments to one direction of a link and keeps that direction's
+     * impairment state (burst loss state, held packets, token bucket).
+     * <P>
+     * For each datagram the handler first decides what happens to it, either
+     * from its models or from a replayed trace, then records the decision if
+     * tracing and finally carries it out.
      */
     private static class Handler
             extends Thread
@@ -129,58 +444,153 @@ public class UdpDisrupter
         private DatagramSocket inMailbox;
         private DatagramSocket outMailbox;
         private InetSocketAddress outAddress;
+        private int direction;
+
+        private Random prng;
+        private Forwarder forwarder;
+
+        // Gilbert-Elliott state.
+        private boolean burstBad = false;
 
-        private byte[] payload = new byte [1024];
-        private DatagramPacket packet =
-                new DatagramPacket (payload, payload.length);
-        private Random prng = new Random (System.currentTimeMillis());
+        // Packets held back for reordering, and how many later packets must
+        // pass each one before it is released.
+        private ArrayList<Datagram> held = new ArrayList<Datagram>();
+        private ArrayList<Integer> heldCount = new ArrayList<Integer>();
+
+        // Token bucket state, and departure times of queued packets.
+        private double tokens = bucket;
+        private long lastRefill = System.nanoTime();
+        private ArrayDeque<Long> queue = new ArrayDeque<Long>();
+
+        // Decision for the current datagram.
+        private Decision decision = new Decision();
 
         public Handler
                 (DatagramSocket inMailbox,
                  DatagramSocket outMailbox,
-                 InetSocketAddress outAddress)
+                 InetSocketAddress outAddress,
+                 int direction)
                 throws IOException
         {
             this.outAddress = outAddress;
             this.inMailbox = inMailbox;
             this.outMailbox = outMailbox;
+            this.direction = direction;
+            this.prng = new Random (seed + direction);
+            this.forwarder = forwarders[direction % forwarders.length];
         }
 
         public void run()
         {
+            Datagram datagram = datagramPool.acquire();
             try
             {
                 for (;;)
                 {
-                    // Receive a datagram.
-                    inMailbox.receive (packet);
-                    long packetNum = nextPacketNum();
-                    synchronized (System.out)
+                    // Receive a datagram. While packets are held for
+                    // reordering, give up waiting after HOLD_TIMEOUT and
+                    // release them so they are not stranded.
+                    inMailbox.setSoTimeout (held.isEmpty() ? 0 : HOLD_TIMEOUT);
+                    try
                     {
-                        System.out.printf ("Receive [%d] from %s%n",
-                                packetNum, packet.getSocketAddress());
+                        inMailbox.receive (datagram.packet);
                     }
-
-                    // Decide whether to drop the packet.
-                    if (prng.nextDouble() < drop)
+                    catch (SocketTimeoutException exc)
+                    {
+                        releaseHeld (true, System.nanoTime());
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    long packetNum = nextPacketNum();
+                    if (! quiet)
                     {
                         synchronized (System.out)
                         {
-                            System.out.printf ("\t\t\t\t\tDrop [%d]%n",
-                                    packetNum);
+                            System.out.printf ("Receive [%d] from %s%n",
+                                    packetNum, datagram.packet.getSocketAddress());
                         }
                     }
 
-                    // Forward the packet after a random delay.
+                    // Decide what to do with the datagram.
+                    int length = datagram.packet.getLength();
+                    if (replay == null || ! replay.next (direction, decision))
+                        decide (length, now);
+                    if (record != null)
+                        record.write (direction, decision);
+
+                    // Drop the packet. The datagram is reused for the next
+                    // receive.
+                    if ((decision.flags & Decision.DROP) != 0)
+                    {
+                        dropCount.incrementAndGet();
+                        trace ("\t\t\t\t\tDrop [%d]%n", packetNum);
+                        datagram.reset();
+                        continue;
+                    }
+                    if ((decision.flags & Decision.QUEUE_DROP) != 0)
+                    {
+                        queueDropCount.incrementAndGet();
+                        trace ("\t\t\t\t\tQueue drop [%d]%n", packetNum);
+                        datagram.reset();
+                        continue;
+                    }
+
+                    datagram.packetNum = packetNum;
+                    datagram.outMailbox = outMailbox;
+                    datagram.outAddress = outAddress;
+                    datagram.packet.setSocketAddress (outAddress);
+
+                    // Mark the packet instead of letting the queue grow
+                    // until it has to drop.
+                    if ((decision.flags & Decision.MARK) != 0 &&
+                            mark (datagram.payload, length))
+                    {
+                        markCount.incrementAndGet();
+                        trace ("\t\t\t\t\tMark [%d]%n", packetNum);
+                    }
+
+                    // Flip a bit. An empty datagram has none to flip, even if
+                    // a replayed trace says to.
+                    if ((decision.flags & Decision.CORRUPT) != 0 && length > 0)
+                    {
+                        int bit = decision.corruptBit % (length * 8);
+                        datagram.payload[bit >>> 3] ^= (byte) (1 << (bit & 7));
+                        corruptCount.incrementAndGet();
+                        trace ("\t\t\t\t\tCorrupt [%d]%n", packetNum);
+                    }
+
+                    // Send a second copy.
+                    if ((decision.flags & Decision.DUPLICATE) != 0)
+                    {
+                        Datagram copy = datagramPool.acquire();
+                        System.arraycopy (datagram.payload, 0, copy.payload, 0, length);
+                        copy.packet.setLength (length);
+                        copy.packetNum = packetNum;
+                        copy.outMailbox = outMailbox;
+                        copy.outAddress = outAddress;
+                        copy.packet.setSocketAddress (outAddress);
+                        duplicateCount.incrementAndGet();
+                        trace ("\t\t\t\t\tDuplicate [%d]%n", packetNum);
+                        dispatch (copy, decision.duplicateWait, now);
+                    }
+
+                    // Hold the packet back until its reorder depth of later
+                    // packets have gone past it, or forward it after its
+                    // delay.
+                    datagram.wait = decision.wait;
+                    if ((decision.flags & Decision.REORDER) != 0)
+                    {
+                        reorderCount.incrementAndGet();
+                        trace ("\t\t\t\t\tReorder [%d]%n", packetNum);
+                        held.add (datagram);
+                        heldCount.add (decision.reorderDepth);
+                    }
                     else
                     {
-                        byte[] buf = new byte [packet.getLength()];
-                        System.arraycopy (payload, 0, buf, 0, buf.length);
-                        pool.schedule
-                                (new Forwarder
-                                                (outMailbox, outAddress, buf, packetNum),
-                                        prng.nextInt (delay), TimeUnit.MILLISECONDS);
+                        dispatch (datagram, datagram.wait, now);
+                        releaseHeld (false, now);
                     }
+                    datagram = datagramPool.acquire();
                 }
             }
             catch (IOException exc)
@@ -189,47 +599,474 @@ public class UdpDisrupter
                 System.exit (1);
             }
         }
+
+        /**
+         * Decide what to do with the current datagram using the impairment
+         * models.
+         */
+        private void decide
+                (int length,
+                 long now)
+        {
+            decision.clear();
+            if (lose())
+            {
+                decision.flags = Decision.DROP;
+                return;
+            }
+            long shapingDelay = shape (length, now);
+            if (shapingDelay < 0)
+            {
+                decision.flags = Decision.QUEUE_DROP;
+                return;
+            }
+            decision.wait = shapingDelay + randomDelay();
+            if (markThreshold > 0 && queue.size() >= markThreshold)
+                decision.flags |= Decision.MARK;
+            if (corrupt > 0.0 && length > 0 && prng.nextDouble() < corrupt)
+            {
+                decision.flags |= Decision.CORRUPT;
+                decision.corruptBit = prng.nextInt (length * 8);
+            }
+            if (duplicate > 0.0 && prng.nextDouble() < duplicate)
+            {
+                decision.flags |= Decision.DUPLICATE;
+                decision.duplicateWait = shapingDelay + randomDelay();
+            }
+            if (reorder > 0.0 && prng.nextDouble() < reorder)
+            {
+                decision.flags |= Decision.REORDER;
+                decision.reorderDepth = reorderDepth;
+            }
+        }
+
+        /**
+         * Returns a random delay from 0 to delay-1 milliseconds, in
+         * nanoseconds.
+         */
+        private long randomDelay()
+        {
+            return delay > 0 ? prng.nextInt (delay) * 1000000L : 0;
+        }
+
+        /**
+         * Decide whether to lose the current packet. Without a burst model,
+         * each packet is lost with probability drop. With a burst model, the
+         * Gilbert-Elliott chain is stepped first and the loss probability
+         * depends on its state.
+         */
+        private boolean lose()
+        {
+            if (burstP <= 0.0)
+                return prng.nextDouble() < drop;
+            if (burstBad)
+            {
+                if (prng.nextDouble() < burstR) burstBad = false;
+            }
+            else
+            {
+                if (prng.nextDouble() < burstP) burstBad = true;
+            }
+            return prng.nextDouble() < (burstBad ? burstLoss : drop);
+        }
+
+        /**
+         * Run the packet through the token bucket. Returns how many
+         * nanoseconds the packet waits for tokens, or -1 if the queue is full
+         * and the packet must be dropped. Packets leave the bucket in the
+         * order they arrived at it.
+         */
+        private long shape
+                (int length,
+                 long now)
+        {
+            if (rate <= 0) return 0;
+            while (! queue.isEmpty() && queue.peekFirst() <= now)
+                queue.pollFirst();
+            if (queue.size() >= queueLimit)
+                return -1;
+            tokens = Math.min (bucket, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            tokens -= length;
+            long wait = tokens >= 0.0 ? 0 : (long) (-tokens * 1e9 / rate);
+            if (wait > 0) queue.addLast (now + wait);
+            return wait;
+        }
+
+        /**
+         * Forward a packet after the given number of nanoseconds from now.
+         * Every delayed packet of the direction goes through the same
+         * forwarder. With a rate limit even the packets that need not wait
+         * do, so none overtakes a packet still waiting for tokens; without
+         * one, a packet given no random delay goes straight out.
+         */
+        private void dispatch
+                (Datagram datagram,
+                 long wait,
+                 long now)
+        {
+            if (wait <= 0 && rate <= 0)
+                forward (datagram);
+            else
+                forwarder.schedule (datagram, now + wait);
+        }
+
+        /**
+         * Count one more packet past each held packet and dispatch the held
+         * packets whose count has run out, or all of them if requested.
+         */
+        private void releaseHeld
+                (boolean all,
+                 long now)
+        {
+            for (int i = held.size() - 1; i >= 0; -- i)
+            {
+                int count = heldCount.get (i) - 1;
+                if (all || count <= 0)
+                {
+                    Datagram datagram = held.remove (i);
+                    heldCount.remove (i);
+                    dispatch (datagram, datagram.wait, now);
+                }
+                else
+                    heldCount.set (i, count);
+            }
+        }
+    }
+
+    /**
+     * What happens to one datagram.
+     */
+    private static class Decision
+    {
+        public static final int DROP = 1;
+        public static final int QUEUE_DROP = 2;
+        public static final int CORRUPT = 4;
+        public static final int DUPLICATE = 8;
+        public static final int REORDER = 16;
+        public static final int MARK = 32;
+
+        public int flags;
+        // nanoseconds
+        public long wait;
+        public int corruptBit;
+        // nanoseconds
+        public long duplicateWait;
+        public int reorderDepth;
+
+        public void clear()
+        {
+            flags = 0;
+            wait = 0;
+            corruptBit = 0;
+            duplicateWait = 0;
+            reorderDepth = 0;
+        }
+    }
+
+    /**
+     * Writer for a trace of disruption decisions. The file starts with the
+     * magic number and version, followed by one record per datagram in the
+     * order each direction received them:
+     * <PRE>
+     *   byte   direction
+     *   byte   flags
+     *   int    wait (ms)          unless dropped
+     *   int    corrupt bit        if CORRUPT
+     *   int    duplicate wait     if DUPLICATE
+     *   short  reorder depth      if REORDER
+     * </PRE>
+     * Handlers share one trace writer; records are small so the lock is held
+     * only briefly.
+     */
+    private static class TraceWriter
+    {
+        private DataOutputStream out;
+
+        public TraceWriter
+                (String file)
+                throws IOException
+        {
+            out = new DataOutputStream (new BufferedOutputStream
+                    (new FileOutputStream (file), 1 << 16));
+            out.writeInt (TRACE_MAGIC);
+            out.writeByte (TRACE_VERSION);
+        }
+
+        public synchronized void write
+                (int direction,
+                 Decision decision)
+                throws IOException
+        {
+            out.writeByte (direction);
+            out.writeByte (decision.flags);
+            if ((decision.flags & (Decision.DROP | Decision.QUEUE_DROP)) != 0)
+                return;
+            out.writeInt (toMillis (decision.wait));
+            if ((decision.flags & Decision.CORRUPT) != 0)
+                out.writeInt (decision.corruptBit);
+            if ((decision.flags & Decision.DUPLICATE) != 0)
+                out.writeInt (toMillis (decision.duplicateWait));
+            if ((decision.flags & Decision.REORDER) != 0)
+                out.writeShort (decision.reorderDepth);
+        }
+
+        /**
+         * Round a wait up to whole milliseconds, the unit the trace keeps.
+         */
+        private static int toMillis
+                (long nanos)
+        {
+            return (int) ((nanos + 999999L) / 1000000L);
+        }
+
+        public synchronized void close()
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException exc)
+            {
+                exc.printStackTrace (System.err);
+            }
+        }
     }
 
     /**
-     * Runnable object for forwarding a packet.
+     * Reader for a recorded trace. The whole trace is loaded at startup and
+     * split by direction, so each handler replays its own decisions in order
+     * regardless of how the directions interleaved when it was recorded.
+     */
+    private static class TraceReader
+    {
+        private ArrayList<ArrayList<Decision>> decisions =
+                new ArrayList<ArrayList<Decision>>();
+        private int[] position;
+        private boolean[] exhausted;
+
+        public TraceReader
+                (String file)
+                throws IOException
+        {
+            DataInputStream in = new DataInputStream (new BufferedInputStream
+                    (new FileInputStream (file), 1 << 16));
+            try
+            {
+                if (in.readInt() != TRACE_MAGIC || in.readByte() != TRACE_VERSION)
+                    throw new IOException ("Not a disruption trace: " + file);
+                for (;;)
+                {
+                    int direction = in.read();
+                    if (direction < 0) break;
+                    Decision decision = new Decision();
+                    decision.flags = in.readByte();
+                    if ((decision.flags & (Decision.DROP | Decision.QUEUE_DROP)) == 0)
+                    {
+                        decision.wait = in.readInt() * 1000000L;
+                        if ((decision.flags & Decision.CORRUPT) != 0)
+                            decision.corruptBit = in.readInt();
+                        if ((decision.flags & Decision.DUPLICATE) != 0)
+                            decision.duplicateWait = in.readInt() * 1000000L;
+                        if ((decision.flags & Decision.REORDER) != 0)
+                            decision.reorderDepth = in.readShort();
+                    }
+                    while (decisions.size() <= direction)
+                        decisions.add (new ArrayList<Decision>());
+                    decisions.get (direction) .add (decision);
+                }
+            }
+            catch (EOFException exc)
+            {
+                System.err.printf ("Trace %s is truncated%n", file);
+            }
+            finally
+            {
+                in.close();
+            }
+            position = new int [decisions.size()];
+            exhausted = new boolean [decisions.size()];
+        }
+
+        /**
+         * Copy the next recorded decision for the given direction into the
+         * given decision. Returns false once the direction's trace has run
+         * out, after which the handler falls back to its own models.
+         */
+        public boolean next
+                (int direction,
+                 Decision decision)
+        {
+            if (direction >= decisions.size()) return false;
+            ArrayList<Decision> list = decisions.get (direction);
+            if (position[direction] >= list.size())
+            {
+                if (! exhausted[direction])
+                {
+                    exhausted[direction] = true;
+                    System.err.printf ("Trace exhausted for direction %d%n",
+                            direction);
+                }
+                return false;
+            }
+            Decision recorded = list.get (position[direction] ++);
+            decision.flags = recorded.flags;
+            decision.wait = recorded.wait;
+            decision.corruptBit = recorded.corruptBit;
+            decision.duplicateWait = recorded.duplicateWait;
+            decision.reorderDepth = recorded.reorderDepth;
+            return true;
+        }
+    }
+
+    /**
+     * Thread for forwarding delayed packets. Each forwarder owns a hashed timer
+     * wheel with 1 millisecond ticks. Handlers hand datagrams over through a
+     * lock-free queue; only the forwarder thread touches the wheel. Each slot
+     * is a list in the order datagrams were scheduled, so datagrams due in the
+     * same tick go out in the order they arrived.
      */
     private static class Forwarder
-            implements Runnable
+            extends Thread
     {
-        private DatagramSocket outMailbox;
-        private InetSocketAddress outAddress;
-        private DatagramPacket packet;
-        private long packetNum;
+        private static final int WHEEL_SIZE = 1024;
+        private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+        private static final long TICK = 1000000L;
+
+        private final ConcurrentLinkedQueue<Datagram> incoming =
+                new ConcurrentLinkedQueue<Datagram>();
+        private final Datagram[] wheel = new Datagram [WHEEL_SIZE];
+        private final Datagram[] wheelTail = new Datagram [WHEEL_SIZE];
+        private final long start = System.nanoTime();
 
         public Forwarder
-                (DatagramSocket outMailbox,
-                 InetSocketAddress outAddress,
-                 byte[] buf,
-                 long packetNum)
-                throws IOException
+                (int index)
         {
-            this.outMailbox = outMailbox;
-            this.outAddress = outAddress;
-            this.packet = new DatagramPacket (buf, buf.length, outAddress);
-            this.packetNum = packetNum;
+            super ("Forwarder-" + index);
+            setDaemon (true);
+        }
+
+        /**
+         * Returns the current tick.
+         */
+        private long now()
+        {
+            return (System.nanoTime() - start) / TICK;
+        }
+
+        /**
+         * Schedule the given datagram to be sent in the tick the given time
+         * falls in, from System.nanoTime(). Datagrams whose times are in
+         * order go out in order. Called by handler threads.
+         */
+        public void schedule
+                (Datagram datagram,
+                 long time)
+        {
+            datagram.deadline = (time - start) / TICK;
+            incoming.offer (datagram);
+            // Don't leave a datagram that is already due until the next tick.
+            if (datagram.deadline <= now()) LockSupport.unpark (this);
         }
 
         public void run()
         {
-            try
+            long tick = now();
+            for (;;)
             {
-                outMailbox.send (packet);
-                synchronized (System.out)
+                // Move newly scheduled datagrams into the wheel. Only those
+                // due in a tick already expired go straight out; one due in
+                // the next tick joins the datagrams already waiting for it.
+                Datagram datagram;
+                while ((datagram = incoming.poll()) != null)
                 {
-                    System.out.printf ("\t\t\t\t\tSend [%d] to %s%n",
-                            packetNum, outAddress);
+                    if (datagram.deadline < tick)
+                        forward (datagram);
+                    else
+                        append ((int) datagram.deadline & WHEEL_MASK, datagram);
                 }
+
+                // Expire every tick up to the current time.
+                long current = now();
+                while (tick <= current)
+                {
+                    expire (tick);
+                    ++ tick;
+                }
+
+                LockSupport.parkNanos (TICK - (System.nanoTime() - start) % TICK);
             }
-            catch (IOException exc)
+        }
+
+        /**
+         * Send the datagrams in the given tick's slot that are due, keeping
+         * those due in a later rotation of the wheel.
+         */
+        private void expire
+                (long tick)
+        {
+            int slot = (int) tick & WHEEL_MASK;
+            Datagram datagram = wheel[slot];
+            wheel[slot] = null;
+            wheelTail[slot] = null;
+            while (datagram != null)
             {
-                exc.printStackTrace (System.err);
-                System.exit (1);
+                Datagram next = datagram.next;
+                if (datagram.deadline <= tick)
+                    forward (datagram);
+                else
+                    append (slot, datagram);
+                datagram = next;
+            }
+        }
+
+        /**
+         * Add a datagram to the end of the given slot's list.
+         */
+        private void append
+                (int slot,
+                 Datagram datagram)
+        {
+            datagram.next = null;
+            if (wheel[slot] == null)
+                wheel[slot] = datagram;
+            else
+                wheelTail[slot].next = datagram;
+            wheelTail[slot] = datagram;
+        }
+    }
+
+    /**
+     * Thread for printing totals in quiet mode.
+     */
+    private static class Reporter
+            extends Thread
+    {
+        public Reporter()
+        {
+            setDaemon (true);
+        }
+
+        public void run()
+        {
+            long lastReceived = 0;
+            for (;;)
+            {
+                try
+                {
+                    Thread.sleep (1000);
+                }
+                catch (InterruptedException exc)
+                {
+                    return;
+                }
+                long received = packetNum.get();
+                System.out.printf ("Received %d (%d/s), sent %d, dropped %d, queue drops %d, marked %d, corrupted %d, duplicated %d, reordered %d%n",
+                        received, received - lastReceived, sentCount.get(),
+                        dropCount.get(), queueDropCount.get(), markCount.get(),
+                        corruptCount.get(), duplicateCount.get(),
+                        reorderCount.get());
+                lastReceived = received;
             }
         }
     }
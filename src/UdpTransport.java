@@ -0,0 +1,39 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+
+/**
+ * Datagram transport over a real UDP socket
+ */
+public class UdpTransport implements DatagramTransport {
+    private DatagramSocket socket;
+
+    /**
+     * Constructs the transport
+     * @param socket the socket to send and receive on
+     */
+    public UdpTransport(DatagramSocket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public void send(DatagramPacket packet) throws IOException {
+        this.socket.send(packet);
+    }
+
+    @Override
+    public void receive(DatagramPacket packet) throws IOException {
+        this.socket.receive(packet);
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        this.socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public void close() {
+        this.socket.close();
+    }
+}
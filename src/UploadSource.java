@@ -0,0 +1,327 @@
+import javax.xml.bind.DatatypeConverter;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The data segments of an upload, in stream order: a segment holding each file's {@link FileHeader}, then its
+ * contents. The contents are read from disk one segment at a time, so a file can be larger than memory; on a
+ * compressed connection they go through a {@link BlockCompressor} first, on a deduplicated one through a
+ * {@link DeltaPacker}, and with a {@link SegmentCache} hot files come from memory. The send thread waits for each
+ * segment with {@link #next()}; {@link TransferClient}'s I/O thread polls with {@link #poll()} and is woken by the
+ * ready listener when a worker has more.
+ */
+public class UploadSource implements Closeable {
+    /**
+     * One segment's payload
+     */
+    public static class Payload {
+        private final byte[] data;
+        private final int payloadSum;
+
+        private Payload(byte[] data) {
+            this(data, Utils.sumIPChecksumWords(ByteBuffer.wrap(data), 0, data.length));
+        }
+
+        private Payload(byte[] data, int payloadSum) {
+            this.data = data;
+            this.payloadSum = payloadSum;
+        }
+
+        public byte[] getData() {
+            return this.data;
+        }
+
+        /**
+         * @return unfolded checksum sum of the payload
+         */
+        public int getPayloadSum() {
+            return this.payloadSum;
+        }
+    }
+
+    private final List<Path> files;
+    private final int dataPerSegment;
+    private final boolean isFirstHeaderSent;
+    private final boolean isCompressed;
+    private final Map<Path, FileHeader> headers = new HashMap<>();
+    private SegmentCache segmentCache;
+    private Map<String, BlockSignatures> signatures;
+    private Runnable readyListener;
+    private boolean isPrintingDigests = true;
+    private long copiedBytes;
+    // where the upload has got to: the current file, and whichever of these its contents come from
+    private int fileIndex = -1;
+    private Path path;
+    // the current file's header, until it has gone out
+    private byte[] headerBytes;
+    private InputStream in;
+    private long remaining;
+    private SegmentCache.CachedFile cached;
+    private int cachedIndex;
+    private BlockCompressor compressor;
+    private byte[] block;
+    private int blockOffset;
+    private DeltaPacker packer;
+    private boolean isFinished;
+
+    /**
+     * Constructs the source
+     * @param files files to send, in order, over one connection
+     * @param dataPerSegment payload bytes per segment
+     * @param isFirstHeaderSent the first file's header already went out with the SYN
+     * @param isCompressed the server agreed to compression
+     */
+    public UploadSource(List<Path> files, int dataPerSegment, boolean isFirstHeaderSent, boolean isCompressed) {
+        this.files = files;
+        this.dataPerSegment = dataPerSegment;
+        this.isFirstHeaderSent = isFirstHeaderSent;
+        this.isCompressed = isCompressed;
+    }
+
+    /**
+     * Takes file headers and segment checksums from a cache instead of reading and checksumming every file in full
+     * @param segmentCache the cache, or null to read files from disk each time
+     */
+    public void setSegmentCache(SegmentCache segmentCache) {
+        this.segmentCache = segmentCache;
+    }
+
+    /**
+     * Sends file contents as deltas against the copies the server already holds, on a connection where the server
+     * agreed to deduplication
+     * @param signatures the server's signature for each file name it holds, by name
+     */
+    public void setSignatures(Map<String, BlockSignatures> signatures) {
+        this.signatures = signatures;
+    }
+
+    /**
+     * Supplies a file's header, computed beforehand, so the file isn't read an extra time to digest it
+     * @param path one of the files
+     * @param header its header
+     */
+    public void setHeader(Path path, FileHeader header) {
+        this.headers.put(path, header);
+    }
+
+    /**
+     * Has the compressor and delta workers tell a sender that polls whenever they have more
+     * @param readyListener called on a worker thread, must not block
+     */
+    public void setReadyListener(Runnable readyListener) {
+        this.readyListener = readyListener;
+    }
+
+    /**
+     * @param isPrintingDigests print each file's MD5 as it starts, which the command line does
+     */
+    public void setPrintingDigests(boolean isPrintingDigests) {
+        this.isPrintingDigests = isPrintingDigests;
+    }
+
+    /**
+     * Waits for the next segment
+     * @return the payload, or null at the end of the upload
+     * @throws IOException if a file couldn't be read or changed size while being sent
+     * @throws InterruptedException if interrupted while waiting for a worker
+     */
+    public Payload next() throws IOException, InterruptedException {
+        return advance(true);
+    }
+
+    /**
+     * Non-blocking form of {@link #next()}
+     * @return the payload, or null at the end of the upload or if a worker hasn't got the next one ready; tell them
+     * apart with {@link #isFinished()}
+     * @throws IOException if a file couldn't be read or changed size while being sent
+     */
+    public Payload poll() throws IOException {
+        try {
+            return advance(false);
+        } catch (InterruptedException e) {
+            // only waits when blocking
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * @return true once every segment has been handed out
+     */
+    public boolean isFinished() {
+        return this.isFinished;
+    }
+
+    /**
+     * @return file bytes sent as references to blocks the server holds, rather than over the wire
+     */
+    public long getCopiedBytes() {
+        return this.copiedBytes;
+    }
+
+    /**
+     * Stops any worker and closes the file being read, for an upload that ends early
+     */
+    @Override
+    public void close() {
+        if (this.compressor != null) this.compressor.interrupt();
+        if (this.packer != null) this.packer.interrupt();
+        this.compressor = null;
+        this.packer = null;
+        closeFile();
+    }
+
+    private Payload advance(boolean isBlocking) throws IOException, InterruptedException {
+        while (!this.isFinished) {
+            if (this.path == null && !startNextFile()) {
+                this.isFinished = true;
+                return null;
+            }
+            if (this.headerBytes != null) {
+                Payload payload = new Payload(this.headerBytes);
+                this.headerBytes = null;
+                return payload;
+            }
+            Payload payload;
+            if (this.packer != null) {
+                payload = nextDelta(isBlocking);
+            } else if (this.compressor != null) {
+                payload = nextCompressed(isBlocking);
+            } else if (this.cached != null) {
+                payload = nextCached();
+            } else {
+                payload = nextFromDisk();
+            }
+            if (payload != null) return payload;
+            // the file is done, unless a worker is still busy on it
+            if (this.packer != null || this.compressor != null) return null;
+            this.path = null;
+        }
+        return null;
+    }
+
+    /**
+     * Moves on to the next file
+     * @return false if there are no more
+     * @throws IOException if the file couldn't be read or its name is too long
+     */
+    private boolean startNextFile() throws IOException {
+        if (++this.fileIndex == this.files.size()) return false;
+        Path path = this.files.get(this.fileIndex);
+        SegmentCache.CachedFile cached = null;
+        if (this.segmentCache != null && !this.isCompressed) {
+            cached = this.segmentCache.get(path, this.dataPerSegment);
+        }
+        FileHeader header = this.headers.get(path);
+        if (header == null) header = cached != null ? cached.getHeader() : FileHeader.of(path);
+        if (this.isPrintingDigests) {
+            System.out.println("MD5: " + DatatypeConverter.printHexBinary(header.getMd5()) + " (" + path.getFileName()
+                    + ")");
+        }
+        byte[] headerBytes = header.serialize();
+        if (headerBytes.length > this.dataPerSegment) {
+            throw new IOException("File name too long: " + path.getFileName());
+        }
+        this.path = path;
+        this.headerBytes = this.fileIndex == 0 && this.isFirstHeaderSent ? null : headerBytes;
+        if (this.signatures != null) {
+            this.packer = new DeltaPacker(path, header.getLength(), this.signatures.get(path.getFileName().toString()),
+                    this.dataPerSegment);
+            this.packer.setReadyListener(this.readyListener);
+            this.packer.start();
+        } else if (this.isCompressed) {
+            this.compressor = new BlockCompressor(path, header.getLength());
+            this.compressor.setReadyListener(this.readyListener);
+            this.compressor.start();
+        } else if (cached != null) {
+            this.cached = cached;
+            this.cachedIndex = 0;
+        } else {
+            this.in = new BufferedInputStream(Files.newInputStream(path), 64 * 1024);
+            this.remaining = header.getLength();
+        }
+        return true;
+    }
+
+    /**
+     * @return the next delta segment, or null at the end of the file or if the packer isn't ready
+     */
+    private Payload nextDelta(boolean isBlocking) throws IOException, InterruptedException {
+        if (!isBlocking && !this.packer.isReady()) return null;
+        byte[] segment = this.packer.next();
+        if (segment != null) return new Payload(segment);
+        this.copiedBytes += this.packer.getCopiedBytes();
+        this.packer = null;
+        return null;
+    }
+
+    /**
+     * @return the next piece of a compressed block, or null at the end of the file or if the compressor isn't ready
+     */
+    private Payload nextCompressed(boolean isBlocking) throws IOException, InterruptedException {
+        if (this.block == null || this.blockOffset == this.block.length) {
+            if (!isBlocking && !this.compressor.isReady()) return null;
+            this.block = this.compressor.next();
+            this.blockOffset = 0;
+            if (this.block == null) {
+                this.compressor = null;
+                return null;
+            }
+        }
+        int end = Math.min(this.blockOffset + this.dataPerSegment, this.block.length);
+        byte[] data = Arrays.copyOfRange(this.block, this.blockOffset, end);
+        this.blockOffset = end;
+        return new Payload(data);
+    }
+
+    /**
+     * @return the next cached segment, or null at the end of the file
+     */
+    private Payload nextCached() {
+        if (this.cachedIndex == this.cached.getSegmentCount()) {
+            this.cached = null;
+            return null;
+        }
+        Payload payload = new Payload(this.cached.getSegment(this.cachedIndex),
+                this.cached.getPayloadSum(this.cachedIndex));
+        this.cachedIndex++;
+        return payload;
+    }
+
+    /**
+     * @return the next segment read from disk, or null at the end of the file
+     * @throws IOException if the file couldn't be read or shrank
+     */
+    private Payload nextFromDisk() throws IOException {
+        if (this.remaining == 0) {
+            closeFile();
+            return null;
+        }
+        int length = (int) Math.min(this.dataPerSegment, this.remaining);
+        byte[] data = new byte[length];
+        if (Utils.readFully(this.in, data, length) < length) {
+            throw new IOException("File shrank while sending: " + this.path.getFileName());
+        }
+        this.remaining -= length;
+        return new Payload(data);
+    }
+
+    private void closeFile() {
+        if (this.in == null) return;
+        try {
+            this.in.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.in = null;
+    }
+}
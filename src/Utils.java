@@ -1,3 +1,5 @@
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
@@ -9,18 +11,38 @@ public class Utils {
      * @return the checksum
      */
     public static int calculateIPChecksum(byte[] buff) {
-        int i = 0;
+        return foldIPChecksum(sumIPChecksumWords(ByteBuffer.wrap(buff), 0, buff.length));
+    }
+
+    /**
+     * Adds up a run of bytes as big endian 16-bit words, the first half of the IP checksum. Sums of runs that start at
+     * even offsets can be added together and folded, so a segment's checksum can be finished from its header alone
+     * when the sum of its payload is already known.
+     * @param buffer the bytes
+     * @param offset index of the first byte
+     * @param length number of bytes, a trailing odd byte is padded with zero
+     * @return the unfolded sum
+     */
+    public static int sumIPChecksumWords(ByteBuffer buffer, int offset, int length) {
+        int i = offset;
         int sum = 0;
-        int length = buff.length;
         while (length > 0) {
-            sum += (buff[i++] & 0xFF) << 8;
+            sum += (buffer.get(i++) & 0xFF) << 8;
             if ((--length) == 0) {
                 break;
             }
-            sum += (buff[i++] & 0xFF);
+            sum += (buffer.get(i++) & 0xFF);
             --length;
         }
+        return sum;
+    }
 
+    /**
+     * Finishes an IP checksum
+     * @param sum unfolded sum from {@link #sumIPChecksumWords(ByteBuffer, int, int)}
+     * @return the checksum
+     */
+    public static int foldIPChecksum(int sum) {
         return (~((sum & 0xFFFF) + (sum >> 16))) & 0xFFFF;
     }
 
@@ -62,4 +84,22 @@ public class Utils {
         return result;
     }
 
+    /**
+     * Reads up to length bytes, stopping early only at the end of the stream
+     * @param in stream to read
+     * @param buffer where to put the bytes
+     * @param length number of bytes wanted
+     * @return number of bytes read
+     * @throws IOException if the read fails
+     */
+    public static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int count = in.read(buffer, total, length - total);
+            if (count == -1) break;
+            total += count;
+        }
+        return total;
+    }
+
 }